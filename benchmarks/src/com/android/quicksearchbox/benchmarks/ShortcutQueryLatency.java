@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.benchmarks;
+
+import android.app.Activity;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+
+Compares the cost of the shortcut database statements run for each keystroke and click.
+For keystrokes, the baseline is the original SQL: reading every intent key to find out
+whether there is any history, and ranking shortcuts from the click log with a GROUP BY
+and a MAX(hit_time) subquery. It is compared with SELECT EXISTS and ranking from the
+per-prefix score table. For clicks, the score updates are compared when compiled for
+each use and when compiled statements are reused.
+The schema is a copy of the relevant parts of the one in ShortcutRepositoryImplLog.
+Each round times a full pass of both variants, alternating which one goes first.
+
+To build and run:
+
+mmm packages/apps/QuickSearchBox/benchmarks \
+&& adb install -r $OUT/data/app/QuickSearchBoxBenchmarks.apk \
+&& sleep 10 \
+&& adb shell am start -a android.intent.action.MAIN \
+        -n com.android.quicksearchbox.benchmarks/.ShortcutQueryLatency \
+&& adb logcat
+
+*/
+
+public class ShortcutQueryLatency extends Activity {
+
+    private static final String TAG = "ShortcutQueryLatency";
+
+    private static final String DB_NAME = "shortcut-query-latency.db";
+
+    private static final int NUM_SHORTCUTS = 500;
+    private static final int CLICKS_PER_SHORTCUT = 4;
+    private static final int MAX_SHORTCUTS = 12;
+    private static final int ROUNDS = 20;
+
+    private static final String[] queries = {
+        "a", "s", "e", "r", "pub", "taxi", "kilt hire", "pizza", "weather london uk"
+    };
+
+    private static final String HAS_HISTORY_OLD = "SELECT intent_key FROM shortcuts";
+    private static final String HAS_HISTORY_NEW =
+            "SELECT EXISTS (SELECT 1 FROM shortcuts)";
+
+    // ?1 and ?2 bound the query prefix, ?3 is the current time.
+    private static final String CLICK_LOG_WHERE = "clicklog.query >= ?1 AND clicklog.query < ?2"
+            + " AND clicklog.hit_time >= (?3 - 2592000000)";
+    private static final String RANK_SQL_OLD = "SELECT shortcuts.intent_key, shortcuts.source,"
+            + " shortcuts.title, shortcuts.description, shortcuts.custom_columns"
+            + " FROM clicklog INNER JOIN shortcuts ON clicklog.intent_key = shortcuts.intent_key"
+            + " WHERE " + CLICK_LOG_WHERE
+            + " GROUP BY clicklog.intent_key"
+            + " ORDER BY (MAX(clicklog.hit_time) = (SELECT MAX(clicklog.hit_time) FROM clicklog"
+            + " WHERE " + CLICK_LOG_WHERE + ")) DESC,"
+            + " SUM((clicklog.hit_time - (?3 - 2592000000)) / 1000) DESC";
+
+    // ?1 is the query, ?2 is the current time.
+    private static final String RANK_SQL = "SELECT shortcuts.intent_key FROM shortcutscores"
+            + " INNER JOIN shortcuts ON shortcutscores.intent_key = shortcuts.intent_key"
+            + " WHERE query_prefix = ?1 AND last_hit_time >= (?2 - 2592000000)"
+            + " ORDER BY (last_hit_time = (SELECT MAX(last_hit_time) FROM shortcutscores"
+            + " WHERE query_prefix = ?1)) DESC,"
+            + " (hit_time_sum - hit_count * (?2 - 2592000000)) DESC";
+
+    private static final String INSERT_SCORE_SQL =
+            "INSERT OR IGNORE INTO shortcutscores VALUES (?, ?, 0, 0, 0)";
+    private static final String UPDATE_SCORE_SQL = "UPDATE shortcutscores SET"
+            + " hit_count = hit_count + ?, hit_time_sum = hit_time_sum + ?,"
+            + " last_hit_time = MAX(last_hit_time, ?)"
+            + " WHERE query_prefix = ? AND intent_key = ?";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        deleteDatabase(DB_NAME);
+        mDb = openOrCreateDatabase(DB_NAME, MODE_PRIVATE, null);
+        try {
+            createTables();
+            fillTables();
+            testKeystrokes();
+            testClicks();
+        } finally {
+            mDb.close();
+            deleteDatabase(DB_NAME);
+        }
+        finish();
+    }
+
+    private void createTables() {
+        mDb.execSQL("CREATE TABLE shortcuts (intent_key TEXT NOT NULL PRIMARY KEY,"
+                + " source TEXT NOT NULL, title TEXT, description TEXT, custom_columns TEXT)");
+        mDb.execSQL("CREATE TABLE shortcutscores (query_prefix TEXT NOT NULL,"
+                + " intent_key TEXT NOT NULL, hit_count INTEGER NOT NULL,"
+                + " hit_time_sum INTEGER NOT NULL, last_hit_time INTEGER NOT NULL,"
+                + " PRIMARY KEY (query_prefix, intent_key))");
+        mDb.execSQL("CREATE TABLE clicklog (_id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT,"
+                + " intent_key TEXT NOT NULL, query TEXT, hit_time INTEGER, corpus TEXT)");
+        mDb.execSQL("CREATE INDEX clicklog_query ON clicklog(query)");
+        mDb.execSQL("CREATE INDEX clicklog_hit_time ON clicklog(hit_time)");
+    }
+
+    private void fillTables() {
+        Random random = new Random(0);
+        long now = System.currentTimeMillis();
+        mDb.beginTransaction();
+        try {
+            SQLiteStatement insert = mDb.compileStatement(INSERT_SCORE_SQL);
+            SQLiteStatement update = mDb.compileStatement(UPDATE_SCORE_SQL);
+            for (int i = 0; i < NUM_SHORTCUTS; i++) {
+                String intentKey = "shortcut" + i;
+                mDb.execSQL("INSERT INTO shortcuts VALUES (?, ?, ?, ?, ?)", new Object[]{
+                        intentKey, "source" + (i % 5), "title " + i, "description " + i,
+                        "{\"extra\":\"" + i + "\"}" });
+                for (int j = 0; j < CLICKS_PER_SHORTCUT; j++) {
+                    String query = queries[random.nextInt(queries.length)];
+                    long hitTime = now - random.nextInt(1000000);
+                    mDb.execSQL("INSERT INTO clicklog (intent_key, query, hit_time, corpus)"
+                            + " VALUES (?, ?, ?, ?)", new Object[]{
+                            intentKey, query, hitTime, "source" + (i % 5) });
+                    updateScores(insert, update, intentKey, query, hitTime);
+                }
+            }
+            insert.close();
+            update.close();
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private void testKeystrokes() {
+        long now = System.currentTimeMillis();
+        long oldTime = 0;
+        long newTime = 0;
+        SQLiteStatement hasHistory = mDb.compileStatement(HAS_HISTORY_NEW);
+        try {
+            // Untimed warm-up, so that neither variant pays for loading the pages
+            keystrokesOld(now);
+            keystrokesNew(hasHistory, now);
+            for (int round = 0; round < ROUNDS; round++) {
+                if (round % 2 == 0) {
+                    oldTime += keystrokesOld(now);
+                    newTime += keystrokesNew(hasHistory, now);
+                } else {
+                    newTime += keystrokesNew(hasHistory, now);
+                    oldTime += keystrokesOld(now);
+                }
+            }
+        } finally {
+            hasHistory.close();
+        }
+        Log.d(TAG, "Keystrokes: " + formatTime(oldTime) + " (click log), "
+                + formatTime(newTime) + " (score table)");
+    }
+
+    /**
+     * Runs the baseline statements for each prefix of each query.
+     *
+     * @return The time taken, in nanoseconds.
+     */
+    private long keystrokesOld(long now) {
+        long start = System.nanoTime();
+        for (String query : queries) {
+            for (int end = 1; end <= query.length(); end++) {
+                String prefix = query.substring(0, end);
+                hasHistoryOld();
+                lookUpOld(prefix, now);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Runs the current statements for each prefix of each query.
+     *
+     * @return The time taken, in nanoseconds.
+     */
+    private long keystrokesNew(SQLiteStatement hasHistory, long now) {
+        long start = System.nanoTime();
+        for (String query : queries) {
+            for (int end = 1; end <= query.length(); end++) {
+                String prefix = query.substring(0, end);
+                hasHistory.simpleQueryForLong();
+                lookUp(prefix, now);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private boolean hasHistoryOld() {
+        Cursor cursor = mDb.rawQuery(HAS_HISTORY_OLD, null);
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void lookUpOld(String query, long now) {
+        Cursor cursor = mDb.rawQuery(RANK_SQL_OLD,
+                new String[]{ query, nextString(query), String.valueOf(now) });
+        try {
+            // Like the original, which checked the count before reading any rows
+            if (cursor.getCount() == 0) return;
+            for (int i = 0; i < MAX_SHORTCUTS && cursor.moveToNext(); i++) {
+                cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Gets the least string that does not start with {@code str}. The queries here are
+     * ASCII, so the last character can simply be incremented.
+     */
+    private static String nextString(String str) {
+        int len = str.length();
+        return str.substring(0, len - 1) + (char) (str.charAt(len - 1) + 1);
+    }
+
+    private void lookUp(String query, long now) {
+        ArrayList<String> intentKeys = new ArrayList<String>();
+        Cursor cursor = mDb.rawQuery(RANK_SQL, new String[]{ query, String.valueOf(now) });
+        try {
+            while (intentKeys.size() < MAX_SHORTCUTS && cursor.moveToNext()) {
+                intentKeys.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (intentKeys.isEmpty()) return;
+        StringBuilder where = new StringBuilder("intent_key IN (");
+        String[] whereArgs = new String[MAX_SHORTCUTS];
+        for (int i = 0; i < MAX_SHORTCUTS; i++) {
+            where.append(i == 0 ? "?" : ",?");
+            whereArgs[i] = intentKeys.get(Math.min(i, intentKeys.size() - 1));
+        }
+        where.append(')');
+        cursor = mDb.query("shortcuts", null, where.toString(), whereArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void testClicks() {
+        long now = System.currentTimeMillis();
+        long oldTime = 0;
+        long newTime = 0;
+        SQLiteStatement insert = mDb.compileStatement(INSERT_SCORE_SQL);
+        SQLiteStatement update = mDb.compileStatement(UPDATE_SCORE_SQL);
+        try {
+            clicksOld(now);
+            clicksNew(insert, update, now);
+            for (int round = 0; round < ROUNDS; round++) {
+                if (round % 2 == 0) {
+                    oldTime += clicksOld(now);
+                    newTime += clicksNew(insert, update, now);
+                } else {
+                    newTime += clicksNew(insert, update, now);
+                    oldTime += clicksOld(now);
+                }
+            }
+        } finally {
+            insert.close();
+            update.close();
+        }
+        Log.d(TAG, "Clicks: " + formatTime(oldTime) + " (compiled per use), "
+                + formatTime(newTime) + " (reused)");
+    }
+
+    /**
+     * Updates the scores for a click on each query, compiling the statements each time.
+     *
+     * @return The time taken, in nanoseconds.
+     */
+    private long clicksOld(long now) {
+        long start = System.nanoTime();
+        for (int i = 0; i < queries.length; i++) {
+            SQLiteStatement insert = mDb.compileStatement(INSERT_SCORE_SQL);
+            SQLiteStatement update = mDb.compileStatement(UPDATE_SCORE_SQL);
+            updateScores(insert, update, "shortcut" + i, queries[i], now);
+            insert.close();
+            update.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Updates the scores for a click on each query, reusing the given statements.
+     *
+     * @return The time taken, in nanoseconds.
+     */
+    private long clicksNew(SQLiteStatement insert, SQLiteStatement update, long now) {
+        long start = System.nanoTime();
+        for (int i = 0; i < queries.length; i++) {
+            updateScores(insert, update, "shortcut" + i, queries[i], now);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void updateScores(SQLiteStatement insert, SQLiteStatement update,
+            String intentKey, String query, long hitTime) {
+        for (int end = 0; end <= query.length(); end++) {
+            String prefix = query.substring(0, end);
+            insert.bindString(1, prefix);
+            insert.bindString(2, intentKey);
+            insert.execute();
+            update.bindLong(1, 1);
+            update.bindLong(2, hitTime);
+            update.bindLong(3, hitTime);
+            update.bindString(4, prefix);
+            update.bindString(5, intentKey);
+            update.execute();
+        }
+    }
+
+    private static String formatTime(long ns) {
+        return (ns / 1000000.0d) + " ms";
+    }
+
+}
@@ -16,6 +16,8 @@
 
 package com.android.quicksearchbox;
 
+import com.android.quicksearchbox.util.CancellationSignal;
+
 import android.content.Context;
 
 
@@ -37,6 +39,10 @@ public abstract class AbstractCorpus implements Corpus {
         return mContext;
     }
 
+    protected Config getConfig() {
+        return mConfig;
+    }
+
     public boolean isCorpusDefaultEnabled() {
         return mConfig.isCorpusEnabledByDefault(this);
     }
@@ -45,6 +51,10 @@ public abstract class AbstractCorpus implements Corpus {
         return mConfig.isCorpusHidden(getName());
     }
 
+    public CorpusResult getSuggestions(String query, int queryLimit, boolean onlyCorpus) {
+        return getSuggestions(query, queryLimit, onlyCorpus, null);
+    }
+
     @Override
     public String toString() {
         return getName();
@@ -16,6 +16,7 @@
 
 package com.android.quicksearchbox;
 
+import com.android.quicksearchbox.util.CancellationSignal;
 import com.android.quicksearchbox.util.NamedTaskExecutor;
 import com.android.quicksearchbox.util.NowOrLater;
 
@@ -109,6 +110,10 @@ public abstract class AbstractSource implements Source {
         return this;
     }
 
+    public SourceResult getSuggestions(String query, int queryLimit, boolean onlySource) {
+        return getSuggestions(query, queryLimit, onlySource, null);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o != null && o instanceof Source) {
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import com.android.quicksearchbox.util.CancellationSignal;
+import com.android.quicksearchbox.util.Consumer;
+
+import android.os.Handler;
+
+/**
+ * A {@link SuggestionCursorProvider} that can produce suggestions without blocking
+ * the calling thread.
+ */
+public interface AsyncSuggestionCursorProvider<C extends SuggestionCursor>
+        extends SuggestionCursorProvider<C> {
+
+    /**
+     * Starts getting suggestions from the provider, and returns without waiting for them.
+     *
+     * @param query The user query.
+     * @param queryLimit An advisory maximum number of results that the source should return.
+     * @param onlyOne Indicates if this provider is the only one being used for the query.
+     * @param cancellationSignal Signals that the suggestions are no longer needed,
+     *        or {@code null}. When canceled, the provider stops its queries as soon as
+     *        possible, and the consumer is not called if it has not been called yet.
+     * @param handler Handler that {@link Consumer#consume} will get called on. If
+     *        {@code null}, it is called on an arbitrary thread, with complete results.
+     * @param consumer Called at most once with the suggestion results. The results
+     *        are closed if the consumer does not accept them. If {@code handler} is not
+     *        {@code null}, the results may be an incomplete
+     *        {@link IncrementalCorpusResult} that is then updated on {@code handler}.
+     */
+    void getSuggestions(String query, int queryLimit, boolean onlyOne,
+            CancellationSignal cancellationSignal, Handler handler, Consumer<C> consumer);
+}
@@ -43,19 +43,37 @@ public class Config {
     private static final int NUM_PROMOTED_SOURCES = 3;
     private static final int MAX_RESULTS_PER_SOURCE = 50;
     private static final long SOURCE_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_CACHED_RESULTS_PER_CORPUS = 16;
+    private static final long CORPUS_RESULT_CACHE_TTL_MILLIS = 30 * SECOND_MILLIS;
+    private static final int LATENCY_RANK_PENALTY_MILLIS = 200;
+    private static final int SLOW_CORPUS_LATENCY_MILLIS = 500;
+    private static final long MIN_CORPUS_LATENCY_BUDGET_MILLIS = 100;
 
     private static final int QUERY_THREAD_PRIORITY =
             Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE;
 
     private static final long MAX_STAT_AGE_MILLIS = 30 * DAY_MILLIS;
     private static final int MIN_CLICKS_FOR_SOURCE_RANKING = 3;
+    private static final int MAX_SHORTCUTS_RETURNED = 12;
+    private static final long SOURCE_STATS_RECONCILE_INTERVAL_MILLIS = DAY_MILLIS;
+    private static final long CLICK_LOG_AGE_OUT_INTERVAL_MILLIS = 60 * MINUTE_MILLIS;
+    private static final int CLICK_LOG_AGE_OUT_CHUNK_SIZE = 100;
+    private static final long SLOW_SHORTCUT_TASK_QUEUEING_MILLIS = 100;
+    private static final long CLICK_LOG_FLUSH_DELAY_MILLIS = SECOND_MILLIS;
+    private static final int CLICK_LOG_FLUSH_BATCH_SIZE = 20;
+    private static final int MAX_ZERO_QUERY_SHORTCUTS_CACHED = MAX_SHORTCUTS_RETURNED;
+    private static final long ZERO_QUERY_SHORTCUTS_MAX_AGE_MILLIS = 15 * MINUTE_MILLIS;
 
     private static final int NUM_WEB_CORPUS_THREADS = 2;
+    private static final int NUM_QUERY_THREADS = 8;
+    private static final int NUM_ICON_LOADER_THREADS = 2;
+    private static final long IDLE_THREAD_KEEP_ALIVE_MILLIS = 30 * SECOND_MILLIS;
 
     private static final int LATENCY_LOG_FREQUENCY = 1000;
 
     private static final long TYPING_SUGGESTIONS_UPDATE_DELAY_MILLIS = 100;
     private static final long PUBLISH_RESULT_DELAY_MILLIS = 200;
+    private static final long SUGGESTIONS_NOTIFY_INTERVAL_MILLIS = 16;
 
     private static final long VOICE_SEARCH_HINT_ACTIVE_PERIOD = 7L * DAY_MILLIS;
 
@@ -72,6 +90,13 @@ public class Config {
     private static final int HTTP_CONNECT_TIMEOUT_MILLIS = 4000;
     private static final int HTTP_READ_TIMEOUT_MILLIS = 4000;
 
+    private static final int WEB_SUGGEST_CACHE_MEMORY_ENTRIES = 64;
+    private static final int WEB_SUGGEST_CACHE_DISK_ENTRIES = 512;
+    private static final long WEB_SUGGEST_CACHE_FRESH_MILLIS = 15 * MINUTE_MILLIS;
+    private static final long WEB_SUGGEST_CACHE_MAX_STALE_MILLIS = DAY_MILLIS;
+    private static final long SLOW_WEB_SUGGEST_LATENCY_MILLIS = 1000;
+    private static final long WEB_SUGGEST_DEBOUNCE_MILLIS = 200;
+
     private static final String USER_AGENT = "Android/1.0";
 
     private final Context mContext;
@@ -202,6 +227,15 @@ public class Config {
         return getMaxShortcutsPerNonWebSource();
     }
 
+    /**
+     * The maximum number of shortcuts to fetch from the shortcut repository for each
+     * source, when more than one corpus is searched. Sources with a higher per-source
+     * limit get that many instead.
+     */
+    public int getMaxShortcutsReturned() {
+        return MAX_SHORTCUTS_RETURNED;
+    }
+
     /**
      * The timeout for querying each source, in milliseconds.
      */
@@ -209,6 +243,47 @@ public class Config {
         return SOURCE_TIMEOUT_MILLIS;
     }
 
+    /**
+     * The maximum number of queries for which results are cached for each corpus.
+     * 0 disables the corpus result cache.
+     */
+    public int getMaxCachedResultsPerCorpus() {
+        return MAX_CACHED_RESULTS_PER_CORPUS;
+    }
+
+    /**
+     * How long a cached corpus result may be reused for, in milliseconds.
+     */
+    public long getCorpusResultCacheTtlMillis() {
+        return CORPUS_RESULT_CACHE_TTL_MILLIS;
+    }
+
+    /**
+     * How much average query latency costs a corpus one position in the order in which
+     * corpora are queried, in milliseconds.
+     */
+    public int getLatencyRankPenaltyMillis() {
+        return LATENCY_RANK_PENALTY_MILLIS;
+    }
+
+    /**
+     * The 90th percentile latency above which a corpus is considered slow, in milliseconds.
+     * Slow corpora do not hold back the next batch of queries, and do not take up
+     * a slot in a batch.
+     */
+    public int getSlowCorpusLatencyMillis() {
+        return SLOW_CORPUS_LATENCY_MILLIS;
+    }
+
+    /**
+     * The shortest time a corpus query may take before it is considered late, in
+     * milliseconds. The latency budget of a corpus is its 95th percentile latency, but at
+     * least this value and at most {@link #getSourceTimeoutMillis}.
+     */
+    public long getMinCorpusLatencyBudgetMillis() {
+        return MIN_CORPUS_LATENCY_BUDGET_MILLIS;
+    }
+
     /**
      * The priority of query threads.
      *
@@ -232,10 +307,93 @@ public class Config {
         return MIN_CLICKS_FOR_SOURCE_RANKING;
     }
 
+    /**
+     * How often the incrementally maintained per-corpus click totals are recomputed
+     * from the click log, to correct any drift.
+     */
+    public long getSourceStatsReconcileIntervalMillis() {
+        return SOURCE_STATS_RECONCILE_INTERVAL_MILLIS;
+    }
+
+    /**
+     * How often clicks older than {@link #getMaxStatAgeMillis} are deleted from the
+     * click log.
+     */
+    public long getClickLogAgeOutIntervalMillis() {
+        return CLICK_LOG_AGE_OUT_INTERVAL_MILLIS;
+    }
+
+    /**
+     * The maximum number of old clicks to delete in one transaction.
+     */
+    public int getClickLogAgeOutChunkSize() {
+        return CLICK_LOG_AGE_OUT_CHUNK_SIZE;
+    }
+
+    /**
+     * How long to collect clicks and shortcut updates before writing them to the
+     * shortcut database in one transaction.
+     */
+    public long getClickLogFlushDelayMillis() {
+        return CLICK_LOG_FLUSH_DELAY_MILLIS;
+    }
+
+    /**
+     * The number of collected clicks and shortcut updates at which they are written to
+     * the shortcut database without waiting for the flush delay.
+     */
+    public int getClickLogFlushBatchSize() {
+        return CLICK_LOG_FLUSH_BATCH_SIZE;
+    }
+
+    /**
+     * Shortcut repository tasks that wait at least this long before they start are logged.
+     */
+    public long getSlowShortcutTaskQueueingMillis() {
+        return SLOW_SHORTCUT_TASK_QUEUEING_MILLIS;
+    }
+
+    /**
+     * The number of empty query shortcuts for each source that are kept ranked in memory,
+     * so that QSB can show them as soon as it opens. Should be at least
+     * {@link #getMaxShortcutsReturned()}.
+     */
+    public int getMaxZeroQueryShortcutsCached() {
+        return MAX_ZERO_QUERY_SHORTCUTS_CACHED;
+    }
+
+    /**
+     * How long the empty query shortcuts kept in memory may be used without re-ranking them.
+     */
+    public long getZeroQueryShortcutsMaxAgeMillis() {
+        return ZERO_QUERY_SHORTCUTS_MAX_AGE_MILLIS;
+    }
+
     public int getNumWebCorpusThreads() {
         return NUM_WEB_CORPUS_THREADS;
     }
 
+    /**
+     * The maximum number of threads used to query sources, shared by all sources.
+     */
+    public int getNumQueryThreads() {
+        return NUM_QUERY_THREADS;
+    }
+
+    /**
+     * The maximum number of threads used to load icons, shared by all sources.
+     */
+    public int getNumIconLoaderThreads() {
+        return NUM_ICON_LOADER_THREADS;
+    }
+
+    /**
+     * How long an idle query or icon loader thread is kept around, in milliseconds.
+     */
+    public long getIdleThreadKeepAliveMillis() {
+        return IDLE_THREAD_KEEP_ALIVE_MILLIS;
+    }
+
     /**
      * How often query latency should be logged.
      *
@@ -262,6 +420,15 @@ public class Config {
         return PUBLISH_RESULT_DELAY_MILLIS;
     }
 
+    /**
+     * The minimum interval in milliseconds between two notifications of suggestion changes
+     * to the UI. This is about one display frame, so that all the results that arrive
+     * within a frame cause only one update of the suggestion list.
+     */
+    public long getSuggestionsNotifyIntervalMillis() {
+        return SUGGESTIONS_NOTIFY_INTERVAL_MILLIS;
+    }
+
     public boolean allowVoiceSearchHints() {
         return true;
     }
@@ -342,6 +509,52 @@ public class Config {
         return HTTP_READ_TIMEOUT_MILLIS;
     }
 
+    /**
+     * The maximum number of web suggestion responses to keep in memory.
+     */
+    public int getWebSuggestCacheMemoryEntries() {
+        return WEB_SUGGEST_CACHE_MEMORY_ENTRIES;
+    }
+
+    /**
+     * The maximum number of web suggestion responses to keep on disk.
+     */
+    public int getWebSuggestCacheDiskEntries() {
+        return WEB_SUGGEST_CACHE_DISK_ENTRIES;
+    }
+
+    /**
+     * How long a cached web suggestion response is used without asking the server again.
+     */
+    public long getWebSuggestCacheFreshMillis() {
+        return WEB_SUGGEST_CACHE_FRESH_MILLIS;
+    }
+
+    /**
+     * How long a cached web suggestion response may be shown for, while a new one
+     * is fetched in the background.
+     */
+    public long getWebSuggestCacheMaxStaleMillis() {
+        return WEB_SUGGEST_CACHE_MAX_STALE_MILLIS;
+    }
+
+    /**
+     * Average web suggestion request latency at which the network is considered slow,
+     * and suggestions cached for a prefix of the query are shown instead of waiting.
+     */
+    public long getSlowWebSuggestLatencyMillis() {
+        return SLOW_WEB_SUGGEST_LATENCY_MILLIS;
+    }
+
+    /**
+     * When web suggestion queries arrive less than this far apart, each one waits until
+     * this long after it started before making a request. A request is not made if a
+     * longer query that extends it arrives meanwhile.
+     */
+    public long getWebSuggestDebounceMillis() {
+        return WEB_SUGGEST_DEBOUNCE_MILLIS;
+    }
+
     public String getUserAgent() {
         return USER_AGENT;
     }
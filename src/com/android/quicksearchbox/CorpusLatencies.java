@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Keeps track of the observed query latency of each corpus.
+ *
+ * This class is thread safe.
+ */
+public class CorpusLatencies {
+
+    /** The weight given to the newest sample in the moving average. */
+    private static final float EWMA_WEIGHT = 0.25f;
+
+    /** The number of recent samples to keep for computing percentiles. */
+    private static final int MAX_SAMPLES = 20;
+
+    private final HashMap<String, Stats> mStats = new HashMap<String, Stats>();
+
+    /**
+     * Records the latency of a query.
+     *
+     * @param corpusName The name of the corpus that was queried.
+     * @param latency The latency of the query in milliseconds.
+     */
+    public synchronized void addLatency(String corpusName, int latency) {
+        Stats stats = mStats.get(corpusName);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(corpusName, stats);
+        }
+        stats.add(latency);
+    }
+
+    /**
+     * Gets the exponentially weighted moving average of the latencies of a corpus.
+     *
+     * @return The average latency in milliseconds, or {@code -1} if no latencies have
+     *         been recorded for the corpus.
+     */
+    public synchronized int getAverageLatency(String corpusName) {
+        Stats stats = mStats.get(corpusName);
+        return stats == null ? -1 : Math.round(stats.mAverage);
+    }
+
+    /**
+     * Gets a percentile of the recent latencies of a corpus.
+     *
+     * @param percent The percentile to get, between 0 and 100.
+     * @return The latency in milliseconds, or {@code -1} if no latencies have
+     *         been recorded for the corpus.
+     */
+    public synchronized int getLatencyPercentile(String corpusName, int percent) {
+        Stats stats = mStats.get(corpusName);
+        return stats == null ? -1 : stats.getPercentile(percent);
+    }
+
+    private static class Stats {
+        private float mAverage;
+        /** Ring buffer of the most recent samples. */
+        private final int[] mSamples = new int[MAX_SAMPLES];
+        private final int[] mSorted = new int[MAX_SAMPLES];
+        private int mSampleCount;
+        private int mNextSample;
+
+        public void add(int latency) {
+            if (mSampleCount > 0) {
+                mAverage += EWMA_WEIGHT * (latency - mAverage);
+            } else {
+                mAverage = latency;
+            }
+            mSamples[mNextSample] = latency;
+            mNextSample = (mNextSample + 1) % MAX_SAMPLES;
+            if (mSampleCount < MAX_SAMPLES) {
+                mSampleCount++;
+            }
+        }
+
+        public int getPercentile(int percent) {
+            System.arraycopy(mSamples, 0, mSorted, 0, mSampleCount);
+            Arrays.sort(mSorted, 0, mSampleCount);
+            int index = (percent * mSampleCount + 99) / 100 - 1;
+            return mSorted[Math.max(0, Math.min(index, mSampleCount - 1))];
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.json.JSONException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, per-corpus LRU cache of corpus result snapshots, keyed by normalized query.
+ *
+ * The cached rows are copied out of the original results, so the cache stays valid
+ * after the original {@link CorpusResult} objects have been closed.
+ *
+ * This class is thread safe.
+ */
+public class CorpusResultCache {
+
+    private static final boolean DBG = false;
+    private static final String TAG = "QSB.CorpusResultCache";
+
+    private final int mMaxEntriesPerCorpus;
+
+    private final long mTtlMillis;
+
+    /** Corpus name -> LRU map of normalized query -> snapshot. */
+    private final HashMap<String, LinkedHashMap<String, Snapshot>> mCorpusCaches;
+
+    /**
+     * @param maxEntriesPerCorpus The maximum number of queries to remember for each corpus.
+     * @param ttlMillis How long a cached result may be used for, in milliseconds.
+     */
+    public CorpusResultCache(int maxEntriesPerCorpus, long ttlMillis) {
+        mMaxEntriesPerCorpus = maxEntriesPerCorpus;
+        mTtlMillis = ttlMillis;
+        mCorpusCaches = new HashMap<String, LinkedHashMap<String, Snapshot>>();
+    }
+
+    /**
+     * Gets a cached result for the given corpus and query.
+     *
+     * @return A new {@link CorpusResult} for {@code query}, or {@code null} if there is
+     *         no fresh entry in the cache. The caller owns the returned result.
+     */
+    public CorpusResult get(Corpus corpus, String query) {
+        return get(corpus, query, SystemClock.uptimeMillis());
+    }
+
+    @VisibleForTesting
+    synchronized CorpusResult get(Corpus corpus, String query, long now) {
+        LinkedHashMap<String, Snapshot> cache = mCorpusCaches.get(corpus.getName());
+        if (cache == null) return null;
+        String key = normalizeQuery(query);
+        Snapshot snapshot = cache.get(key);
+        if (snapshot == null) return null;
+        if (now - snapshot.mTime > mTtlMillis) {
+            if (DBG) Log.d(TAG, "Expired: " + corpus.getName() + "[" + query + "]");
+            cache.remove(key);
+            return null;
+        }
+        if (DBG) Log.d(TAG, "Hit: " + corpus.getName() + "[" + query + "]");
+        return new CachedResult(corpus, query, snapshot.mSuggestions);
+    }
+
+    /**
+     * Builds a provisional result for a query from the cached result for the longest
+     * shorter prefix of that query, keeping only the rows accepted by {@code filter}.
+     *
+     * @return A new {@link CorpusResult} for {@code query}, or {@code null} if no fresh
+     *         entry exists for any prefix of the query.
+     */
+    public CorpusResult getForPrefix(Corpus corpus, String query, SuggestionFilter filter) {
+        return getForPrefix(corpus, query, filter, SystemClock.uptimeMillis());
+    }
+
+    @VisibleForTesting
+    CorpusResult getForPrefix(Corpus corpus, String query, SuggestionFilter filter, long now) {
+        List<Suggestion> prefixSuggestions = null;
+        synchronized (this) {
+            LinkedHashMap<String, Snapshot> cache = mCorpusCaches.get(corpus.getName());
+            if (cache == null) return null;
+            String key = normalizeQuery(query);
+            for (int len = key.length() - 1; len > 0; len--) {
+                Snapshot snapshot = cache.get(key.substring(0, len));
+                if (snapshot != null && now - snapshot.mTime <= mTtlMillis) {
+                    prefixSuggestions = snapshot.mSuggestions;
+                    break;
+                }
+            }
+        }
+        if (prefixSuggestions == null) return null;
+        ArrayList<Suggestion> filtered = new ArrayList<Suggestion>(prefixSuggestions.size());
+        for (Suggestion suggestion : prefixSuggestions) {
+            if (filter.accept(suggestion)) {
+                filtered.add(suggestion);
+            }
+        }
+        if (DBG) Log.d(TAG, "Prefix hit: " + corpus.getName() + "[" + query + "] n="
+                + filtered.size());
+        return new CachedResult(corpus, query, filtered);
+    }
+
+    /**
+     * Stores a snapshot of the given result. Results from the cache itself are ignored.
+     * Must be called before {@code result} is closed. The rows are copied on the calling
+     * thread, so this should be called on the thread that produced the result, rather
+     * than the UI thread.
+     */
+    public void put(CorpusResult result) {
+        put(result, SystemClock.uptimeMillis());
+    }
+
+    @VisibleForTesting
+    void put(CorpusResult result, long now) {
+        if (result == null || result instanceof CachedResult) return;
+        // Copy the rows outside the lock, this may hit the underlying cursor
+        put(result.getCorpus(), result.getUserQuery(), copySuggestions(result), now);
+    }
+
+    /**
+     * Stores the result for a query, given as suggestions already copied with
+     * {@link #copySuggestions}. The cache keeps the list, so it must not be modified.
+     */
+    public void put(Corpus corpus, String query, List<Suggestion> suggestions) {
+        put(corpus, query, suggestions, SystemClock.uptimeMillis());
+    }
+
+    private void put(Corpus corpus, String query, List<Suggestion> suggestions, long now) {
+        Snapshot snapshot = new Snapshot(suggestions, now);
+        String corpusName = corpus.getName();
+        synchronized (this) {
+            LinkedHashMap<String, Snapshot> cache = mCorpusCaches.get(corpusName);
+            if (cache == null) {
+                cache = new LruMap(mMaxEntriesPerCorpus);
+                mCorpusCaches.put(corpusName, cache);
+            }
+            cache.put(normalizeQuery(query), snapshot);
+        }
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    public synchronized void clear() {
+        mCorpusCaches.clear();
+    }
+
+    private static String normalizeQuery(String query) {
+        return query.toLowerCase();
+    }
+
+    /**
+     * Copies the rows of a cursor into suggestions that stay valid after it is closed.
+     * Moves the cursor, so it must be called on the thread that owns the cursor.
+     */
+    public static ArrayList<Suggestion> copySuggestions(SuggestionCursor cursor) {
+        int count = cursor.getCount();
+        ArrayList<Suggestion> suggestions = new ArrayList<Suggestion>(count);
+        for (int i = 0; i < count; i++) {
+            cursor.moveTo(i);
+            suggestions.add(copySuggestion(cursor));
+        }
+        return suggestions;
+    }
+
+    private static SuggestionData copySuggestion(Suggestion suggestion) {
+        SuggestionData copy = new SuggestionData(suggestion.getSuggestionSource())
+                .setFormat(suggestion.getSuggestionFormat())
+                .setText1(suggestion.getSuggestionText1())
+                .setText2(suggestion.getSuggestionText2())
+                .setText2Url(suggestion.getSuggestionText2Url())
+                .setIcon1(suggestion.getSuggestionIcon1())
+                .setIcon2(suggestion.getSuggestionIcon2())
+                .setIntentAction(suggestion.getSuggestionIntentAction())
+                .setIntentData(suggestion.getSuggestionIntentDataString())
+                .setIntentExtraData(suggestion.getSuggestionIntentExtraData())
+                .setSuggestionQuery(suggestion.getSuggestionQuery())
+                .setShortcutId(suggestion.getShortcutId())
+                .setSpinnerWhileRefreshing(suggestion.isSpinnerWhileRefreshing())
+                .setSuggestionLogType(suggestion.getSuggestionLogType())
+                .setIsShortcut(suggestion.isSuggestionShortcut())
+                .setIsHistory(suggestion.isHistorySuggestion());
+        SuggestionExtras extras = suggestion.getExtras();
+        if (extras != null) {
+            try {
+                copy.setExtras(new JsonBackedSuggestionExtras(extras));
+            } catch (JSONException e) {
+                Log.w(TAG, "Could not copy suggestion extras", e);
+            }
+        }
+        return copy;
+    }
+
+    private static class Snapshot {
+        private final List<Suggestion> mSuggestions;
+        private final long mTime;
+
+        public Snapshot(List<Suggestion> suggestions, long time) {
+            mSuggestions = suggestions;
+            mTime = time;
+        }
+    }
+
+    private static class LruMap extends LinkedHashMap<String, Snapshot> {
+        private final int mMaxSize;
+
+        public LruMap(int maxSize) {
+            super(maxSize + 1, 1.0f, true);
+            mMaxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+            return size() > mMaxSize;
+        }
+    }
+
+    /**
+     * A corpus result backed by a cached snapshot.
+     */
+    private static class CachedResult extends ListSuggestionCursor implements CorpusResult {
+
+        private final Corpus mCorpus;
+
+        public CachedResult(Corpus corpus, String userQuery, List<Suggestion> suggestions) {
+            super(userQuery, suggestions.size());
+            mCorpus = corpus;
+            for (Suggestion suggestion : suggestions) {
+                add(suggestion);
+            }
+        }
+
+        public Corpus getCorpus() {
+            return mCorpus;
+        }
+
+        public int getLatency() {
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + getCorpus() + "[" + getUserQuery() + "];cached;n=" + getCount() + "}";
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.android.quicksearchbox;
 
 import com.android.quicksearchbox.util.CachedLater;
 import com.android.quicksearchbox.util.Consumer;
+import com.android.quicksearchbox.util.NoOpConsumer;
 
 import android.database.DataSetObserver;
 import android.util.Log;
@@ -31,7 +32,7 @@ import java.util.Map;
 
 /**
  * A corpus ranker that uses corpus scores from the shortcut repository to rank
- * corpora.
+ * corpora. The ranking is cached until the corpora or the scores change.
  */
 public class DefaultCorpusRanker implements CorpusRanker {
 
@@ -53,8 +54,9 @@ public class DefaultCorpusRanker implements CorpusRanker {
      */
     public DefaultCorpusRanker(Corpora corpora, ShortcutRepository shortcuts) {
         mCorpora = corpora;
-        mCorpora.registerDataSetObserver(new CorporaObserver());
+        mCorpora.registerDataSetObserver(new ClearingObserver());
         mShortcuts = shortcuts;
+        mShortcuts.registerCorpusScoresObserver(new RerankingObserver());
         mRankedCorpora = new RankedCorporaCache();
     }
 
@@ -66,13 +68,25 @@ public class DefaultCorpusRanker implements CorpusRanker {
         mRankedCorpora.clear();
     }
 
-    private class CorporaObserver extends DataSetObserver {
+    private class ClearingObserver extends DataSetObserver {
         @Override
         public void onChanged() {
             clear();
         }
     }
 
+    /**
+     * Ranks the corpora again as soon as the scores change, so that the ranking is
+     * ready when the next search starts.
+     */
+    private class RerankingObserver extends DataSetObserver {
+        @Override
+        public void onChanged() {
+            clear();
+            mRankedCorpora.getLater(new NoOpConsumer<List<Corpus>>());
+        }
+    }
+
     private class RankedCorporaCache extends CachedLater<List<Corpus>> {
 
         @Override
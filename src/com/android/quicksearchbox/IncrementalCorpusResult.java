@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import android.database.DataSetObserver;
+
+import java.util.List;
+
+/**
+ * A corpus result that may be published before all its suggestions are available.
+ * Suggestions are added as they arrive, and the registered {@link DataSetObserver}s
+ * are notified after each update, including the one that completes the result.
+ *
+ * An incremental result is only updated on the thread that it was published on,
+ * and must only be accessed on that thread.
+ */
+public interface IncrementalCorpusResult extends CorpusResult {
+
+    /**
+     * Checks whether all the suggestions have been added. The latency of an incomplete
+     * result is not known yet.
+     */
+    boolean isComplete();
+
+    /**
+     * Gets copies of the suggestions that stay valid after this result is closed, in
+     * the same order. The copies are made as the suggestions arrive, on the threads
+     * they arrive on, so that the result can be cached without reading its rows on the
+     * thread it is published on.
+     *
+     * @return The copies, or {@code null} if some of the suggestions have none.
+     */
+    List<Suggestion> getSuggestionCopies();
+
+}
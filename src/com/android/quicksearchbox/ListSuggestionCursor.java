@@ -67,6 +67,15 @@ public class ListSuggestionCursor extends AbstractSuggestionCursorWrapper {
         return true;
     }
 
+    /**
+     * Removes all suggestions.
+     */
+    protected void clear() {
+        mSuggestions.clear();
+        mExtraColumns = null;
+        mPos = 0;
+    }
+
     public void close() {
         mSuggestions.clear();
     }
@@ -106,6 +115,13 @@ public class ListSuggestionCursor extends AbstractSuggestionCursorWrapper {
         return mSuggestions.get(mPos).get();
     }
 
+    /**
+     * Gets the suggestion at a position, without moving the cursor.
+     */
+    protected Suggestion getSuggestion(int pos) {
+        return mSuggestions.get(pos).get();
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "{[" + getUserQuery() + "] " + mSuggestions + "}";
@@ -16,23 +16,40 @@
 
 package com.android.quicksearchbox;
 
-
-import com.android.quicksearchbox.util.BarrierConsumer;
+import com.android.quicksearchbox.util.CancellationSignal;
+import com.android.quicksearchbox.util.Consumer;
+import com.android.quicksearchbox.util.Consumers;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.concurrent.Executor;
 
 /**
  * Base class for corpora backed by multiple sources.
+ *
+ * The sources are queried in parallel, and their results are collected as they arrive,
+ * without blocking a thread per corpus query.
  */
-public abstract class MultiSourceCorpus extends AbstractCorpus {
+public abstract class MultiSourceCorpus extends AbstractCorpus
+        implements AsyncSuggestionCursorProvider<CorpusResult> {
+
+    private static final boolean DBG = false;
+    private static final String TAG = "QSB.MultiSourceCorpus";
 
     private final Executor mExecutor;
 
+    /** Used to complete queries whose sources miss the source timeout. */
+    private final Handler mTimeoutHandler;
+
     private final ArrayList<Source> mSources;
 
     // calculated values based on properties of sources:
@@ -46,6 +63,7 @@ public abstract class MultiSourceCorpus extends AbstractCorpus {
             Executor executor, Source... sources) {
         super(context, config);
         mExecutor = executor;
+        mTimeoutHandler = new Handler(Looper.getMainLooper());
 
         mSources = new ArrayList<Source>();
         for (Source source : sources) {
@@ -71,7 +89,8 @@ public abstract class MultiSourceCorpus extends AbstractCorpus {
      * This method should not call {@link Result#fill}.
      *
      * @param query The query text.
-     * @param results The results of the queries.
+     * @param results The results of the queries. When querying the sources, this is
+     *        initially empty, and the source results are added as they arrive.
      * @param latency Latency in milliseconds of the suggestion queries.
      * @return An instance of {@link Result} or a subclass of it.
      */
@@ -134,22 +153,315 @@ public abstract class MultiSourceCorpus extends AbstractCorpus {
         return mIncludeInAll;
     }
 
-    public CorpusResult getSuggestions(String query, int queryLimit, boolean onlyCorpus) {
-        LatencyTracker latencyTracker = new LatencyTracker();
+    /**
+     * Gets suggestions from all the sources to query, blocking until they have all
+     * returned, the source timeout expires, or the query is canceled. Prefer the
+     * non-blocking
+     * {@link #getSuggestions(String, int, boolean, CancellationSignal, Handler, Consumer)}.
+     */
+    public CorpusResult getSuggestions(String query, int queryLimit, boolean onlyCorpus,
+            CancellationSignal cancellationSignal) {
+        SourceResultFanIn fanIn = startQueries(query, queryLimit, onlyCorpus,
+                cancellationSignal, null, null);
+        return fanIn.awaitResult(getConfig().getSourceTimeoutMillis());
+    }
+
+    public void getSuggestions(String query, int queryLimit, boolean onlyCorpus,
+            CancellationSignal cancellationSignal, Handler handler,
+            Consumer<CorpusResult> consumer) {
+        SourceResultFanIn fanIn = startQueries(query, queryLimit, onlyCorpus,
+                cancellationSignal, handler, consumer);
+        if (!fanIn.isDone()) {
+            // Don't let a hung source hold up the whole corpus
+            Handler timeoutHandler = handler == null ? mTimeoutHandler : handler;
+            timeoutHandler.postDelayed(fanIn.mTimeoutTask, getConfig().getSourceTimeoutMillis());
+        }
+    }
+
+    private SourceResultFanIn startQueries(String query, int queryLimit, boolean onlyCorpus,
+            CancellationSignal cancellationSignal, Handler handler,
+            Consumer<CorpusResult> consumer) {
         List<Source> sources = getSourcesToQuery(query, onlyCorpus);
-        BarrierConsumer<SourceResult> consumer =
-                new BarrierConsumer<SourceResult>(sources.size());
+        Result result = createResult(query, new ArrayList<SourceResult>(sources.size()), 0);
+        SourceResultFanIn fanIn = new SourceResultFanIn(result, sources.size(),
+                cancellationSignal, handler, consumer);
         boolean onlySource = sources.size() == 1;
+        // Results from sources that miss the deadline are closed when they arrive.
+        long deadline = SystemClock.uptimeMillis() + getConfig().getSourceTimeoutMillis();
         for (Source source : sources) {
             QueryTask<SourceResult> task = new QueryTask<SourceResult>(query, queryLimit,
-                    source, null, consumer, onlySource);
+                    source, null, fanIn, onlySource, deadline, cancellationSignal);
             mExecutor.execute(task);
         }
-        ArrayList<SourceResult> results = consumer.getValues();
-        int latency = latencyTracker.getLatency();
-        Result result = createResult(query, results, latency);
-        result.fill();
-        return result;
+        if (sources.isEmpty()) {
+            fanIn.finish();
+        }
+        return fanIn;
+    }
+
+    /**
+     * Collects the source results for one query into a {@link Result}. The result is
+     * complete when all sources have returned, when the source timeout expires, or when
+     * the query is canceled, whichever happens first. Source results that arrive after
+     * that are rejected.
+     *
+     * Without a handler, the result is filled on the source threads, and passed to the
+     * consumer when complete. With a handler, the result is passed to the consumer as
+     * soon as the first source returns, and then updated on the handler as the other
+     * sources return. Each time a source returns, a new result is filled with all the
+     * source results so far, on the thread of that source. The handler only swaps the
+     * rows of the latest filled result into the published one, so it never reads the
+     * source results itself.
+     */
+    private class SourceResultFanIn implements Consumer<SourceResult>,
+            CancellationSignal.OnCancelListener {
+
+        private final Result mResult;
+        private final int mExpectedCount;
+        private final LatencyTracker mLatencyTracker = new LatencyTracker();
+        private final CancellationSignal mCancellationSignal;
+        private final Handler mHandler;
+
+        /** Called with the result, or {@code null} if a thread is waiting for it. */
+        private final Consumer<CorpusResult> mConsumer;
+
+        private final Runnable mTimeoutTask = new Runnable() {
+            public void run() {
+                if (DBG) Log.d(TAG, "Source timeout for " + mResult);
+                finish();
+            }
+        };
+
+        private final Runnable mUpdateTask = new Runnable() {
+            public void run() {
+                update();
+            }
+        };
+
+        // Guarded by this
+        /** The source results accepted so far, in order of arrival. Only with a handler. */
+        private final ArrayList<SourceResult> mArrived = new ArrayList<SourceResult>();
+        /** The latest filled result that has not been swapped in yet. */
+        private Result mSnapshot;
+        /** The number of source results in the latest filled result. */
+        private int mFilledCount = 0;
+        private int mCount = 0;
+        private boolean mDone = false;
+        private boolean mUpdatePosted = false;
+
+        /** Whether the result has been passed to the consumer. Only used on mHandler. */
+        private boolean mPublished = false;
+
+        /**
+         * The number of arrived source results that have been swapped into the result,
+         * or closed. Only used on mHandler.
+         */
+        private int mHandledCount = 0;
+
+        /** Whether to copy the suggestions of each source result, for the result cache. */
+        private final boolean mCopySuggestions;
+
+        public SourceResultFanIn(Result result, int expectedCount,
+                CancellationSignal cancellationSignal, Handler handler,
+                Consumer<CorpusResult> consumer) {
+            mResult = result;
+            mExpectedCount = expectedCount;
+            mCancellationSignal = cancellationSignal;
+            mHandler = handler;
+            mConsumer = consumer;
+            mCopySuggestions = getConfig().getMaxCachedResultsPerCorpus() > 0;
+            if (mCancellationSignal != null) {
+                mCancellationSignal.addOnCancelListener(this);
+            }
+        }
+
+        public void onCancel() {
+            if (DBG) Log.d(TAG, "Canceled " + mResult);
+            finish();
+        }
+
+        private void removeCancelListener() {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.removeOnCancelListener(this);
+            }
+        }
+
+        public boolean consume(SourceResult sourceResult) {
+            // Copied here, on the source thread, so that the complete result can be
+            // cached without reading the source results on the handler
+            List<Suggestion> copies = mCopySuggestions && !isDone()
+                    ? CorpusResultCache.copySuggestions(sourceResult) : null;
+            synchronized (this) {
+                if (mDone) return false;
+                mCount++;
+                if (copies != null) {
+                    mResult.putSuggestionCopies(sourceResult, copies);
+                }
+                if (mHandler != null) {
+                    mArrived.add(sourceResult);
+                    if (mCount >= mExpectedCount) mDone = true;
+                } else {
+                    mResult.addSourceResults(Collections.singletonList(sourceResult));
+                    if (mCount < mExpectedCount) return true;
+                }
+            }
+            if (mHandler != null) {
+                fillSnapshot();
+            } else {
+                finish();
+            }
+            return true;
+        }
+
+        /**
+         * Fills a new result with all the source results that have arrived, and posts it
+         * to mHandler. Runs on the source threads.
+         */
+        private void fillSnapshot() {
+            ArrayList<SourceResult> arrived;
+            synchronized (this) {
+                arrived = new ArrayList<SourceResult>(mArrived);
+            }
+            Result snapshot = mResult.createSnapshot(arrived);
+            synchronized (this) {
+                // Another source thread may have filled a newer one meanwhile
+                if (arrived.size() <= mFilledCount) return;
+                mFilledCount = arrived.size();
+                mSnapshot = snapshot;
+                postUpdateLocked();
+            }
+        }
+
+        /**
+         * Checks whether the fan-in has stopped accepting source results.
+         */
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * Marks the result as complete, and passes it to the consumer, if any.
+         */
+        public void finish() {
+            if (mHandler != null) {
+                synchronized (this) {
+                    mDone = true;
+                    postUpdateLocked();
+                }
+                return;
+            }
+            synchronized (this) {
+                if (mResult.isComplete()) return;
+                mDone = true;
+                mResult.setComplete(mLatencyTracker.getLatency());
+                notifyAll();
+            }
+            removeCancelListener();
+            if (mConsumer != null) {
+                mTimeoutHandler.removeCallbacks(mTimeoutTask);
+                if (CancellationSignal.isCanceled(mCancellationSignal)) {
+                    // Nobody wants the partial result
+                    mResult.close();
+                } else {
+                    Consumers.consumeCloseable(mConsumer, mResult);
+                }
+            }
+        }
+
+        private void postUpdateLocked() {
+            if (!mUpdatePosted) {
+                mUpdatePosted = true;
+                mHandler.post(mUpdateTask);
+            }
+        }
+
+        /**
+         * Swaps the latest filled result into the result. Runs on mHandler.
+         */
+        private void update() {
+            Result snapshot;
+            boolean done;
+            synchronized (this) {
+                snapshot = mSnapshot;
+                mSnapshot = null;
+                mUpdatePosted = false;
+                // Not done until the last source result to arrive has been filled
+                done = mDone && mFilledCount == mArrived.size();
+            }
+            boolean canceled = CancellationSignal.isCanceled(mCancellationSignal);
+            if (canceled || mResult.isClosed() || mResult.isComplete()) {
+                // The consumer has closed or rejected the result, or no longer wants it
+                closeUnhandledResults();
+                if (canceled) {
+                    mHandler.removeCallbacks(mTimeoutTask);
+                    if (!mPublished) {
+                        mPublished = true;
+                        mResult.close();
+                    }
+                }
+                return;
+            }
+            if (snapshot != null) {
+                mResult.setSnapshot(snapshot);
+                mHandledCount = snapshot.getResults().size();
+            } else if (!done) {
+                // Posted by finish() while a source result is being filled, the source
+                // thread posts another update when it's done
+                return;
+            }
+            if (done) {
+                removeCancelListener();
+                mHandler.removeCallbacks(mTimeoutTask);
+                mResult.setComplete(mLatencyTracker.getLatency());
+            }
+            if (!mPublished) {
+                mPublished = true;
+                Consumers.consumeCloseable(mConsumer, mResult);
+            } else {
+                mResult.notifyDataSetChanged();
+            }
+        }
+
+        /**
+         * Closes the arrived source results that have not been swapped into the result.
+         * Runs on mHandler.
+         */
+        private void closeUnhandledResults() {
+            // No source thread may read the source results after this
+            mResult.stopSnapshots();
+            ArrayList<SourceResult> unhandled;
+            synchronized (this) {
+                unhandled = new ArrayList<SourceResult>(
+                        mArrived.subList(mHandledCount, mArrived.size()));
+            }
+            mHandledCount += unhandled.size();
+            for (SourceResult sourceResult : unhandled) {
+                sourceResult.close();
+            }
+        }
+
+        /**
+         * Blocks until all sources have returned, until the timeout expires, or until
+         * the thread is interrupted. Only used without a handler.
+         *
+         * @return The result, containing the source results received so far.
+         */
+        public Result awaitResult(long timeoutMillis) {
+            synchronized (this) {
+                long end = SystemClock.uptimeMillis() + timeoutMillis;
+                try {
+                    while (!mDone) {
+                        long waitMillis = end - SystemClock.uptimeMillis();
+                        if (waitMillis <= 0) break;
+                        wait(waitMillis);
+                    }
+                } catch (InterruptedException ex) {
+                    // Return the results that we've gotten so far
+                }
+            }
+            finish();
+            return mResult;
+        }
     }
 
     /**
@@ -158,11 +470,25 @@ public abstract class MultiSourceCorpus extends AbstractCorpus {
      * {@link MultiSourceCorpus#createResult} and return an instance of this class or a
      * subclass.
      */
-    protected class Result extends ListSuggestionCursor implements CorpusResult {
+    protected class Result extends ListSuggestionCursor implements IncrementalCorpusResult {
 
         private final ArrayList<SourceResult> mResults;
 
-        private final int mLatency;
+        private int mLatency;
+
+        private boolean mComplete = false;
+
+        private boolean mClosed = false;
+
+        /** Guards filling snapshots against closing the source results. */
+        private final Object mSnapshotLock = new Object();
+
+        // Guarded by mSnapshotLock
+        private boolean mSnapshotsStopped = false;
+
+        /** Copies of the suggestions of each source result. Guarded by itself. */
+        private final IdentityHashMap<SourceResult, List<Suggestion>> mSuggestionCopies =
+                new IdentityHashMap<SourceResult, List<Suggestion>>();
 
         public Result(String userQuery, ArrayList<SourceResult> results, int latency) {
             super(userQuery);
@@ -174,16 +500,112 @@ public abstract class MultiSourceCorpus extends AbstractCorpus {
             return mResults;
         }
 
+        /**
+         * Adds some source results, and refills the list of suggestions.
+         */
+        private void addSourceResults(List<SourceResult> results) {
+            mResults.addAll(results);
+            clear();
+            fill();
+        }
+
+        /**
+         * Creates a new result and fills it with the given source results. Runs on the
+         * source threads.
+         *
+         * @return The filled result, or {@code null} if this result is closed, or no
+         *         longer takes snapshots.
+         */
+        private Result createSnapshot(ArrayList<SourceResult> results) {
+            synchronized (mSnapshotLock) {
+                if (mSnapshotsStopped) return null;
+                Result snapshot = createResult(getUserQuery(), results, 0);
+                snapshot.fill();
+                return snapshot;
+            }
+        }
+
+        /**
+         * Stops filling snapshots, waiting for one being filled, so that the source
+         * results can be closed.
+         */
+        private void stopSnapshots() {
+            synchronized (mSnapshotLock) {
+                mSnapshotsStopped = true;
+            }
+        }
+
+        /**
+         * Replaces the source results and suggestions with those of a filled snapshot.
+         * Does not read the source results.
+         */
+        private void setSnapshot(Result snapshot) {
+            mResults.clear();
+            mResults.addAll(snapshot.getResults());
+            clear();
+            int count = snapshot.getCount();
+            for (int i = 0; i < count; i++) {
+                add(snapshot.getSuggestion(i));
+            }
+        }
+
+        private void putSuggestionCopies(SourceResult result, List<Suggestion> copies) {
+            synchronized (mSuggestionCopies) {
+                mSuggestionCopies.put(result, copies);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Only rows added by {@link #fill} as {@link SuggestionPosition}s in the source
+         * results have copies.
+         */
+        public List<Suggestion> getSuggestionCopies() {
+            int count = getCount();
+            ArrayList<Suggestion> copies = new ArrayList<Suggestion>(count);
+            synchronized (mSuggestionCopies) {
+                for (int i = 0; i < count; i++) {
+                    Suggestion suggestion = getSuggestion(i);
+                    if (!(suggestion instanceof SuggestionPosition)) return null;
+                    SuggestionPosition position = (SuggestionPosition) suggestion;
+                    List<Suggestion> sourceCopies = mSuggestionCopies.get(position.getCursor());
+                    if (sourceCopies == null || position.getPosition() >= sourceCopies.size()) {
+                        return null;
+                    }
+                    copies.add(sourceCopies.get(position.getPosition()));
+                }
+            }
+            return copies;
+        }
+
+        private void setComplete(int latency) {
+            mLatency = latency;
+            mComplete = true;
+        }
+
+        public boolean isComplete() {
+            return mComplete;
+        }
+
+        private boolean isClosed() {
+            return mClosed;
+        }
+
         /**
          * Fills the list of suggestions using the list of results.
          * The default implementation concatenates the results.
+         *
+         * This is called each time source results arrive, on the thread they arrive on,
+         * so that the results are always ordered the same way. Other threads may be
+         * reading the same source results, so implementations must not move them, and
+         * should add rows by position.
          */
         public void fill() {
             for (SourceResult result : getResults()) {
                 int count = result.getCount();
                 for (int i = 0; i < count; i++) {
-                    result.moveTo(i);
-                    add(new SuggestionPosition(result));
+                    add(new SuggestionPosition(result, i));
                 }
             }
         }
@@ -198,15 +620,21 @@ public abstract class MultiSourceCorpus extends AbstractCorpus {
 
         @Override
         public void close() {
+            stopSnapshots();
             super.close();
+            mClosed = true;
             for (SourceResult result : mResults) {
                 result.close();
             }
+            synchronized (mSuggestionCopies) {
+                mSuggestionCopies.clear();
+            }
         }
 
         @Override
         public String toString() {
-            return "{" + getCorpus() + "[" + getUserQuery() + "]" + ";n=" + getCount() + "}";
+            return "{" + getCorpus() + "[" + getUserQuery() + "]" + ";n=" + getCount()
+                    + (mComplete ? "" : ";incomplete") + "}";
         }
     }
 
@@ -26,9 +26,10 @@ import com.android.quicksearchbox.util.Factory;
 import com.android.quicksearchbox.util.HttpHelper;
 import com.android.quicksearchbox.util.JavaNetHttpHelper;
 import com.android.quicksearchbox.util.NamedTaskExecutor;
-import com.android.quicksearchbox.util.PerNameExecutor;
+import com.android.quicksearchbox.util.NoOpConsumer;
+import com.android.quicksearchbox.util.PooledNamedTaskExecutor;
 import com.android.quicksearchbox.util.PriorityThreadFactory;
-import com.android.quicksearchbox.util.SingleThreadNamedTaskExecutor;
+import com.android.quicksearchbox.util.QueueingDelayExecutor;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import android.app.Activity;
@@ -38,9 +39,11 @@ import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.Process;
 import android.view.ContextThemeWrapper;
 
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -133,6 +136,28 @@ public class QsbApplication {
         }
     }
 
+    protected void onCreate() {
+        checkThread();
+        // Once the process has nothing else to do, start loading the shortcuts and
+        // ranking the corpora, so that the history and the ranking are ready when
+        // QSB opens.
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            public boolean queueIdle() {
+                getShortcutRepository();
+                getCorpusRanker().getCorporaInAll(new NoOpConsumer<List<Corpus>>());
+                return false;
+            }
+        });
+    }
+
+    protected void onLowMemory() {
+        checkThread();
+        if (mShortcutRepository != null) {
+            // Don't lose clicks if the process is killed
+            mShortcutRepository.flush();
+        }
+    }
+
     public synchronized Handler getMainThreadHandler() {
         if (mUiThreadHandler == null) {
             mUiThreadHandler = new Handler(Looper.getMainLooper());
@@ -154,7 +179,9 @@ public class QsbApplication {
     protected NamedTaskExecutor createIconLoaderExecutor() {
         ThreadFactory iconThreadFactory = new PriorityThreadFactory(
                     Process.THREAD_PRIORITY_BACKGROUND);
-        return new PerNameExecutor(SingleThreadNamedTaskExecutor.factory(iconThreadFactory));
+        Config config = getConfig();
+        return new PooledNamedTaskExecutor(iconThreadFactory,
+                config.getNumIconLoaderThreads(), config.getIdleThreadKeepAliveMillis());
     }
 
     /**
@@ -284,9 +311,19 @@ public class QsbApplication {
                 .setThreadFactory(new PriorityThreadFactory(
                         Process.THREAD_PRIORITY_BACKGROUND))
                 .build();
-        Executor logExecutor = Executors.newSingleThreadExecutor(logThreadFactory);
+        ThreadFactory readThreadFactory =
+                new ThreadFactoryBuilder()
+                .setNameFormat("ShortcutRepository read #%d")
+                .setThreadFactory(new PriorityThreadFactory(
+                        Process.THREAD_PRIORITY_DEFAULT))
+                .build();
+        long slowMillis = getConfig().getSlowShortcutTaskQueueingMillis();
+        Executor logExecutor = new QueueingDelayExecutor("ShortcutRepository writes",
+                Executors.newSingleThreadExecutor(logThreadFactory), slowMillis);
+        Executor readExecutor = new QueueingDelayExecutor("ShortcutRepository reads",
+                Executors.newSingleThreadExecutor(readThreadFactory), slowMillis);
         return ShortcutRepositoryImplLog.create(getContext(), getConfig(), getCorpora(),
-            getShortcutRefresher(), getMainThreadHandler(), logExecutor);
+            getShortcutRefresher(), getMainThreadHandler(), logExecutor, readExecutor);
     }
 
     /**
@@ -320,7 +357,9 @@ public class QsbApplication {
 
     protected NamedTaskExecutor createSourceTaskExecutor() {
         ThreadFactory queryThreadFactory = getQueryThreadFactory();
-        return new PerNameExecutor(SingleThreadNamedTaskExecutor.factory(queryThreadFactory));
+        Config config = getConfig();
+        return new PooledNamedTaskExecutor(queryThreadFactory,
+                config.getNumQueryThreads(), config.getIdleThreadKeepAliveMillis());
     }
 
     /**
@@ -415,8 +454,15 @@ public class QsbApplication {
     }
 
     protected GoogleSource createGoogleSource() {
+        ThreadFactory backgroundThreadFactory =
+                new ThreadFactoryBuilder()
+                .setNameFormat("GoogleSuggestClient #%d")
+                .setThreadFactory(new PriorityThreadFactory(
+                        Process.THREAD_PRIORITY_BACKGROUND))
+                .build();
         return new GoogleSuggestClient(getContext(), getMainThreadHandler(),
-                getIconLoaderExecutor(), getConfig());
+                getIconLoaderExecutor(), getConfig(), getHttpHelper(),
+                Executors.newSingleThreadExecutor(backgroundThreadFactory));
     }
 
     /**
@@ -484,9 +530,13 @@ public class QsbApplication {
     }
 
     protected HttpHelper createHttpHelper() {
-        return new JavaNetHttpHelper(
+        Config config = getConfig();
+        HttpHelper helper = new JavaNetHttpHelper(
                 new JavaNetHttpHelper.PassThroughRewriter(),
-                getConfig().getUserAgent());
+                config.getUserAgent());
+        helper.setConnectTimeout(config.getHttpConnectTimeout());
+        helper.setReadTimeout(config.getHttpReadTimeout());
+        return helper;
     }
 
     public synchronized SearchBaseUrlHelper getSearchBaseUrlHelper() {
@@ -22,6 +22,12 @@ public class QsbApplicationWrapper extends Application {
 
     private QsbApplication mApp;
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        getApp().onCreate();
+    }
+
     @Override
     public void onTerminate() {
         synchronized (this) {
@@ -32,6 +38,16 @@ public class QsbApplicationWrapper extends Application {
         super.onTerminate();
     }
 
+    @Override
+    public void onLowMemory() {
+        synchronized (this) {
+            if (mApp != null) {
+                mApp.onLowMemory();
+            }
+        }
+        super.onLowMemory();
+    }
+
     public synchronized QsbApplication getApp() {
         if (mApp == null) {
             mApp = createQsbApplication();
@@ -16,12 +16,14 @@
 
 package com.android.quicksearchbox;
 
+import com.android.quicksearchbox.util.CancellationSignal;
 import com.android.quicksearchbox.util.Consumer;
 import com.android.quicksearchbox.util.Consumers;
 import com.android.quicksearchbox.util.NamedTask;
 import com.android.quicksearchbox.util.NamedTaskExecutor;
 
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -37,9 +39,11 @@ public class QueryTask<C extends SuggestionCursor> implements NamedTask {
     private final Handler mHandler;
     private final Consumer<C> mConsumer;
     private final boolean mTheOnlyOne;
+    private final long mDeadline;
+    private final CancellationSignal mCancellationSignal;
 
     /**
-     * Creates a new query task.
+     * Creates a new query task without a deadline.
      *
      * @param query Query to run.
      * @param queryLimit The number of suggestions to ask each provider for.
@@ -51,12 +55,72 @@ public class QueryTask<C extends SuggestionCursor> implements NamedTask {
      */
     public QueryTask(String query, int queryLimit, SuggestionCursorProvider<C> provider,
             Handler handler, Consumer<C> consumer, boolean onlyTask) {
+        this(query, queryLimit, provider, handler, consumer, onlyTask, 0);
+    }
+
+    /**
+     * Creates a new query task that can not be canceled once started.
+     *
+     * @param query Query to run.
+     * @param queryLimit The number of suggestions to ask each provider for.
+     * @param provider The provider to ask for suggestions.
+     * @param handler Handler that {@link Consumer#consume} will
+     *        get called on. If null, the method is called on the query thread.
+     * @param consumer Consumer to notify when the suggestions have been returned.
+     * @param onlyTask Indicates if this is the only task within a batch.
+     * @param deadline Time, as returned by {@link SystemClock#uptimeMillis}, after which
+     *        the task should not start querying the provider, or {@code 0} for no deadline.
+     *        If the deadline has passed when the task starts, the consumer is not called.
+     */
+    public QueryTask(String query, int queryLimit, SuggestionCursorProvider<C> provider,
+            Handler handler, Consumer<C> consumer, boolean onlyTask, long deadline) {
+        this(query, queryLimit, provider, handler, consumer, onlyTask, deadline, null);
+    }
+
+    /**
+     * Creates a new query task.
+     *
+     * @param query Query to run.
+     * @param queryLimit The number of suggestions to ask each provider for.
+     * @param provider The provider to ask for suggestions.
+     * @param handler Handler that {@link Consumer#consume} will
+     *        get called on. If null, the method is called on the query thread.
+     * @param consumer Consumer to notify when the suggestions have been returned.
+     * @param onlyTask Indicates if this is the only task within a batch.
+     * @param deadline Time, as returned by {@link SystemClock#uptimeMillis}, after which
+     *        the task should not start querying the provider, or {@code 0} for no deadline.
+     *        If the deadline has passed when the task starts, the consumer is not called.
+     * @param cancellationSignal Passed to the provider to stop a running query, or
+     *        {@code null}. If canceled, the consumer is not called.
+     */
+    public QueryTask(String query, int queryLimit, SuggestionCursorProvider<C> provider,
+            Handler handler, Consumer<C> consumer, boolean onlyTask, long deadline,
+            CancellationSignal cancellationSignal) {
         mQuery = query;
         mQueryLimit = queryLimit;
         mProvider = provider;
         mHandler = handler;
         mConsumer = consumer;
         mTheOnlyOne = onlyTask;
+        mDeadline = deadline;
+        mCancellationSignal = cancellationSignal;
+    }
+
+    /**
+     * Gets the deadline of this task.
+     *
+     * @return A time as returned by {@link SystemClock#uptimeMillis}, or {@code 0}
+     *         if the task has no deadline.
+     */
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Checks whether the deadline of this task has passed.
+     */
+    public boolean isPastDeadline() {
+        return mDeadline > 0 && SystemClock.uptimeMillis() > mDeadline;
     }
 
     public String getName() {
@@ -64,8 +128,32 @@ public class QueryTask<C extends SuggestionCursor> implements NamedTask {
     }
 
     public void run() {
-        final C cursor = mProvider.getSuggestions(mQuery, mQueryLimit, mTheOnlyOne);
+        if (isPastDeadline()) {
+            // The task was queued behind a slow query for too long
+            Log.w(TAG, "Deadline passed before start: " + this);
+            return;
+        }
+        if (CancellationSignal.isCanceled(mCancellationSignal)) {
+            if (DBG) Log.d(TAG, "Canceled before start: " + this);
+            return;
+        }
+        if (mProvider instanceof AsyncSuggestionCursorProvider) {
+            // Frees this thread while the provider waits for its own queries
+            @SuppressWarnings("unchecked")
+            AsyncSuggestionCursorProvider<C> asyncProvider =
+                    (AsyncSuggestionCursorProvider<C>) mProvider;
+            asyncProvider.getSuggestions(mQuery, mQueryLimit, mTheOnlyOne, mCancellationSignal,
+                    mHandler, mConsumer);
+            return;
+        }
+        final C cursor = mProvider.getSuggestions(mQuery, mQueryLimit, mTheOnlyOne,
+                mCancellationSignal);
         if (DBG) Log.d(TAG, "Suggestions from " + mProvider + " = " + cursor);
+        if (CancellationSignal.isCanceled(mCancellationSignal)) {
+            if (DBG) Log.d(TAG, "Canceled: " + this);
+            if (cursor != null) cursor.close();
+            return;
+        }
         Consumers.consumeCloseableAsync(mHandler, mConsumer, cursor);
     }
 
@@ -78,11 +166,12 @@ public class QueryTask<C extends SuggestionCursor> implements NamedTask {
             int maxResultsPerProvider,
             Iterable<? extends SuggestionCursorProvider<C>> providers,
             NamedTaskExecutor executor, Handler handler,
-            Consumer<C> consumer, boolean onlyOneProvider) {
+            Consumer<C> consumer, boolean onlyOneProvider, long deadline,
+            CancellationSignal cancellationSignal) {
 
         for (SuggestionCursorProvider<C> provider : providers) {
             QueryTask.startQuery(query, maxResultsPerProvider, provider,
-                    executor, handler, consumer, onlyOneProvider);
+                    executor, handler, consumer, onlyOneProvider, deadline, cancellationSignal);
         }
     }
 
@@ -90,10 +179,11 @@ public class QueryTask<C extends SuggestionCursor> implements NamedTask {
             int maxResultsPerProvider,
             SuggestionCursorProvider<C> provider,
             NamedTaskExecutor executor, Handler handler,
-            Consumer<C> consumer, boolean onlyOneProvider) {
+            Consumer<C> consumer, boolean onlyOneProvider, long deadline,
+            CancellationSignal cancellationSignal) {
 
         QueryTask<C> task = new QueryTask<C>(query, maxResultsPerProvider, provider, handler,
-                consumer, onlyOneProvider);
+                consumer, onlyOneProvider, deadline, cancellationSignal);
         executor.execute(task);
     }
 }
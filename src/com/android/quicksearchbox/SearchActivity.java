@@ -361,6 +361,12 @@ public class SearchActivity extends Activity {
     protected void onResume() {
         if (DBG) Log.d(TAG, "onResume()");
         super.onResume();
+        // Connect to the suggest server while the user starts typing, unless web
+        // suggestions are turned off.
+        Corpus webCorpus = getCorpora().getWebCorpus();
+        if (webCorpus != null && getSettings().isCorpusEnabled(webCorpus)) {
+            getQsbApplication().getGoogleSource().warmUp();
+        }
         updateSuggestionsBuffered();
         mSearchActivityView.onResume();
         if (mTraceStartUp) Debug.stopMethodTracing();
@@ -627,7 +633,9 @@ public class SearchActivity extends Activity {
     private void getCorporaToQuery(Consumer<List<Corpus>> consumer) {
         Corpus corpus = getCorpus();
         if (corpus == null) {
-            getCorpusRanker().getCorporaInAll(Consumers.createAsyncConsumer(mHandler, consumer));
+            // Usually ranked synchronously, from the cached ranking or the in-memory scores
+            getCorpusRanker().getCorporaInAll(
+                    Consumers.createHandlerThreadConsumer(mHandler, consumer));
         } else {
             List<Corpus> corpora = new ArrayList<Corpus>();
             Corpus searchCorpus = getSearchCorpus();
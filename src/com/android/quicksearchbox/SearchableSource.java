@@ -16,6 +16,7 @@
 
 package com.android.quicksearchbox;
 
+import com.android.quicksearchbox.util.CancellationSignal;
 import com.android.quicksearchbox.util.NamedTaskExecutor;
 import com.android.quicksearchbox.util.Util;
 
@@ -309,10 +310,21 @@ public class SearchableSource extends AbstractSource {
         return voiceIntent;
     }
 
-    public SourceResult getSuggestions(String query, int queryLimit, boolean onlySource) {
+    public SourceResult getSuggestions(String query, int queryLimit, boolean onlySource,
+            CancellationSignal cancellationSignal) {
+        if (CancellationSignal.isCanceled(cancellationSignal)) {
+            return new CursorBackedSourceResult(this, query);
+        }
         try {
             Cursor cursor = getSuggestions(getContext(), mSearchable, query, queryLimit);
             if (DBG) Log.d(TAG, toString() + "[" + query + "] returned.");
+            if (CancellationSignal.isCanceled(cancellationSignal)) {
+                // The provider call itself can't be interrupted on all platform versions,
+                // but closing the cursor now avoids filling its window
+                if (DBG) Log.d(TAG, toString() + "[" + query + "] canceled.");
+                if (cursor != null) cursor.close();
+                return new CursorBackedSourceResult(this, query);
+            }
             return new CursorBackedSourceResult(this, query, cursor);
         } catch (RuntimeException ex) {
             Log.e(TAG, toString() + "[" + query + "] failed", ex);
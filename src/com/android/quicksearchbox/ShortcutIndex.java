@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import com.android.quicksearchbox.ShortcutRepositoryImplLog.Shortcuts;
+
+import android.content.ContentValues;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory copy of the shortcuts table, of the shortcut scores for each query prefix
+ * and of the click counts for each corpus, used to look up the shortcuts for a query
+ * and to rank corpora without going to the database.
+ *
+ * The index is filled in by {@link ShortcutRepositoryImplLog} from the database, and then
+ * kept up to date as changes are written to the database.
+ *
+ * This class is thread safe.
+ */
+class ShortcutIndex {
+
+    private final int mMaxPrefixLength;
+
+    // All fields below are guarded by this
+
+    private boolean mLoaded = false;
+
+    /** Shortcut rows, by intent key. */
+    private final HashMap<String, ContentValues> mShortcuts =
+            new HashMap<String, ContentValues>();
+
+    /** Scores, by query prefix and then by intent key. */
+    private final HashMap<String, HashMap<String, Score>> mScores =
+            new HashMap<String, HashMap<String, Score>>();
+
+    /** The query prefixes that have scores for each intent key. */
+    private final HashMap<String, HashSet<String>> mPrefixes =
+            new HashMap<String, HashSet<String>>();
+
+    /** Click counts, by corpus name. */
+    private final HashMap<String, Integer> mCorpusClicks = new HashMap<String, Integer>();
+
+    /**
+     * @param maxPrefixLength The maximum length of the query prefixes to keep scores for.
+     */
+    public ShortcutIndex(int maxPrefixLength) {
+        mMaxPrefixLength = maxPrefixLength;
+    }
+
+    /**
+     * Gets the prefixes of a query, including the empty prefix and the query itself,
+     * up to a maximum length. Surrogate pairs are not split.
+     */
+    public static ArrayList<String> getPrefixes(String query, int maxLength) {
+        if (query == null) query = "";
+        int length = Math.min(query.length(), maxLength);
+        ArrayList<String> prefixes = new ArrayList<String>(length + 1);
+        int end = 0;
+        while (true) {
+            prefixes.add(query.substring(0, end));
+            if (end >= length) break;
+            end += Character.charCount(query.codePointAt(end));
+            if (end > length) break;
+        }
+        return prefixes;
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Marks the index as complete. Until then, it should not be used for lookups.
+     */
+    public synchronized void setLoaded() {
+        mLoaded = true;
+    }
+
+    /**
+     * Checks whether the index has scores for a query.
+     */
+    public boolean canLookUp(String query) {
+        return isLoaded() && query.length() <= mMaxPrefixLength;
+    }
+
+    /**
+     * Removes all shortcuts and corpus clicks. Does not change whether the index is loaded.
+     */
+    public synchronized void clear() {
+        mShortcuts.clear();
+        mScores.clear();
+        mPrefixes.clear();
+        mCorpusClicks.clear();
+    }
+
+    /**
+     * Adds a shortcut, replacing any shortcut with the same intent key.
+     */
+    public synchronized void putShortcut(ContentValues shortcut) {
+        mShortcuts.put(shortcut.getAsString(Shortcuts.intent_key.name()), shortcut);
+    }
+
+    /**
+     * Adds the clicks on a shortcut for a query prefix.
+     */
+    public synchronized void addScore(String prefix, String intentKey, int hitCount,
+            long hitTimeSum, long lastHitTime) {
+        getScore(prefix, intentKey).add(hitCount, hitTimeSum, lastHitTime);
+    }
+
+    /**
+     * Adds a click on a shortcut to the scores of each prefix of the click's query.
+     */
+    public synchronized void addClick(String intentKey, String query, long hitTime) {
+        for (String prefix : getPrefixes(query, mMaxPrefixLength)) {
+            getScore(prefix, intentKey).add(1, hitTime, hitTime);
+        }
+    }
+
+    /**
+     * Removes a click that was added by {@link #addClick}. Clicks must be removed
+     * oldest first, since the time of the latest click is kept as it is.
+     */
+    public synchronized void removeClick(String intentKey, String query, long hitTime) {
+        for (String prefix : getPrefixes(query, mMaxPrefixLength)) {
+            HashMap<String, Score> scores = mScores.get(prefix);
+            Score score = scores == null ? null : scores.get(intentKey);
+            if (score == null) continue;
+            score.add(-1, -hitTime, hitTime);
+            if (score.mHitCount <= 0) {
+                removeScore(prefix, intentKey);
+            }
+        }
+    }
+
+    /**
+     * Removes a shortcut and its scores.
+     */
+    public synchronized void removeShortcut(String intentKey) {
+        mShortcuts.remove(intentKey);
+        HashSet<String> prefixes = mPrefixes.remove(intentKey);
+        if (prefixes == null) return;
+        for (String prefix : prefixes) {
+            HashMap<String, Score> scores = mScores.get(prefix);
+            scores.remove(intentKey);
+            if (scores.isEmpty()) {
+                mScores.remove(prefix);
+            }
+        }
+    }
+
+    /**
+     * Removes the shortcuts with a given shortcut ID from a given source.
+     */
+    public synchronized void removeShortcuts(String shortcutId, String sourceName) {
+        for (String intentKey : findShortcuts(shortcutId, sourceName)) {
+            removeShortcut(intentKey);
+        }
+    }
+
+    /**
+     * Updates the shortcuts with a given shortcut ID from a given source with new values.
+     * Values that are not given are kept. If the intent key changes, the scores are kept
+     * for the new intent key.
+     */
+    public synchronized void updateShortcuts(String shortcutId, String sourceName,
+            ContentValues values) {
+        String newKey = values.getAsString(Shortcuts.intent_key.name());
+        for (String intentKey : findShortcuts(shortcutId, sourceName)) {
+            ContentValues shortcut = new ContentValues(mShortcuts.remove(intentKey));
+            shortcut.putAll(values);
+            if (newKey != null && !newKey.equals(intentKey)) {
+                moveScores(intentKey, newKey);
+            }
+            putShortcut(shortcut);
+        }
+    }
+
+    /**
+     * Gets the shortcuts for a query, best first.
+     *
+     * @param query The query, at most as long as the maximum prefix length.
+     * @param cutOffTime Shortcuts whose latest click is before this time are not included.
+     * @return The shortcut rows.
+     */
+    public synchronized List<ContentValues> getShortcuts(String query, final long cutOffTime) {
+        HashMap<String, Score> scores = mScores.get(query);
+        if (scores == null) return Collections.emptyList();
+        long maxLastHitTime = Long.MIN_VALUE;
+        for (Score score : scores.values()) {
+            maxLastHitTime = Math.max(maxLastHitTime, score.mLastHitTime);
+        }
+        ArrayList<Map.Entry<String, Score>> matches =
+                new ArrayList<Map.Entry<String, Score>>(scores.size());
+        for (Map.Entry<String, Score> entry : scores.entrySet()) {
+            if (entry.getValue().mLastHitTime >= cutOffTime
+                    && mShortcuts.containsKey(entry.getKey())) {
+                matches.add(entry);
+            }
+        }
+        final long latest = maxLastHitTime;
+        // Same order as the shortcut query in ShortcutRepositoryImplLog
+        Collections.sort(matches, new Comparator<Map.Entry<String, Score>>() {
+            public int compare(Map.Entry<String, Score> e1, Map.Entry<String, Score> e2) {
+                Score s1 = e1.getValue();
+                Score s2 = e2.getValue();
+                boolean latest1 = s1.mLastHitTime == latest;
+                boolean latest2 = s2.mLastHitTime == latest;
+                if (latest1 != latest2) return latest1 ? -1 : 1;
+                long value1 = s1.getValue(cutOffTime);
+                long value2 = s2.getValue(cutOffTime);
+                if (value1 != value2) return value1 > value2 ? -1 : 1;
+                return e1.getKey().compareTo(e2.getKey());
+            }
+        });
+        ArrayList<ContentValues> shortcuts = new ArrayList<ContentValues>(matches.size());
+        for (Map.Entry<String, Score> entry : matches) {
+            shortcuts.add(mShortcuts.get(entry.getKey()));
+        }
+        return shortcuts;
+    }
+
+    /**
+     * Replaces the click counts of all corpora.
+     */
+    public synchronized void setCorpusClicks(Map<String, Integer> corpusClicks) {
+        mCorpusClicks.clear();
+        mCorpusClicks.putAll(corpusClicks);
+    }
+
+    /**
+     * Adds a click to the click count of a corpus.
+     */
+    public synchronized void addCorpusClick(String corpusName) {
+        Integer clicks = mCorpusClicks.get(corpusName);
+        mCorpusClicks.put(corpusName, clicks == null ? 1 : clicks + 1);
+    }
+
+    /**
+     * Gets the click counts of the corpora with a minimum number of clicks.
+     *
+     * @param minClicks The minimum number of clicks a corpus must have.
+     * @return A new map of corpus name to click count.
+     */
+    public synchronized Map<String, Integer> getCorpusClicks(int minClicks) {
+        HashMap<String, Integer> corpusClicks = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : mCorpusClicks.entrySet()) {
+            if (entry.getValue() >= minClicks) {
+                corpusClicks.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return corpusClicks;
+    }
+
+    private ArrayList<String> findShortcuts(String shortcutId, String sourceName) {
+        ArrayList<String> intentKeys = new ArrayList<String>();
+        for (Map.Entry<String, ContentValues> entry : mShortcuts.entrySet()) {
+            ContentValues shortcut = entry.getValue();
+            if (shortcutId.equals(shortcut.getAsString(Shortcuts.shortcut_id.name()))
+                    && sourceName.equals(shortcut.getAsString(Shortcuts.source.name()))) {
+                intentKeys.add(entry.getKey());
+            }
+        }
+        return intentKeys;
+    }
+
+    private Score getScore(String prefix, String intentKey) {
+        HashMap<String, Score> scores = mScores.get(prefix);
+        if (scores == null) {
+            scores = new HashMap<String, Score>();
+            mScores.put(prefix, scores);
+        }
+        Score score = scores.get(intentKey);
+        if (score == null) {
+            score = new Score();
+            scores.put(intentKey, score);
+            HashSet<String> prefixes = mPrefixes.get(intentKey);
+            if (prefixes == null) {
+                prefixes = new HashSet<String>();
+                mPrefixes.put(intentKey, prefixes);
+            }
+            prefixes.add(prefix);
+        }
+        return score;
+    }
+
+    private void removeScore(String prefix, String intentKey) {
+        HashMap<String, Score> scores = mScores.get(prefix);
+        scores.remove(intentKey);
+        if (scores.isEmpty()) {
+            mScores.remove(prefix);
+        }
+        HashSet<String> prefixes = mPrefixes.get(intentKey);
+        prefixes.remove(prefix);
+        if (prefixes.isEmpty()) {
+            mPrefixes.remove(intentKey);
+        }
+    }
+
+    private void moveScores(String oldKey, String newKey) {
+        HashSet<String> prefixes = mPrefixes.remove(oldKey);
+        if (prefixes == null) return;
+        for (String prefix : prefixes) {
+            Score old = mScores.get(prefix).remove(oldKey);
+            getScore(prefix, newKey).add(old.mHitCount, old.mHitTimeSum, old.mLastHitTime);
+        }
+    }
+
+    private static class Score {
+        private int mHitCount;
+        private long mHitTimeSum;
+        private long mLastHitTime = Long.MIN_VALUE;
+
+        public void add(int hitCount, long hitTimeSum, long lastHitTime) {
+            mHitCount += hitCount;
+            mHitTimeSum += hitTimeSum;
+            mLastHitTime = Math.max(mLastHitTime, lastHitTime);
+        }
+
+        /**
+         * The sum of the times since the cut-off time of the clicks.
+         */
+        public long getValue(long cutOffTime) {
+            return mHitTimeSum - mHitCount * cutOffTime;
+        }
+    }
+}
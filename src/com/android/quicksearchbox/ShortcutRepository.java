@@ -18,6 +18,8 @@ package com.android.quicksearchbox;
 
 import com.android.quicksearchbox.util.Consumer;
 
+import android.database.DataSetObserver;
+
 import java.util.Collection;
 import java.util.Map;
 
@@ -49,9 +51,15 @@ public interface ShortcutRepository {
 
     /**
      * Closes any database connections etc held by this object.
+     * Changes that have not been written yet are written first.
      */
     void close();
 
+    /**
+     * Starts writing any changes that are waiting to be written in a batch.
+     */
+    void flush();
+
     /**
      * Reports a click on a suggestion.
      * Must be called on the UI thread.
@@ -92,7 +100,23 @@ public interface ShortcutRepository {
      *        is more important.
      *        The value passed to the consumer may be non-null.
      *        The consumer will be called on an unspecified thread, and will always
-     *        get called eventually.
+     *        get called eventually. Once the scores are in memory, it is called
+     *        synchronously.
      */
     void getCorpusScores(Consumer<Map<String,Integer>> consumer);
+
+    /**
+     * Registers an observer that is called when the corpus scores change.
+     *
+     * @param observer gets notified on an unspecified thread when the scores change.
+     */
+    void registerCorpusScoresObserver(DataSetObserver observer);
+
+    /**
+     * Unregisters an observer that has previously been registered with
+     * {@link #registerCorpusScoresObserver(DataSetObserver)}
+     *
+     * @param observer the observer to unregister.
+     */
+    void unregisterCorpusScoresObserver(DataSetObserver observer);
 }
@@ -18,6 +18,7 @@ package com.android.quicksearchbox;
 
 import com.android.quicksearchbox.util.Consumer;
 import com.android.quicksearchbox.util.Consumers;
+import com.android.quicksearchbox.util.NowOrLater;
 import com.android.quicksearchbox.util.SQLiteAsyncQuery;
 import com.android.quicksearchbox.util.SQLiteTransaction;
 import com.android.quicksearchbox.util.Util;
@@ -30,20 +31,31 @@ import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
 import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A shortcut repository implementation that uses a log of every click.
@@ -59,11 +71,14 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     private static final String TAG = "QSB.ShortcutRepositoryImplLog";
 
     private static final String DB_NAME = "qsb-log.db";
-    private static final int DB_VERSION = 32;
+    private static final int DB_VERSION = 35;
 
     private static final String HAS_HISTORY_QUERY =
-        "SELECT " + Shortcuts.intent_key.fullName + " FROM " + Shortcuts.TABLE_NAME;
-    private String mEmptyQueryShortcutQuery ;
+        "SELECT EXISTS (SELECT 1 FROM " + Shortcuts.TABLE_NAME + ")";
+    private static final String OLDEST_CLICK_QUERY =
+        "SELECT MIN(" + ClickLog.hit_time.name() + ") FROM " + ClickLog.TABLE_NAME;
+    private String mScoreShortcutQuery;
+    // Only used for queries that are too long to be in the score table
     private String mShortcutQuery;
 
     private static final String SHORTCUT_BY_ID_WHERE =
@@ -71,6 +86,39 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
 
     private static final String SOURCE_RANKING_SQL = buildSourceRankingSql();
 
+    /** The maximum number of chunks of old clicks to delete in one maintenance pass. */
+    private static final int MAX_AGE_OUT_CHUNKS = 10;
+
+    /**
+     * The maximum length of the query prefixes in the score table. Shortcuts for longer
+     * queries are looked up in the click log.
+     */
+    private static final int MAX_SCORE_PREFIX_LENGTH = 64;
+
+    private static final String SCORE_BY_ID_WHERE = ShortcutScores.query_prefix.name()
+            + "=? AND " + ShortcutScores.intent_key.name() + "=?";
+
+    private static final String INSERT_SCORE_SQL =
+            "INSERT OR IGNORE INTO " + ShortcutScores.TABLE_NAME + " VALUES (?, ?, 0, 0, 0)";
+
+    private static final String UPDATE_SCORE_SQL =
+            "UPDATE " + ShortcutScores.TABLE_NAME + " SET "
+            + ShortcutScores.hit_count.name() + " = " + ShortcutScores.hit_count.name() + " + ?, "
+            + ShortcutScores.hit_time_sum.name() + " = "
+                    + ShortcutScores.hit_time_sum.name() + " + ?, "
+            + ShortcutScores.last_hit_time.name() + " = MAX("
+                    + ShortcutScores.last_hit_time.name() + ", ?)"
+            + " WHERE " + SCORE_BY_ID_WHERE;
+
+    private static final String DELETE_EMPTY_SCORE_SQL =
+            "DELETE FROM " + ShortcutScores.TABLE_NAME + " WHERE " + SCORE_BY_ID_WHERE
+            + " AND " + ShortcutScores.hit_count.name() + " <= 0";
+
+    private static final String RECONCILE_SOURCE_STATS_SQL =
+            "INSERT INTO " + SourceStats.TABLE_NAME
+            + " SELECT " + ClickLog.corpus + ", COUNT(*) FROM " + ClickLog.TABLE_NAME
+            + " GROUP BY " + ClickLog.corpus.name();
+
     private final Context mContext;
     private final Config mConfig;
     private final Corpora mCorpora;
@@ -78,38 +126,91 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     private final Handler mUiThread;
     // Used to perform log write operations asynchronously
     private final Executor mLogExecutor;
+    // Used to perform queries asynchronously, so that they don't wait for writes
+    private final Executor mReadExecutor;
     private final DbOpenHelper mOpenHelper;
     private final String mSearchSpinner;
+    private final String mAgeOutWhere;
+    private final ShortcutIndex mIndex = new ShortcutIndex(MAX_SCORE_PREFIX_LENGTH);
+    private final DataSetObservable mCorpusScoresObservable = new DataSetObservable();
+
+    /** Changes that have not been written to the database yet, oldest first. */
+    private final ArrayList<PendingWrite> mPendingWrites = new ArrayList<PendingWrite>();
+
+    /** The number of pending changes not applied to the index. Guarded by mPendingWrites. */
+    private int mUnindexedWrites = 0;
+
+    /** Whether a delayed flush of mPendingWrites is posted. Guarded by mPendingWrites. */
+    private boolean mFlushPosted = false;
+
+    /** The best empty query shortcuts, or null if they need to be ranked again. */
+    private volatile ZeroQueryShortcuts mZeroQueryShortcuts;
+
+    /**
+     * Incremented whenever the zero query shortcuts become stale, to spot ones that
+     * were ranked while the index changed. Guarded by mPendingWrites.
+     */
+    private int mZeroQueryGeneration = 0;
+
+    /** The click time at which old clicks were last aged out. Only used on mLogExecutor. */
+    private long mLastAgeOutTime = 0;
+
+    /**
+     * The time at which the oldest click in the score table and the index becomes too old
+     * to count, {@link Long#MAX_VALUE} if there are no clicks, or {@code 0} if not known
+     * yet. From then until the old clicks are aged out, shortcuts are ranked from the
+     * click log instead, which leaves out old clicks. Changed with mPendingWrites held.
+     */
+    private volatile long mScoresExpireTime = 0;
+
+    /** Whether an age-out of the clicks that are too old to count is queued. */
+    private final AtomicBoolean mAgeOutQueued = new AtomicBoolean();
+
+    /** The click time at which SourceStats was last recomputed. Only used on mLogExecutor. */
+    private long mLastSourceStatsReconcileTime = 0;
 
     /**
      * Create an instance to the repo.
      */
     public static ShortcutRepository create(Context context, Config config,
             Corpora sources, ShortcutRefresher refresher, Handler uiThread,
-            Executor logExecutor) {
-        return new ShortcutRepositoryImplLog(context, config, sources, refresher,
-                uiThread, logExecutor, DB_NAME);
+            Executor logExecutor, Executor readExecutor) {
+        ShortcutRepositoryImplLog repo = new ShortcutRepositoryImplLog(context, config,
+                sources, refresher, uiThread, logExecutor, readExecutor, DB_NAME);
+        repo.loadIndexAsync();
+        return repo;
     }
 
     /**
      * @param context Used to create / open db
+     * @param logExecutor Executor for writes, and for reads that must see earlier writes.
+     * @param readExecutor Executor for other queries.
      * @param name The name of the database to create.
      */
     @VisibleForTesting
     ShortcutRepositoryImplLog(Context context, Config config, Corpora corpora,
-            ShortcutRefresher refresher, Handler uiThread, Executor logExecutor, String name) {
+            ShortcutRefresher refresher, Handler uiThread, Executor logExecutor,
+            Executor readExecutor, String name) {
         mContext = context;
         mConfig = config;
         mCorpora = corpora;
         mRefresher = refresher;
         mUiThread = uiThread;
         mLogExecutor = logExecutor;
-        mOpenHelper = new DbOpenHelper(context, name, DB_VERSION, config);
+        mReadExecutor = readExecutor;
+        mOpenHelper = new DbOpenHelper(context, name, DB_VERSION);
         buildShortcutQueries();
+        mAgeOutWhere = buildAgeOutWhere(config.getClickLogAgeOutChunkSize());
+        mCorpora.registerDataSetObserver(new CorporaObserver());
 
         mSearchSpinner = Util.getResourceUri(mContext, R.drawable.search_spinner).toString();
     }
 
+    // scores first, since that's where restrict the result set
+    private static final String SCORE_TABLES = ShortcutScores.TABLE_NAME + " INNER JOIN " +
+            Shortcuts.TABLE_NAME + " ON " + ShortcutScores.intent_key.fullName + " = " +
+            Shortcuts.intent_key.fullName;
+
     // clicklog first, since that's where restrict the result set
     private static final String TABLES = ClickLog.TABLE_NAME + " INNER JOIN " +
             Shortcuts.TABLE_NAME + " ON " + ClickLog.intent_key.fullName + " = " +
@@ -139,6 +240,39 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
             Shortcuts.custom_columns.fullName,
         };
 
+    /**
+     * The columns read by the shortcut ranking queries. These are the ones needed to
+     * decide whether a shortcut can be shown.
+     */
+    private static final String[] SHORTCUT_KEY_COLUMNS = {
+            Shortcuts.intent_key.fullName,
+            Shortcuts.source.fullName,
+            Shortcuts.source_version_code.fullName,
+            Shortcuts.intent_action.fullName,
+        };
+
+    private static final int SHORTCUT_KEY_INTENT_KEY = 0;
+    private static final int SHORTCUT_KEY_SOURCE = 1;
+    private static final int SHORTCUT_KEY_SOURCE_VERSION_CODE = 2;
+    private static final int SHORTCUT_KEY_INTENT_ACTION = 3;
+
+    /** The names of the columns in the result of the shortcut query. */
+    private static final String[] SHORTCUT_CURSOR_COLUMNS =
+            new String[SHORTCUT_QUERY_COLUMNS.length];
+
+    /** The Shortcuts column that each column in the shortcut query result comes from. */
+    private static final String[] SHORTCUT_CURSOR_SOURCE_COLUMNS =
+            new String[SHORTCUT_QUERY_COLUMNS.length];
+
+    static {
+        for (int i = 0; i < SHORTCUT_QUERY_COLUMNS.length; i++) {
+            String[] parts = SHORTCUT_QUERY_COLUMNS[i].split(AS);
+            String source = parts[0].substring(parts[0].lastIndexOf('.') + 1);
+            SHORTCUT_CURSOR_SOURCE_COLUMNS[i] = source;
+            SHORTCUT_CURSOR_COLUMNS[i] = parts.length > 1 ? parts[1] : source;
+        }
+    }
+
     // Avoid GLOB by using >= AND <, with some manipulation (see nextString(String)).
     // to figure out the upper bound (e.g. >= "abc" AND < "abd"
     // This allows us to use parameter binding and still take advantage of the
@@ -164,19 +298,42 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         String ordering_expr =
                 "SUM((" + ClickLog.hit_time.fullName + " - " + cutOffTime_expr + ") / 1000)";
 
-        String where = ageRestriction;
+        String where = PREFIX_RESTRICTION + " AND " + ageRestriction;
         String preferLatest = PREFER_LATEST_PREFIX + where + PREFER_LATEST_SUFFIX;
         String orderBy = preferLatest + " DESC, " + ordering_expr + " DESC";
-        mEmptyQueryShortcutQuery = SQLiteQueryBuilder.buildQueryString(
-                false, TABLES, SHORTCUT_QUERY_COLUMNS, where, GROUP_BY, having, orderBy, null);
-        if (DBG) Log.d(TAG, "Empty shortcut query:\n" + mEmptyQueryShortcutQuery);
-
-        where = PREFIX_RESTRICTION + " AND " + ageRestriction;
-        preferLatest = PREFER_LATEST_PREFIX + where + PREFER_LATEST_SUFFIX;
-        orderBy = preferLatest + " DESC, " + ordering_expr + " DESC";
         mShortcutQuery = SQLiteQueryBuilder.buildQueryString(
-                false, TABLES, SHORTCUT_QUERY_COLUMNS, where, GROUP_BY, having, orderBy, null);
-        if (DBG) Log.d(TAG, "Empty shortcut:\n" + mShortcutQuery);
+                false, TABLES, SHORTCUT_KEY_COLUMNS, where, GROUP_BY, having, orderBy, null);
+        if (DBG) Log.d(TAG, "Shortcut query:\n" + mShortcutQuery);
+
+        // The same ordering, using the per-prefix totals in the score table.
+        // ?1 is the query, ?2 is the current time.
+        String scoreCutOffTime_expr = "(?2 - " + mConfig.getMaxStatAgeMillis() + ")";
+        where = ShortcutScores.query_prefix.fullName + " = ?1 AND "
+                + ShortcutScores.last_hit_time.fullName + " >= " + scoreCutOffTime_expr;
+        preferLatest = "(" + ShortcutScores.last_hit_time.fullName
+                + " = (SELECT MAX(" + ShortcutScores.last_hit_time.name() + ") FROM "
+                + ShortcutScores.TABLE_NAME + " WHERE "
+                + ShortcutScores.query_prefix.name() + " = ?1))";
+        // Only valid while no click in the table is too old to count, that is until
+        // mScoresExpireTime. The click log query is used after that.
+        String score_expr = "(" + ShortcutScores.hit_time_sum.fullName + " - "
+                + ShortcutScores.hit_count.fullName + " * " + scoreCutOffTime_expr + ")";
+        orderBy = preferLatest + " DESC, " + score_expr + " DESC";
+        mScoreShortcutQuery = SQLiteQueryBuilder.buildQueryString(
+                false, SCORE_TABLES, SHORTCUT_KEY_COLUMNS, where, null, having, orderBy, null);
+        if (DBG) Log.d(TAG, "Score shortcut query:\n" + mScoreShortcutQuery);
+    }
+
+    /**
+     * @return A where clause that selects the oldest clicks before the time given by
+     *         the first parameter, at most {@code chunkSize} of them.
+     */
+    private static String buildAgeOutWhere(int chunkSize) {
+        return ClickLog._id.name() + " IN (SELECT " + ClickLog._id.name()
+                + " FROM " + ClickLog.TABLE_NAME
+                + " WHERE " + ClickLog.hit_time.name() + " < ?"
+                + " ORDER BY " + ClickLog.hit_time.name()
+                + " LIMIT " + chunkSize + ")";
     }
 
     /**
@@ -200,17 +357,424 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         return mOpenHelper;
     }
 
-    private void runTransactionAsync(final SQLiteTransaction transaction) {
+    /**
+     * Queues a change to be written to the database together with the other changes
+     * made within the flush delay, and applies it to the index at once if possible.
+     *
+     * @param write The change.
+     * @param flushNow Whether to start writing without waiting for the flush delay.
+     */
+    private void addPendingWrite(PendingWrite write, boolean flushNow) {
+        boolean postFlush = false;
+        boolean scoresChanged = false;
+        synchronized (mPendingWrites) {
+            // Changes are applied to the index in order, so once one has to wait
+            // until it's been written, so do all later ones.
+            if (mUnindexedWrites == 0 && mIndex.isLoaded()) {
+                write.updateIndex();
+                write.mIndexed = true;
+                invalidateZeroQueryShortcuts();
+                scoresChanged = write.getClickCorpus() != null;
+            } else {
+                mUnindexedWrites++;
+            }
+            mPendingWrites.add(write);
+            if (mPendingWrites.size() >= mConfig.getClickLogFlushBatchSize()) {
+                flushNow = true;
+            } else if (!flushNow && !mFlushPosted) {
+                mFlushPosted = true;
+                postFlush = true;
+            }
+        }
+        if (scoresChanged) {
+            mCorpusScoresObservable.notifyChanged();
+        }
+        if (flushNow) {
+            mLogExecutor.execute(mFlushTask);
+        } else if (postFlush) {
+            mUiThread.postDelayed(mPostedFlush, mConfig.getClickLogFlushDelayMillis());
+        }
+    }
+
+    private final Runnable mPostedFlush = new Runnable() {
+        public void run() {
+            synchronized (mPendingWrites) {
+                mFlushPosted = false;
+            }
+            mLogExecutor.execute(mFlushTask);
+        }
+    };
+
+    private final Runnable mFlushTask = new Runnable() {
+        public void run() {
+            flushPendingWrites();
+        }
+    };
+
+    /**
+     * Writes all pending changes to the database in a single transaction, and then applies
+     * the ones that have not been applied to the index yet. Must be called on mLogExecutor.
+     */
+    private void flushPendingWrites() {
+        final ArrayList<PendingWrite> writes;
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.isEmpty()) return;
+            writes = new ArrayList<PendingWrite>(mPendingWrites);
+            mPendingWrites.clear();
+        }
+        if (DBG) Log.d(TAG, "Writing " + writes.size() + " changes");
+        new SQLiteTransaction() {
+            @Override
+            protected boolean performTransaction(SQLiteDatabase db) {
+                for (PendingWrite write : writes) {
+                    write.write(db);
+                }
+                return true;
+            }
+        }.run(mOpenHelper.getWritableDatabase());
+
+        boolean loaded = mIndex.isLoaded();
+        if (!loaded) {
+            // This also loads the changes that were just written
+            loadIndex();
+        }
+        long lastClickTime = 0;
+        boolean scoresChanged = false;
+        boolean clicksDeleted = false;
+        synchronized (mPendingWrites) {
+            for (PendingWrite write : writes) {
+                if (!write.mIndexed) {
+                    if (loaded) {
+                        write.updateIndex();
+                        invalidateZeroQueryShortcuts();
+                        scoresChanged |= write.getClickCorpus() != null;
+                    }
+                    write.mIndexed = true;
+                    mUnindexedWrites--;
+                }
+                lastClickTime = Math.max(lastClickTime, write.getClickTime());
+                clicksDeleted |= write.deletesClicks();
+            }
+        }
+        if (clicksDeleted) {
+            // The triggers have updated SourceStats, get the new counts from there
+            reloadCorpusClicks();
+        } else if (scoresChanged) {
+            mCorpusScoresObservable.notifyChanged();
+        }
+        if (lastClickTime > 0) {
+            ageOutClicksIfNeeded(lastClickTime);
+            reconcileSourceStatsIfNeeded(lastClickTime);
+        }
+        if (mZeroQueryShortcuts == null) {
+            refreshZeroQueryShortcuts();
+        }
+    }
+
+    /**
+     * Must be called after each change to the index or to the corpora,
+     * with mPendingWrites held.
+     */
+    private void invalidateZeroQueryShortcuts() {
+        mZeroQueryGeneration++;
+        mZeroQueryShortcuts = null;
+    }
+
+    /**
+     * Ranks the empty query shortcuts from all sources, and starts loading their icons,
+     * so that they are ready when QSB opens. Must be called on mLogExecutor.
+     */
+    private void refreshZeroQueryShortcuts() {
+        if (!mConfig.showShortcutsForZeroQuery()) return;
+        int generation;
+        synchronized (mPendingWrites) {
+            generation = mZeroQueryGeneration;
+        }
+        long now = System.currentTimeMillis();
+        HashMap<String, Source> sources = new HashMap<String, Source>();
+        for (Corpus corpus : mCorpora.getAllCorpora()) {
+            for (Source source : corpus.getSources()) {
+                sources.put(source.getName(), source);
+            }
+        }
+        ShortcutPicker picker =
+                new ShortcutPicker(sources, true, mConfig.getMaxZeroQueryShortcutsCached());
+        List<ContentValues> shortcuts;
+        if (mIndex.isLoaded() && now < mScoresExpireTime) {
+            long cutOffTime = now - mConfig.getMaxStatAgeMillis();
+            shortcuts = getUsableShortcuts(mIndex.getShortcuts("", cutOffTime), picker);
+        } else {
+            shortcuts = queryShortcuts("", now, picker);
+        }
+        boolean complete = picker.isComplete();
+        ArrayList<NowOrLater<Drawable>> icons = new ArrayList<NowOrLater<Drawable>>();
+        for (ContentValues shortcut : shortcuts) {
+            Source source = sources.get(shortcut.getAsString(Shortcuts.source.name()));
+            loadIcon(source, shortcut.getAsString(Shortcuts.icon1.name()), icons);
+            loadIcon(source, shortcut.getAsString(Shortcuts.icon2.name()), icons);
+        }
+        synchronized (mPendingWrites) {
+            // If the index has changed, the next flush ranks them again
+            if (generation == mZeroQueryGeneration) {
+                mZeroQueryShortcuts = new ZeroQueryShortcuts(now, shortcuts, complete, icons);
+            }
+        }
+        if (DBG) Log.d(TAG, "Ranked " + shortcuts.size() + " zero query shortcuts");
+    }
+
+    private static void loadIcon(Source source, String drawableId,
+            List<NowOrLater<Drawable>> icons) {
+        if (source == null || TextUtils.isEmpty(drawableId)) return;
+        NowOrLater<Drawable> icon = source.getIcon(drawableId);
+        if (!icon.haveNow()) {
+            icon.getLater(new Consumer<Drawable>() {
+                public boolean consume(Drawable value) {
+                    return true;
+                }
+            });
+        }
+        icons.add(icon);
+    }
+
+    /**
+     * The best shortcuts for the empty query, from all sources.
+     */
+    private static class ZeroQueryShortcuts {
+        /** The time at which the shortcuts were ranked. */
+        final long mTime;
+        /** The shortcut rows, best first. */
+        final List<ContentValues> mShortcuts;
+        /**
+         * Whether these are all the shortcuts for the empty query. If not, each source
+         * has at least {@link Config#getMaxZeroQueryShortcutsCached()} of them.
+         */
+        final boolean mComplete;
+        /** The icons of the shortcuts, held so that they don't have to be loaded again. */
+        final List<NowOrLater<Drawable>> mIcons;
+
+        public ZeroQueryShortcuts(long time, List<ContentValues> shortcuts, boolean complete,
+                List<NowOrLater<Drawable>> icons) {
+            mTime = time;
+            mShortcuts = shortcuts;
+            mComplete = complete;
+            mIcons = icons;
+        }
+    }
+
+    /**
+     * Picks shortcuts in ranking order, up to a limit for each source. Shortcuts that
+     * would be filtered out by {@link ShortcutCursor} are skipped without counting, so
+     * that they don't take the place of ones that can be shown.
+     */
+    private class ShortcutPicker {
+        private final HashMap<String,Source> mAllowedSources;
+        private final boolean mAllowWebSearchShortcuts;
+        private final int mMaxPerSource;
+        private final HashMap<String,Integer> mCounts = new HashMap<String,Integer>();
+        private int mFullSources = 0;
+        private boolean mComplete = true;
+
+        /**
+         * @param maxPerSource The number of shortcuts to pick from each source. Sources
+         *        whose own limit is higher get that many, so that the promoter can always
+         *        fill it. {@link Integer#MAX_VALUE} for no limit.
+         */
+        public ShortcutPicker(HashMap<String,Source> allowedSources,
+                boolean allowWebSearchShortcuts, int maxPerSource) {
+            mAllowedSources = allowedSources;
+            mAllowWebSearchShortcuts = allowWebSearchShortcuts;
+            mMaxPerSource = maxPerSource;
+        }
+
+        /**
+         * Offers the next best shortcut.
+         *
+         * @return Whether the shortcut was picked.
+         */
+        public boolean pick(String sourceName, int versionCode, String intentAction) {
+            if (!isShortcutUsable(mAllowedSources, mAllowWebSearchShortcuts, sourceName,
+                    versionCode, intentAction)) {
+                return false;
+            }
+            int limit = Math.max(mMaxPerSource,
+                    mAllowedSources.get(sourceName).getMaxShortcuts(mConfig));
+            Integer count = mCounts.get(sourceName);
+            int picked = count == null ? 0 : count;
+            if (picked >= limit) {
+                mComplete = false;
+                return false;
+            }
+            picked++;
+            mCounts.put(sourceName, picked);
+            if (picked == limit) {
+                mFullSources++;
+            }
+            return true;
+        }
+
+        /**
+         * Checks whether every allowed source has reached its limit, so that no more
+         * shortcuts can be picked.
+         */
+        public boolean isFull() {
+            return mFullSources >= mAllowedSources.size();
+        }
+
+        /**
+         * Records that the remaining shortcuts were not offered.
+         */
+        public void stop() {
+            mComplete = false;
+        }
+
+        /**
+         * Checks whether every usable shortcut was picked.
+         */
+        public boolean isComplete() {
+            return mComplete;
+        }
+    }
+
+    private class CorporaObserver extends DataSetObserver {
+        @Override
+        public void onChanged() {
+            // The sources of the shortcuts, and their icon loaders, may have changed
+            synchronized (mPendingWrites) {
+                invalidateZeroQueryShortcuts();
+            }
+            mLogExecutor.execute(new Runnable() {
+                public void run() {
+                    if (mZeroQueryShortcuts == null) {
+                        refreshZeroQueryShortcuts();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Replaces the corpus click counts in the index with the ones in the database, plus
+     * the clicks that are in the index but not written yet. Must be called on mLogExecutor.
+     */
+    private void reloadCorpusClicks() {
+        if (!mIndex.isLoaded()) return;
+        Map<String, Integer> corpusClicks =
+                readCorpusClicks(mOpenHelper.getReadableDatabase(), 0);
+        synchronized (mPendingWrites) {
+            for (PendingWrite write : mPendingWrites) {
+                String corpusName = write.getClickCorpus();
+                if (write.mIndexed && corpusName != null) {
+                    Integer clicks = corpusClicks.get(corpusName);
+                    corpusClicks.put(corpusName, clicks == null ? 1 : clicks + 1);
+                }
+            }
+            mIndex.setCorpusClicks(corpusClicks);
+        }
+        mCorpusScoresObservable.notifyChanged();
+    }
+
+    /**
+     * A change to the repository that has not been written to the database yet.
+     */
+    private abstract class PendingWrite {
+        /** Whether the change has been applied to the index. Guarded by mPendingWrites. */
+        boolean mIndexed = false;
+
+        /**
+         * Writes the change, as part of a transaction that may include other changes.
+         */
+        protected abstract void write(SQLiteDatabase db);
+
+        /**
+         * Applies the change to the index.
+         */
+        protected abstract void updateIndex();
+
+        /**
+         * Gets the time of the click logged by this change, or {@code 0} if none.
+         */
+        protected long getClickTime() {
+            return 0;
+        }
+
+        /**
+         * Gets the corpus of the click logged by this change, or {@code null} if none.
+         */
+        protected String getClickCorpus() {
+            return null;
+        }
+
+        /**
+         * Checks whether this change deletes clicks from the click log.
+         */
+        protected boolean deletesClicks() {
+            return false;
+        }
+    }
+
+    private void loadIndexAsync() {
         mLogExecutor.execute(new Runnable() {
             public void run() {
-                transaction.run(mOpenHelper.getWritableDatabase());
+                if (!mIndex.isLoaded()) {
+                    // The empty query shortcuts can be ranked from the database much
+                    // faster than the whole index can be loaded
+                    refreshZeroQueryShortcuts();
+                    loadIndex();
+                }
             }
         });
     }
 
+    /**
+     * Loads the shortcuts and their scores into the index. Must be called on mLogExecutor.
+     */
+    private void loadIndex() {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        updateScoresExpireTime(db);
+        Cursor cursor = db.query(Shortcuts.TABLE_NAME, null, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ContentValues shortcut = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, shortcut);
+                mIndex.putShortcut(shortcut);
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = db.query(ShortcutScores.TABLE_NAME, null, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                mIndex.addScore(cursor.getString(ShortcutScores.query_prefix.ordinal()),
+                        cursor.getString(ShortcutScores.intent_key.ordinal()),
+                        cursor.getInt(ShortcutScores.hit_count.ordinal()),
+                        cursor.getLong(ShortcutScores.hit_time_sum.ordinal()),
+                        cursor.getLong(ShortcutScores.last_hit_time.ordinal()));
+            }
+        } finally {
+            cursor.close();
+        }
+        mIndex.setCorpusClicks(readCorpusClicks(db, 0));
+        mIndex.setLoaded();
+        if (DBG) Log.d(TAG, "Loaded shortcut index");
+        mCorpusScoresObservable.notifyChanged();
+    }
+
     private <A> void runQueryAsync(final SQLiteAsyncQuery<A> query, final Consumer<A> consumer) {
+        mReadExecutor.execute(new Runnable() {
+            public void run() {
+                query.run(mOpenHelper.getReadConnection(), consumer);
+            }
+        });
+    }
+
+    /**
+     * Runs a query after all the writes that have already been made.
+     */
+    private <A> void runQueryAfterWritesAsync(final SQLiteAsyncQuery<A> query,
+            final Consumer<A> consumer) {
         mLogExecutor.execute(new Runnable() {
             public void run() {
+                flushPendingWrites();
                 query.run(mOpenHelper.getReadableDatabase(), consumer);
             }
         });
@@ -219,10 +783,11 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
 // --------------------- Interface ShortcutRepository ---------------------
 
     public void hasHistory(Consumer<Boolean> consumer) {
-        runQueryAsync(new SQLiteAsyncQuery<Boolean>() {
+        // Must see the result of any earlier clearHistory()
+        runQueryAfterWritesAsync(new SQLiteAsyncQuery<Boolean>() {
             @Override
             protected Boolean performQuery(SQLiteDatabase db) {
-                return hasHistory(db);
+                return hasHistory();
             }
         }, consumer);
     }
@@ -230,26 +795,45 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     public void removeFromHistory(SuggestionCursor suggestions, int position) {
         suggestions.moveTo(position);
         final String intentKey = makeIntentKey(suggestions);
-        runTransactionAsync(new SQLiteTransaction() {
+        addPendingWrite(new PendingWrite() {
             @Override
-            public boolean performTransaction(SQLiteDatabase db) {
+            protected void write(SQLiteDatabase db) {
                 db.delete(Shortcuts.TABLE_NAME, Shortcuts.intent_key.fullName + " = ?",
                         new String[]{ intentKey });
+            }
+
+            @Override
+            protected void updateIndex() {
+                mIndex.removeShortcut(intentKey);
+            }
+
+            @Override
+            protected boolean deletesClicks() {
                 return true;
             }
-        });
+        }, true);
     }
 
     public void clearHistory() {
-        runTransactionAsync(new SQLiteTransaction() {
+        addPendingWrite(new PendingWrite() {
             @Override
-            public boolean performTransaction(SQLiteDatabase db) {
+            protected void write(SQLiteDatabase db) {
                 db.delete(ClickLog.TABLE_NAME, null, null);
                 db.delete(Shortcuts.TABLE_NAME, null, null);
                 db.delete(SourceStats.TABLE_NAME, null, null);
+                db.delete(ShortcutScores.TABLE_NAME, null, null);
+            }
+
+            @Override
+            protected void updateIndex() {
+                mIndex.clear();
+            }
+
+            @Override
+            protected boolean deletesClicks() {
                 return true;
             }
-        });
+        }, true);
     }
 
     @VisibleForTesting
@@ -257,8 +841,17 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         getOpenHelper().deleteDatabase();
     }
 
+    public void flush() {
+        mLogExecutor.execute(mFlushTask);
+    }
+
     public void close() {
-        getOpenHelper().close();
+        mLogExecutor.execute(new Runnable() {
+            public void run() {
+                flushPendingWrites();
+                getOpenHelper().close();
+            }
+        });
     }
 
     public void reportClick(final SuggestionCursor suggestions, final int position) {
@@ -269,11 +862,23 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     public void getShortcutsForQuery(final String query, final Collection<Corpus> allowedCorpora,
             final boolean allowWebSearchShortcuts, final Consumer<ShortcutCursor> consumer) {
         final long now = System.currentTimeMillis();
-        mLogExecutor.execute(new Runnable() {
+        final HashMap<String,Source> allowedSources = getAllowedSources(allowedCorpora);
+        final int maxPerSource = getMaxShortcutsPerSource(allowedCorpora);
+        List<ContentValues> shortcuts = lookUpShortcuts(query, now, allowedSources,
+                allowWebSearchShortcuts, maxPerSource);
+        if (shortcuts != null) {
+            // No need to go to the database
+            Consumers.consumeCloseable(consumer, makeShortcutCursor(query, allowedSources,
+                    allowWebSearchShortcuts, shortcuts));
+            return;
+        }
+        mReadExecutor.execute(new Runnable() {
             public void run() {
-                ShortcutCursor shortcuts = getShortcutsForQuery(query, allowedCorpora,
-                        allowWebSearchShortcuts, now);
-                Consumers.consumeCloseable(consumer, shortcuts);
+                List<ContentValues> shortcuts = queryShortcuts(query, now,
+                        new ShortcutPicker(allowedSources, allowWebSearchShortcuts,
+                                maxPerSource));
+                Consumers.consumeCloseable(consumer, makeShortcutCursor(query, allowedSources,
+                        allowWebSearchShortcuts, shortcuts));
             }
         });
     }
@@ -283,6 +888,11 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     }
 
     public void getCorpusScores(final Consumer<Map<String, Integer>> consumer) {
+        if (mIndex.isLoaded()) {
+            // No need to go to the database
+            consumer.consume(mIndex.getCorpusClicks(mConfig.getMinClicksForSourceRanking()));
+            return;
+        }
         runQueryAsync(new SQLiteAsyncQuery<Map<String, Integer>>() {
             @Override
             protected Map<String, Integer> performQuery(SQLiteDatabase db) {
@@ -291,16 +901,23 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         }, consumer);
     }
 
+    public void registerCorpusScoresObserver(DataSetObserver observer) {
+        mCorpusScoresObservable.registerObserver(observer);
+    }
+
+    public void unregisterCorpusScoresObserver(DataSetObserver observer) {
+        mCorpusScoresObservable.unregisterObserver(observer);
+    }
+
 // -------------------------- end ShortcutRepository --------------------------
 
-    private boolean hasHistory(SQLiteDatabase db) {
-        Cursor cursor = db.rawQuery(HAS_HISTORY_QUERY, null);
-        try {
-            if (DBG) Log.d(TAG, "hasHistory(): cursor=" + cursor);
-            return cursor != null && cursor.getCount() > 0;
-        } finally {
-            if (cursor != null) cursor.close();
-        }
+    /**
+     * Must be called on mLogExecutor.
+     */
+    private boolean hasHistory() {
+        long hasHistory = mOpenHelper.getWriteStatement(HAS_HISTORY_QUERY).simpleQueryForLong();
+        if (DBG) Log.d(TAG, "hasHistory(): " + hasHistory);
+        return hasHistory != 0;
     }
 
     private Map<String,Integer> getCorpusScores() {
@@ -316,16 +933,18 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
     ShortcutCursor getShortcutsForQuery(String query, Collection<Corpus> allowedCorpora,
             boolean allowWebSearchShortcuts, long now) {
         if (DBG) Log.d(TAG, "getShortcutsForQuery(" + query + "," + allowedCorpora + ")");
-        String sql = query.length() == 0 ? mEmptyQueryShortcutQuery : mShortcutQuery;
-        String[] params = buildShortcutQueryParams(query, now);
-
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor cursor = db.rawQuery(sql, params);
-        if (cursor.getCount() == 0) {
-            cursor.close();
-            return null;
+        HashMap<String,Source> allowedSources = getAllowedSources(allowedCorpora);
+        int maxPerSource = getMaxShortcutsPerSource(allowedCorpora);
+        List<ContentValues> shortcuts = lookUpShortcuts(query, now, allowedSources,
+                allowWebSearchShortcuts, maxPerSource);
+        if (shortcuts == null) {
+            shortcuts = queryShortcuts(query, now,
+                    new ShortcutPicker(allowedSources, allowWebSearchShortcuts, maxPerSource));
         }
+        return makeShortcutCursor(query, allowedSources, allowWebSearchShortcuts, shortcuts);
+    }
 
+    private HashMap<String,Source> getAllowedSources(Collection<Corpus> allowedCorpora) {
         if (DBG) Log.d(TAG, "Allowed sources: ");
         HashMap<String,Source> allowedSources = new HashMap<String,Source>();
         for (Corpus corpus : allowedCorpora) {
@@ -334,18 +953,194 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
                 allowedSources.put(source.getName(), source);
             }
         }
+        return allowedSources;
+    }
+
+    /**
+     * Gets the number of shortcuts to fetch from each source. When only one corpus
+     * is allowed, all of its shortcuts are shown, so there is no limit.
+     */
+    private int getMaxShortcutsPerSource(Collection<Corpus> allowedCorpora) {
+        return allowedCorpora.size() == 1 ? Integer.MAX_VALUE : mConfig.getMaxShortcutsReturned();
+    }
+
+    /**
+     * Gets the best shortcuts for a query without going to the database.
+     *
+     * @return The shortcut rows, best first, or {@code null} if they are not in memory.
+     */
+    private List<ContentValues> lookUpShortcuts(String query, long now,
+            HashMap<String,Source> allowedSources, boolean allowWebSearchShortcuts,
+            int maxPerSource) {
+        long expireTime = mScoresExpireTime;
+        if (now >= expireTime) {
+            // The in-memory scores may count clicks that are too old, leave it to the
+            // database. If the time is not known, the index has not been loaded either.
+            if (expireTime != 0) {
+                ageOutClicksAsync(now);
+            }
+            return null;
+        }
+        if (query.length() == 0) {
+            ZeroQueryShortcuts zeroQuery = mZeroQueryShortcuts;
+            if (zeroQuery != null && now >= zeroQuery.mTime
+                    && now - zeroQuery.mTime < mConfig.getZeroQueryShortcutsMaxAgeMillis()
+                    && (zeroQuery.mComplete
+                            || maxPerSource <= mConfig.getMaxZeroQueryShortcutsCached())) {
+                return getUsableShortcuts(zeroQuery.mShortcuts,
+                        new ShortcutPicker(allowedSources, allowWebSearchShortcuts,
+                                maxPerSource));
+            }
+        }
+        if (mIndex.canLookUp(query)) {
+            long cutOffTime = now - mConfig.getMaxStatAgeMillis();
+            return getUsableShortcuts(mIndex.getShortcuts(query, cutOffTime),
+                    new ShortcutPicker(allowedSources, allowWebSearchShortcuts, maxPerSource));
+        }
+        return null;
+    }
+
+    private static List<ContentValues> getUsableShortcuts(List<ContentValues> shortcuts,
+            ShortcutPicker picker) {
+        ArrayList<ContentValues> usable = new ArrayList<ContentValues>();
+        for (ContentValues shortcut : shortcuts) {
+            if (picker.isFull()) {
+                picker.stop();
+                break;
+            }
+            Integer versionCode = shortcut.getAsInteger(Shortcuts.source_version_code.name());
+            if (picker.pick(shortcut.getAsString(Shortcuts.source.name()),
+                    versionCode == null ? 0 : versionCode,
+                    shortcut.getAsString(Shortcuts.intent_action.name()))) {
+                usable.add(shortcut);
+            }
+        }
+        return usable;
+    }
 
+    private ShortcutCursor makeShortcutCursor(String query,
+            HashMap<String,Source> allowedSources, boolean allowWebSearchShortcuts,
+            List<ContentValues> shortcuts) {
+        if (shortcuts.isEmpty()) {
+            return null;
+        }
+        Cursor cursor = makeShortcutCursor(shortcuts);
         return new ShortcutCursor(new SuggestionCursorImpl(allowedSources, query, cursor),
                 allowWebSearchShortcuts, mUiThread, mRefresher, this);
     }
 
+    /**
+     * Gets the best shortcuts for a query from the database. The ranking query only reads the
+     * columns needed to pick the shortcuts, and the full rows are then read for just the
+     * picked ones.
+     *
+     * @return The shortcut rows, best first.
+     */
+    private List<ContentValues> queryShortcuts(String query, long now, ShortcutPicker picker) {
+        SQLiteDatabase db = mOpenHelper.getReadConnection();
+        String sql;
+        String[] params;
+        if (query.length() <= MAX_SCORE_PREFIX_LENGTH && !scoresIncludeExpiredClicks(db, now)) {
+            sql = mScoreShortcutQuery;
+            params = new String[]{ query, String.valueOf(now) };
+        } else {
+            sql = mShortcutQuery;
+            params = buildShortcutQueryParams(query, now);
+        }
+
+        // Pick the best shortcuts
+        ArrayList<String> intentKeys = new ArrayList<String>();
+        Cursor cursor = db.rawQuery(sql, params);
+        try {
+            while (cursor.moveToNext()) {
+                if (picker.isFull()) {
+                    picker.stop();
+                    break;
+                }
+                if (picker.pick(cursor.getString(SHORTCUT_KEY_SOURCE),
+                        cursor.getInt(SHORTCUT_KEY_SOURCE_VERSION_CODE),
+                        cursor.getString(SHORTCUT_KEY_INTENT_ACTION))) {
+                    intentKeys.add(cursor.getString(SHORTCUT_KEY_INTENT_KEY));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (intentKeys.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // Read the full rows for the picked shortcuts, a fixed number of keys at a time.
+        // The last batch of keys is padded, so that the database can reuse the compiled
+        // statement.
+        int batchSize = mConfig.getMaxShortcutsReturned();
+        StringBuilder where = new StringBuilder(Shortcuts.intent_key.name()).append(" IN (");
+        for (int i = 0; i < batchSize; i++) {
+            where.append(i == 0 ? "?" : ",?");
+        }
+        where.append(')');
+        HashMap<String, ContentValues> rows = new HashMap<String, ContentValues>();
+        for (int start = 0; start < intentKeys.size(); start += batchSize) {
+            String[] whereArgs = new String[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                whereArgs[i] = intentKeys.get(Math.min(start + i, intentKeys.size() - 1));
+            }
+            cursor = db.query(Shortcuts.TABLE_NAME, null, where.toString(), whereArgs,
+                    null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ContentValues shortcut = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, shortcut);
+                    rows.put(shortcut.getAsString(Shortcuts.intent_key.name()), shortcut);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        ArrayList<ContentValues> shortcuts = new ArrayList<ContentValues>(intentKeys.size());
+        for (String intentKey : intentKeys) {
+            ContentValues shortcut = rows.get(intentKey);
+            if (shortcut != null) shortcuts.add(shortcut);
+        }
+        return shortcuts;
+    }
+
+    /**
+     * Checks whether a shortcut would be included in a {@link ShortcutCursor}.
+     */
+    private static boolean isShortcutUsable(HashMap<String,Source> allowedSources,
+            boolean allowWebSearchShortcuts, String sourceName, int versionCode,
+            String intentAction) {
+        Source source = sourceName == null ? null : allowedSources.get(sourceName);
+        if (source == null || !source.isVersionCodeCompatible(versionCode)) {
+            return false;
+        }
+        return allowWebSearchShortcuts || !Intent.ACTION_WEB_SEARCH.equals(intentAction);
+    }
+
+    /**
+     * Makes a cursor with the same columns as the shortcut query from shortcut rows.
+     */
+    private static Cursor makeShortcutCursor(List<ContentValues> shortcuts) {
+        MatrixCursor cursor = new MatrixCursor(SHORTCUT_CURSOR_COLUMNS, shortcuts.size());
+        for (ContentValues shortcut : shortcuts) {
+            Object[] row = new Object[SHORTCUT_CURSOR_COLUMNS.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = shortcut.get(SHORTCUT_CURSOR_SOURCE_COLUMNS[i]);
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
     @VisibleForTesting
     void refreshShortcut(Source source, final String shortcutId,
             SuggestionCursor refreshed) {
         if (source == null) throw new NullPointerException("source");
         if (shortcutId == null) throw new NullPointerException("shortcutId");
 
-        final String[] whereArgs = { shortcutId, source.getName() };
+        final String sourceName = source.getName();
+        final String[] whereArgs = { shortcutId, sourceName };
         final ContentValues shortcut;
         if (refreshed == null || refreshed.getCount() == 0) {
             shortcut = null;
@@ -354,9 +1149,9 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
             shortcut = makeShortcutRow(refreshed);
         }
 
-        runTransactionAsync(new SQLiteTransaction() {
+        addPendingWrite(new PendingWrite() {
             @Override
-            protected boolean performTransaction(SQLiteDatabase db) {
+            protected void write(SQLiteDatabase db) {
                 if (shortcut == null) {
                     if (DBG) Log.d(TAG, "Deleting shortcut: " + shortcutId);
                     db.delete(Shortcuts.TABLE_NAME, SHORTCUT_BY_ID_WHERE, whereArgs);
@@ -365,9 +1160,22 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
                     db.updateWithOnConflict(Shortcuts.TABLE_NAME, shortcut,
                             SHORTCUT_BY_ID_WHERE, whereArgs, SQLiteDatabase.CONFLICT_REPLACE);
                 }
-                return true;
             }
-        });
+
+            @Override
+            protected void updateIndex() {
+                if (shortcut == null) {
+                    mIndex.removeShortcuts(shortcutId, sourceName);
+                } else {
+                    mIndex.updateShortcuts(shortcutId, sourceName, shortcut);
+                }
+            }
+
+            @Override
+            protected boolean deletesClicks() {
+                return shortcut == null;
+            }
+        }, false);
     }
 
     private class SuggestionCursorImpl extends CursorBackedSuggestionCursor {
@@ -509,7 +1317,10 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
      * @return The list of sources, ranked by total clicks.
      */
     Map<String,Integer> getCorpusScores(int minClicks) {
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        return readCorpusClicks(mOpenHelper.getReadConnection(), minClicks);
+    }
+
+    private static Map<String,Integer> readCorpusClicks(SQLiteDatabase db, int minClicks) {
         final Cursor cursor = db.rawQuery(
                 SOURCE_RANKING_SQL, new String[] { String.valueOf(minClicks) });
         try {
@@ -662,26 +1473,265 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         // Since intent_key is the primary key, any existing
         // suggestion with the same source+data+action will be replaced
         final ContentValues shortcut = makeShortcutRow(suggestion);
-        String intentKey = shortcut.getAsString(Shortcuts.intent_key.name());
+        final String intentKey = shortcut.getAsString(Shortcuts.intent_key.name());
+        final String query = suggestion.getUserQuery();
+        final String corpusName = corpus.getName();
 
         // Log click for shortcut
         final ContentValues click = new ContentValues();
         click.put(ClickLog.intent_key.name(), intentKey);
-        click.put(ClickLog.query.name(), suggestion.getUserQuery());
+        click.put(ClickLog.query.name(), query);
         click.put(ClickLog.hit_time.name(), now);
-        click.put(ClickLog.corpus.name(), corpus.getName());
+        click.put(ClickLog.corpus.name(), corpusName);
 
-        runTransactionAsync(new SQLiteTransaction() {
+        addPendingWrite(new PendingWrite() {
             @Override
-            protected boolean performTransaction(SQLiteDatabase db) {
+            protected void write(SQLiteDatabase db) {
                 if (DBG) Log.d(TAG, "Adding shortcut: " + shortcut);
                 db.replaceOrThrow(Shortcuts.TABLE_NAME, null, shortcut);
                 db.insertOrThrow(ClickLog.TABLE_NAME, null, click);
-                return true;
+                updateScores(intentKey, query, now, 1);
+                addScoresExpireTime(now);
+            }
+
+            @Override
+            protected void updateIndex() {
+                mIndex.putShortcut(shortcut);
+                mIndex.addClick(intentKey, query, now);
+                mIndex.addCorpusClick(corpusName);
+                addScoresExpireTime(now);
+            }
+
+            @Override
+            protected long getClickTime() {
+                return now;
+            }
+
+            @Override
+            protected String getClickCorpus() {
+                return corpusName;
+            }
+        }, false);
+    }
+
+    /**
+     * Deletes clicks that are too old to count, if that has not been done for a while.
+     * Shortcuts are also ranked without them in the meantime, see mScoresExpireTime.
+     * Must be called on mLogExecutor, outside of the click transaction.
+     */
+    private void ageOutClicksIfNeeded(long now) {
+        long sinceLast = now - mLastAgeOutTime;
+        if (sinceLast >= 0 && sinceLast < mConfig.getClickLogAgeOutIntervalMillis()) {
+            return;
+        }
+        // If there were too many old clicks to delete now, continue after the next click
+        if (ageOutClicks(now - mConfig.getMaxStatAgeMillis(), MAX_AGE_OUT_CHUNKS)) {
+            mLastAgeOutTime = now;
+        }
+    }
+
+    /**
+     * Deletes clicks older than the given time, in short transactions of a bounded
+     * number of clicks each. Must be called on mLogExecutor.
+     *
+     * @param cutOffTime Clicks before this time are deleted.
+     * @param maxChunks The maximum number of transactions to run.
+     * @return {@code true} if all the old clicks were deleted.
+     */
+    @VisibleForTesting
+    boolean ageOutClicks(long cutOffTime, int maxChunks) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        AgeOutTransaction ageOut = new AgeOutTransaction(cutOffTime);
+        boolean deleted = false;
+        boolean done = false;
+        for (int i = 0; i < maxChunks && !done; i++) {
+            ageOut.run(db);
+            if (DBG) Log.d(TAG, "Aged out " + ageOut.mDeletedCount + " clicks");
+            if (mIndex.isLoaded()) {
+                synchronized (mPendingWrites) {
+                    for (ContentValues click : ageOut.mDeletedClicks) {
+                        mIndex.removeClick(click.getAsString(ClickLog.intent_key.name()),
+                                click.getAsString(ClickLog.query.name()),
+                                click.getAsLong(ClickLog.hit_time.name()));
+                    }
+                    invalidateZeroQueryShortcuts();
+                }
+            }
+            deleted |= ageOut.mDeletedCount > 0;
+            done = ageOut.mDeletedCount < mConfig.getClickLogAgeOutChunkSize();
+        }
+        if (deleted) {
+            // The triggers have updated SourceStats
+            reloadCorpusClicks();
+        }
+        if (done) {
+            updateScoresExpireTime(db);
+        }
+        return done;
+    }
+
+    /**
+     * Ages out the clicks that are too old to count at the given time on mLogExecutor,
+     * unless that is already queued.
+     */
+    private void ageOutClicksAsync(final long now) {
+        if (!mAgeOutQueued.compareAndSet(false, true)) return;
+        if (DBG) Log.d(TAG, "Scores include old clicks, aging them out");
+        mLogExecutor.execute(new Runnable() {
+            public void run() {
+                mAgeOutQueued.set(false);
+                if (ageOutClicks(now - mConfig.getMaxStatAgeMillis(), MAX_AGE_OUT_CHUNKS)) {
+                    mLastAgeOutTime = now;
+                }
             }
         });
     }
 
+    /**
+     * Checks whether the score table may count clicks that are too old to count at the
+     * given time, and if so, starts aging them out.
+     */
+    private boolean scoresIncludeExpiredClicks(SQLiteDatabase db, long now) {
+        long expireTime = mScoresExpireTime;
+        if (expireTime == 0) {
+            expireTime = updateScoresExpireTime(db);
+        }
+        if (now < expireTime) return false;
+        ageOutClicksAsync(now);
+        return true;
+    }
+
+    /**
+     * Reads the time of the oldest click, to find out when the scores start to include
+     * clicks that are too old to count.
+     *
+     * @return The new value of {@link #mScoresExpireTime}.
+     */
+    private long updateScoresExpireTime(SQLiteDatabase db) {
+        long expireTime = Long.MAX_VALUE;
+        Cursor cursor = db.rawQuery(OLDEST_CLICK_QUERY, null);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                expireTime = cursor.getLong(0) + mConfig.getMaxStatAgeMillis();
+            }
+        } finally {
+            cursor.close();
+        }
+        synchronized (mPendingWrites) {
+            mScoresExpireTime = expireTime;
+        }
+        return expireTime;
+    }
+
+    /**
+     * Records that the scores include a click at the given time.
+     */
+    private void addScoresExpireTime(long hitTime) {
+        synchronized (mPendingWrites) {
+            long expireTime = hitTime + mConfig.getMaxStatAgeMillis();
+            if (mScoresExpireTime != 0 && expireTime < mScoresExpireTime) {
+                mScoresExpireTime = expireTime;
+            }
+        }
+    }
+
+    private static final String[] AGE_OUT_COLUMNS = {
+            ClickLog.intent_key.name(), ClickLog.query.name(), ClickLog.hit_time.name() };
+
+    private class AgeOutTransaction extends SQLiteTransaction {
+        private final String[] mWhereArgs;
+        private final ArrayList<ContentValues> mDeletedClicks = new ArrayList<ContentValues>();
+        private int mDeletedCount;
+
+        public AgeOutTransaction(long cutOffTime) {
+            mWhereArgs = new String[]{ String.valueOf(cutOffTime) };
+        }
+
+        @Override
+        protected boolean performTransaction(SQLiteDatabase db) {
+            // Take the old clicks out of the score table first
+            mDeletedClicks.clear();
+            Cursor cursor = db.query(ClickLog.TABLE_NAME, AGE_OUT_COLUMNS, mAgeOutWhere,
+                    mWhereArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ContentValues click = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, click);
+                    mDeletedClicks.add(click);
+                    updateScores(click.getAsString(ClickLog.intent_key.name()),
+                            click.getAsString(ClickLog.query.name()),
+                            click.getAsLong(ClickLog.hit_time.name()), -1);
+                }
+            } finally {
+                cursor.close();
+            }
+            mDeletedCount = db.delete(ClickLog.TABLE_NAME, mAgeOutWhere, mWhereArgs);
+            return true;
+        }
+    }
+
+    /**
+     * Adds a click to, or removes it from, the score table rows for each prefix of the
+     * click's query, up to {@link #MAX_SCORE_PREFIX_LENGTH} characters.
+     * Must be called on mLogExecutor, in a transaction.
+     *
+     * @param delta {@code 1} to add the click, {@code -1} to remove it.
+     */
+    private void updateScores(String intentKey, String query, long hitTime, int delta) {
+        SQLiteStatement insert = mOpenHelper.getWriteStatement(INSERT_SCORE_SQL);
+        SQLiteStatement update = mOpenHelper.getWriteStatement(UPDATE_SCORE_SQL);
+        SQLiteStatement deleteEmpty = mOpenHelper.getWriteStatement(DELETE_EMPTY_SCORE_SQL);
+        for (String prefix : ShortcutIndex.getPrefixes(query, MAX_SCORE_PREFIX_LENGTH)) {
+            if (delta > 0) {
+                insert.bindString(1, prefix);
+                insert.bindString(2, intentKey);
+                insert.execute();
+            }
+            update.bindLong(1, delta);
+            update.bindLong(2, delta * hitTime);
+            update.bindLong(3, hitTime);
+            update.bindString(4, prefix);
+            update.bindString(5, intentKey);
+            update.execute();
+            if (delta < 0) {
+                deleteEmpty.bindString(1, prefix);
+                deleteEmpty.bindString(2, intentKey);
+                deleteEmpty.execute();
+            }
+        }
+    }
+
+    /**
+     * Recomputes SourceStats from the click log if it has not been done for a while.
+     * The triggers keep SourceStats up to date, this only corrects any drift.
+     * Must be called on mLogExecutor, outside of the click transaction.
+     */
+    private void reconcileSourceStatsIfNeeded(long now) {
+        long sinceLast = now - mLastSourceStatsReconcileTime;
+        if (sinceLast >= 0 && sinceLast < mConfig.getSourceStatsReconcileIntervalMillis()) {
+            return;
+        }
+        mLastSourceStatsReconcileTime = now;
+        reconcileSourceStats();
+    }
+
+    /**
+     * Recomputes SourceStats from the click log. Must be called on mLogExecutor.
+     */
+    @VisibleForTesting
+    void reconcileSourceStats() {
+        if (DBG) Log.d(TAG, "Reconciling source stats");
+        new SQLiteTransaction() {
+            @Override
+            protected boolean performTransaction(SQLiteDatabase db) {
+                db.delete(SourceStats.TABLE_NAME, null, null);
+                db.execSQL(RECONCILE_SOURCE_STATS_SQL);
+                return true;
+            }
+        }.run(mOpenHelper.getWritableDatabase());
+        reloadCorpusClicks();
+    }
+
 // -------------------------- TABLES --------------------------
 
     /**
@@ -750,6 +1800,8 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
      * This is an aggregate table of {@link ClickLog} that stays up to date with the total
      * clicks for each corpus. This makes computing the corpus ranking more
      * more efficient, at the expense of some extra work when the clicks are reported.
+     * The totals are adjusted by triggers as clicks are inserted and deleted, and are
+     * periodically recomputed from scratch.
      */
     enum SourceStats {
         corpus,
@@ -775,28 +1827,58 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         }
     }
 
+    /**
+     * This is an aggregate table of {@link ClickLog} with the click count and the sum of
+     * the click times for each shortcut and each prefix of the queries it was clicked for.
+     * It is updated when clicks are reported and aged out, so that the shortcuts for a
+     * query can be ranked without aggregating the click log.
+     */
+    enum ShortcutScores {
+        query_prefix,
+        intent_key,
+        hit_count,
+        hit_time_sum,
+        last_hit_time;
+
+        static final String TABLE_NAME = "shortcutscores";
+
+        public final String fullName;
+
+        ShortcutScores() {
+            fullName = TABLE_NAME + "." + name();
+        }
+    }
+
 // -------------------------- END TABLES --------------------------
 
     // contains creation and update logic
     private static class DbOpenHelper extends SQLiteOpenHelper {
-        private final Config mConfig;
         private String mPath;
+        // Guarded by this
+        private SQLiteDatabase mReadConnection;
+        // Statements compiled against mStatementDb, by SQL. Guarded by this.
+        private final HashMap<String, SQLiteStatement> mWriteStatements =
+                new HashMap<String, SQLiteStatement>();
+        private SQLiteDatabase mStatementDb;
         private static final String SHORTCUT_ID_INDEX
                 = Shortcuts.TABLE_NAME + "_" + Shortcuts.shortcut_id.name();
         private static final String CLICKLOG_QUERY_INDEX
                 = ClickLog.TABLE_NAME + "_" + ClickLog.query.name();
         private static final String CLICKLOG_HIT_TIME_INDEX
                 = ClickLog.TABLE_NAME + "_" + ClickLog.hit_time.name();
+        private static final String SHORTCUTSCORES_INTENT_KEY_INDEX
+                = ShortcutScores.TABLE_NAME + "_" + ShortcutScores.intent_key.name();
         private static final String CLICKLOG_INSERT_TRIGGER
                 = ClickLog.TABLE_NAME + "_insert";
+        private static final String CLICKLOG_DELETE_TRIGGER
+                = ClickLog.TABLE_NAME + "_delete";
         private static final String SHORTCUTS_DELETE_TRIGGER
                 = Shortcuts.TABLE_NAME + "_delete";
         private static final String SHORTCUTS_UPDATE_INTENT_KEY_TRIGGER
                 = Shortcuts.TABLE_NAME + "_update_intent_key";
 
-        public DbOpenHelper(Context context, String name, int version, Config config) {
+        public DbOpenHelper(Context context, String name, int version) {
             super(context, name, null, version);
-            mConfig = config;
         }
 
         @Override
@@ -811,14 +1893,72 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
 
         private void dropTables(SQLiteDatabase db) {
             db.execSQL("DROP TRIGGER IF EXISTS " + CLICKLOG_INSERT_TRIGGER);
+            db.execSQL("DROP TRIGGER IF EXISTS " + CLICKLOG_DELETE_TRIGGER);
             db.execSQL("DROP TRIGGER IF EXISTS " + SHORTCUTS_DELETE_TRIGGER);
             db.execSQL("DROP TRIGGER IF EXISTS " + SHORTCUTS_UPDATE_INTENT_KEY_TRIGGER);
             db.execSQL("DROP INDEX IF EXISTS " + CLICKLOG_HIT_TIME_INDEX);
             db.execSQL("DROP INDEX IF EXISTS " + CLICKLOG_QUERY_INDEX);
             db.execSQL("DROP INDEX IF EXISTS " + SHORTCUT_ID_INDEX);
+            db.execSQL("DROP INDEX IF EXISTS " + SHORTCUTSCORES_INTENT_KEY_INDEX);
             db.execSQL("DROP TABLE IF EXISTS " + ClickLog.TABLE_NAME);
             db.execSQL("DROP TABLE IF EXISTS " + Shortcuts.TABLE_NAME);
             db.execSQL("DROP TABLE IF EXISTS " + SourceStats.TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + ShortcutScores.TABLE_NAME);
+        }
+
+        /**
+         * Gets a database connection for queries. With write-ahead logging, this is a
+         * separate read-only connection, so that queries don't wait for writes on the
+         * connection returned by {@link #getWritableDatabase}.
+         */
+        public synchronized SQLiteDatabase getReadConnection() {
+            if (!QsbApplication.isHoneycombOrLater()) {
+                return getReadableDatabase();
+            }
+            if (mReadConnection == null || !mReadConnection.isOpen()) {
+                // Creates or upgrades the database, and turns on write-ahead logging
+                getWritableDatabase();
+                mReadConnection = SQLiteDatabase.openDatabase(mPath, null,
+                        SQLiteDatabase.OPEN_READONLY);
+            }
+            return mReadConnection;
+        }
+
+        /**
+         * Gets a statement compiled against the database returned by
+         * {@link #getWritableDatabase}. Each statement is only compiled once per connection,
+         * so the caller must not use it on more than one thread.
+         */
+        public synchronized SQLiteStatement getWriteStatement(String sql) {
+            SQLiteDatabase db = getWritableDatabase();
+            if (db != mStatementDb) {
+                closeWriteStatements();
+                mStatementDb = db;
+            }
+            SQLiteStatement statement = mWriteStatements.get(sql);
+            if (statement == null) {
+                statement = db.compileStatement(sql);
+                mWriteStatements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        private void closeWriteStatements() {
+            for (SQLiteStatement statement : mWriteStatements.values()) {
+                statement.close();
+            }
+            mWriteStatements.clear();
+            mStatementDb = null;
+        }
+
+        @Override
+        public synchronized void close() {
+            closeWriteStatements();
+            if (mReadConnection != null) {
+                mReadConnection.close();
+                mReadConnection = null;
+            }
+            super.close();
         }
 
         /**
@@ -829,6 +1969,8 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
             if (mPath == null) return;
             try {
                 new File(mPath).delete();
+                new File(mPath + "-wal").delete();
+                new File(mPath + "-shm").delete();
                 if (DBG) Log.d(TAG, "deleted " + mPath);
             } catch (Exception e) {
                 Log.w(TAG, "couldn't delete " + mPath, e);
@@ -839,6 +1981,9 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
         public void onOpen(SQLiteDatabase db) {
             super.onOpen(db);
             mPath = db.getPath();
+            if (QsbApplication.isHoneycombOrLater() && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
         }
 
         @Override
@@ -889,20 +2034,33 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
             db.execSQL("CREATE INDEX " + CLICKLOG_HIT_TIME_INDEX
                     + " ON " + ClickLog.TABLE_NAME + "(" + ClickLog.hit_time.name() + ")");
 
-            // trigger for purging old clicks, i.e. those such that
-            // hit_time < now - MAX_MAX_STAT_AGE_MILLIS, where now is the
-            // hit_time of the inserted record, and for updating the SourceStats table
+            // trigger for counting new clicks in the SourceStats table.
+            // Old clicks are purged separately, see ageOutClicks().
             db.execSQL("CREATE TRIGGER " + CLICKLOG_INSERT_TRIGGER + " AFTER INSERT ON "
                     + ClickLog.TABLE_NAME
                     + " BEGIN"
-                    + " DELETE FROM " + ClickLog.TABLE_NAME + " WHERE "
-                            + ClickLog.hit_time.name() + " <"
-                            + " NEW." + ClickLog.hit_time.name()
-                                    + " - " + mConfig.getMaxStatAgeMillis() + ";"
-                    + " DELETE FROM " + SourceStats.TABLE_NAME + ";"
-                    + " INSERT INTO " + SourceStats.TABLE_NAME  + " "
-                            + "SELECT " + ClickLog.corpus + "," + "COUNT(*) FROM "
-                            + ClickLog.TABLE_NAME + " GROUP BY " + ClickLog.corpus.name() + ";"
+                    + " INSERT OR IGNORE INTO " + SourceStats.TABLE_NAME
+                            + " VALUES (NEW." + ClickLog.corpus.name() + ", 0);"
+                    + " UPDATE " + SourceStats.TABLE_NAME + " SET "
+                            + SourceStats.total_clicks.name() + " = "
+                            + SourceStats.total_clicks.name() + " + 1"
+                            + " WHERE " + SourceStats.corpus.name()
+                            + " = NEW." + ClickLog.corpus.name() + ";"
+                    + " END");
+
+            // trigger for uncounting clicks in the SourceStats table when they are aged out,
+            // or deleted along with their shortcut
+            db.execSQL("CREATE TRIGGER " + CLICKLOG_DELETE_TRIGGER + " AFTER DELETE ON "
+                    + ClickLog.TABLE_NAME
+                    + " BEGIN"
+                    + " UPDATE " + SourceStats.TABLE_NAME + " SET "
+                            + SourceStats.total_clicks.name() + " = "
+                            + SourceStats.total_clicks.name() + " - 1"
+                            + " WHERE " + SourceStats.corpus.name()
+                            + " = OLD." + ClickLog.corpus.name() + ";"
+                    + " DELETE FROM " + SourceStats.TABLE_NAME + " WHERE "
+                            + SourceStats.corpus.name() + " = OLD." + ClickLog.corpus.name()
+                            + " AND " + SourceStats.total_clicks.name() + " <= 0;"
                     + " END");
 
             // trigger for deleting clicks about a shortcut once that shortcut has been
@@ -913,6 +2071,9 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
                     + " DELETE FROM " + ClickLog.TABLE_NAME + " WHERE "
                             + ClickLog.intent_key.name()
                             + " = OLD." + Shortcuts.intent_key.name() + ";"
+                    + " DELETE FROM " + ShortcutScores.TABLE_NAME + " WHERE "
+                            + ShortcutScores.intent_key.name()
+                            + " = OLD." + Shortcuts.intent_key.name() + ";"
                     + " END");
 
             // trigger for updating click log entries when a shortcut changes its intent_key
@@ -926,12 +2087,35 @@ public class ShortcutRepositoryImplLog implements ShortcutRepository {
                             + " WHERE "
                             + ClickLog.intent_key.name() + " = OLD." + Shortcuts.intent_key.name()
                             + ";"
+                    + " UPDATE " + ShortcutScores.TABLE_NAME + " SET "
+                            + ShortcutScores.intent_key.name()
+                                    + " = NEW." + Shortcuts.intent_key.name()
+                            + " WHERE "
+                            + ShortcutScores.intent_key.name()
+                                    + " = OLD." + Shortcuts.intent_key.name()
+                            + ";"
                     + " END");
 
             db.execSQL("CREATE TABLE " + SourceStats.TABLE_NAME + " ( " +
                     SourceStats.corpus.name() + " TEXT NOT NULL COLLATE UNICODE PRIMARY KEY, " +
                     SourceStats.total_clicks + " INTEGER);"
                     );
+
+            db.execSQL("CREATE TABLE " + ShortcutScores.TABLE_NAME + " ( " +
+                    ShortcutScores.query_prefix.name() + " TEXT NOT NULL, " +
+                    // type must match Shortcuts.intent_key
+                    ShortcutScores.intent_key.name() + " TEXT NOT NULL COLLATE UNICODE, " +
+                    ShortcutScores.hit_count.name() + " INTEGER NOT NULL, " +
+                    ShortcutScores.hit_time_sum.name() + " INTEGER NOT NULL, " +
+                    ShortcutScores.last_hit_time.name() + " INTEGER NOT NULL, " +
+                    "PRIMARY KEY (" + ShortcutScores.query_prefix.name() + ", "
+                            + ShortcutScores.intent_key.name() + "));"
+                    );
+
+            // index for deleting the scores of a shortcut
+            db.execSQL("CREATE INDEX " + SHORTCUTSCORES_INTENT_KEY_INDEX
+                    + " ON " + ShortcutScores.TABLE_NAME
+                    + "(" + ShortcutScores.intent_key.name() + ")");
         }
     }
 }
@@ -16,6 +16,8 @@
 
 package com.android.quicksearchbox;
 
+import com.android.quicksearchbox.util.CancellationSignal;
+
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.drawable.Drawable;
@@ -57,9 +59,11 @@ public class SingleSourceCorpus extends AbstractCorpus {
         return mSource.getSettingsDescription();
     }
 
-    public CorpusResult getSuggestions(String query, int queryLimit, boolean onlyCorpus) {
+    public CorpusResult getSuggestions(String query, int queryLimit, boolean onlyCorpus,
+            CancellationSignal cancellationSignal) {
         LatencyTracker latencyTracker = new LatencyTracker();
-        SourceResult sourceResult = mSource.getSuggestions(query, queryLimit, true);
+        SourceResult sourceResult = mSource.getSuggestions(query, queryLimit, true,
+                cancellationSignal);
         int latency = latencyTracker.getLatency();
         return new SingleSourceCorpusResult(this, query, sourceResult, latency);
     }
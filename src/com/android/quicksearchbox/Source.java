@@ -16,6 +16,7 @@
 
 package com.android.quicksearchbox;
 
+import com.android.quicksearchbox.util.CancellationSignal;
 import com.android.quicksearchbox.util.NowOrLater;
 
 import android.content.ComponentName;
@@ -147,6 +148,18 @@ public interface Source extends SuggestionCursorProvider<SourceResult> {
      */
     SourceResult getSuggestions(String query, int queryLimit, boolean onlySource);
 
+    /**
+     * Gets suggestions from this source, stopping early if the query is canceled.
+     *
+     * @param query The user query.
+     * @param onlySource Indicates if this is the only source being queried.
+     * @param cancellationSignal Signals that the suggestions are no longer needed,
+     *        or {@code null}.
+     * @return The suggestion results.
+     */
+    SourceResult getSuggestions(String query, int queryLimit, boolean onlySource,
+            CancellationSignal cancellationSignal);
+
     /**
      * Updates a shortcut.
      *
@@ -16,6 +16,7 @@
 
 package com.android.quicksearchbox;
 
+import com.android.quicksearchbox.util.CancellationSignal;
 
 /**
  * Interface for objects that can produce a SuggestionCursor given a query.
@@ -37,4 +38,18 @@ public interface SuggestionCursorProvider<C extends SuggestionCursor> {
      * @return The suggestion results. Must not be {@code null}.
      */
     C getSuggestions(String query, int queryLimit, boolean onlyOne);
+
+    /**
+     * Gets suggestions from the provider, stopping early if the query is canceled.
+     *
+     * @param query The user query.
+     * @param queryLimit An advisory maximum number of results that the source should return.
+     * @param onlyOne Indicates if this provider is the only one being used for the query.
+     * @param cancellationSignal Signals that the suggestions are no longer needed,
+     *        or {@code null}. Providers should stop any work in progress when canceled,
+     *        and may then return empty results.
+     * @return The suggestion results. Must not be {@code null}.
+     */
+    C getSuggestions(String query, int queryLimit, boolean onlyOne,
+            CancellationSignal cancellationSignal);
 }
@@ -16,10 +16,11 @@
 
 package com.android.quicksearchbox;
 
+import com.android.quicksearchbox.util.AsyncDataSetObservable;
 import com.google.common.annotations.VisibleForTesting;
 
-import android.database.DataSetObservable;
 import android.database.DataSetObserver;
+import android.os.Handler;
 import android.util.Log;
 
 import java.util.ArrayList;
@@ -44,11 +45,13 @@ public class Suggestions {
 
     private final MyShortcutsObserver mShortcutsObserver = new MyShortcutsObserver();
 
+    private final DataSetObserver mIncrementalResultObserver = new IncrementalResultObserver();
+
     /**
      * The observers that want notifications of changes to the published suggestions.
      * This object may be accessed on any thread.
      */
-    private final DataSetObservable mDataSetObservable = new DataSetObservable();
+    private final AsyncDataSetObservable mDataSetObservable;
 
     /** The sources that are expected to report. */
     private final List<Corpus> mExpectedCorpora;
@@ -62,6 +65,19 @@ public class Suggestions {
      * */
     private final CorpusResult[] mCorpusResults;
 
+    /**
+     * Whether the corresponding entry in {@link #mCorpusResults} is a provisional result,
+     * to be replaced when the real result arrives. Provisional results are not counted
+     * as reported.
+     */
+    private final boolean[] mProvisional;
+
+    /**
+     * Whether the corresponding corpus in {@link #mExpectedCorpora} has run out of time
+     * to report. A timed out corpus no longer holds back {@link #isDone()}.
+     */
+    private final boolean[] mTimedOut;
+
     private CorpusResult mWebResult;
 
     private int mRefCount = 0;
@@ -69,9 +85,27 @@ public class Suggestions {
     private boolean mDone = false;
 
     public Suggestions(String query, List<Corpus> expectedCorpora) {
+        this(query, expectedCorpora, null, 0);
+    }
+
+    /**
+     * @param query The query that the suggestions are for.
+     * @param expectedCorpora The corpora that are expected to report.
+     * @param notifyHandler Handler to notify observers on. Changes that happen while a
+     *        notification is pending are merged into it. If {@code null}, observers are
+     *        notified synchronously on each change.
+     * @param notifyIntervalMillis If positive, notifications are delayed to the next
+     *        multiple of this interval, so that observers are notified at most once per
+     *        interval.
+     */
+    public Suggestions(String query, List<Corpus> expectedCorpora, Handler notifyHandler,
+            long notifyIntervalMillis) {
+        mDataSetObservable = new AsyncDataSetObservable(notifyHandler, notifyIntervalMillis);
         mQuery = query;
         mExpectedCorpora = expectedCorpora;
         mCorpusResults = new CorpusResult[mExpectedCorpora.size()];
+        mProvisional = new boolean[mExpectedCorpora.size()];
+        mTimedOut = new boolean[mExpectedCorpora.size()];
         // create a map of corpus name -> position in mExpectedCorpora for sorting later
         // (we want to keep the ordering of corpora in mCorpusResults).
         mCorpusPositions = new HashMap<String, Integer>();
@@ -166,27 +200,66 @@ public class Suggestions {
     }
 
     /**
-     * Checks whether all sources have reported.
+     * Records that a corpus has run out of time to report, because its query was dropped
+     * or is taking too long. Its result is still added if it arrives later.
+     * Must be called on the UI thread, or before this object is seen by the UI thread.
+     */
+    public void setCorpusTimedOut(String corpusName) {
+        Integer pos = mCorpusPositions.get(corpusName);
+        if (pos == null || mTimedOut[pos]) return;
+        if (DBG) Log.d(TAG, "Corpus " + corpusName + " timed out");
+        boolean wasDone = isDone();
+        mTimedOut[pos] = true;
+        if (!wasDone && isDone()) {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Checks whether all sources have reported or timed out.
      * Must be called on the UI thread, or before this object is seen by the UI thread.
      */
     public boolean isDone() {
         // TODO: Handle early completion because we have all the results we want.
-        return mDone || countCorpusResults() >= mExpectedCorpora.size();
+        return mDone || countFinishedCorpora() >= mExpectedCorpora.size();
+    }
+
+    private int countFinishedCorpora() {
+        int count = 0;
+        for (int i = 0; i < mCorpusResults.length; ++i) {
+            if (mTimedOut[i] || isReported(i)) {
+                count++;
+            }
+        }
+        return count;
     }
 
     private int countCorpusResults() {
         int count = 0;
         for (int i = 0; i < mCorpusResults.length; ++i) {
-            if (mCorpusResults[i] != null) {
+            if (isReported(i)) {
                 count++;
             }
         }
         return count;
     }
 
+    private boolean isReported(int pos) {
+        return mCorpusResults[pos] != null && !mProvisional[pos]
+                && isComplete(mCorpusResults[pos]);
+    }
+
+    private static boolean isComplete(CorpusResult result) {
+        return !(result instanceof IncrementalCorpusResult)
+                || ((IncrementalCorpusResult) result).isComplete();
+    }
+
     /**
      * Adds a list of corpus results. Must be called on the UI thread, or before this
      * object is seen by the UI thread.
+     *
+     * An incomplete {@link IncrementalCorpusResult} is shown as it is updated, but
+     * is not counted as reported until it is complete.
      */
     public void addCorpusResults(List<CorpusResult> corpusResults) {
         if (isClosed()) {
@@ -211,15 +284,72 @@ public class Suggestions {
                         corpusResult.getCorpus().getName());
                 corpusResult.close();
             } else {
+                if (mProvisional[pos]) {
+                    if (DBG) Log.d(TAG, "Replacing provisional result " + mCorpusResults[pos]);
+                    mCorpusResults[pos].close();
+                    mProvisional[pos] = false;
+                }
                 mCorpusResults[pos] = corpusResult;
                 if (corpusResult.getCorpus().isWebCorpus()) {
                     mWebResult = corpusResult;
                 }
+                if (!isComplete(corpusResult)) {
+                    corpusResult.registerDataSetObserver(mIncrementalResultObserver);
+                }
             }
         }
         notifyDataSetChanged();
     }
 
+    /**
+     * Adds a list of provisional corpus results, which are shown until the real results
+     * from the same corpora are added with {@link #addCorpusResults}. Provisional results
+     * for corpora that have already reported are dropped. Must be called on the UI thread,
+     * or before this object is seen by the UI thread.
+     */
+    public void addProvisionalCorpusResults(List<CorpusResult> corpusResults) {
+        boolean changed = false;
+        for (CorpusResult corpusResult : corpusResults) {
+            if (isClosed()) {
+                corpusResult.close();
+                continue;
+            }
+            if (!mQuery.equals(corpusResult.getUserQuery())) {
+                throw new IllegalArgumentException("Got provisional result for wrong query: "
+                      + mQuery + " != " + corpusResult.getUserQuery());
+            }
+            Integer pos = mCorpusPositions.get(corpusResult.getCorpus().getName());
+            if (pos == null || (mCorpusResults[pos] != null && !mProvisional[pos])) {
+                corpusResult.close();
+                continue;
+            }
+            if (DBG) {
+                Log.d(TAG, "addProvisionalCorpusResult["+ hashCode() + "] corpus:" +
+                        corpusResult.getCorpus().getName() + " results:" + corpusResult.getCount());
+            }
+            if (mCorpusResults[pos] != null) {
+                mCorpusResults[pos].close();
+            }
+            mCorpusResults[pos] = corpusResult;
+            mProvisional[pos] = true;
+            if (corpusResult.getCorpus().isWebCorpus()) {
+                mWebResult = corpusResult;
+            }
+            changed = true;
+        }
+        if (changed) {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Checks whether the result from the given corpus is provisional.
+     */
+    public boolean isProvisional(Corpus corpus) {
+        Integer pos = mCorpusPositions.get(corpus.getName());
+        return pos != null && mProvisional[pos];
+    }
+
     /**
      * Registers an observer that will be notified when the reported results or
      * the done status changes.
@@ -247,11 +377,29 @@ public class Suggestions {
         mDataSetObservable.notifyChanged();
     }
 
+    /**
+     * Gets the number of changes that did not cause an observer notification of their own,
+     * because they were merged with a pending notification.
+     */
+    public int getMergedNotificationCount() {
+        return mDataSetObservable.getMergedChangeCount();
+    }
+
+    /**
+     * Gets the number of change notifications sent to the observers.
+     */
+    public int getNotificationCount() {
+        return mDataSetObservable.getChangeNotificationCount();
+    }
+
     /**
      * Closes all the source results and unregisters all observers.
      */
     private void close() {
-        if (DBG) Log.d(TAG, "close() [" + hashCode() + "]");
+        if (DBG) {
+            Log.d(TAG, "close() [" + hashCode() + "] notifications="
+                    + getNotificationCount() + ",merged=" + getMergedNotificationCount());
+        }
         if (mClosed) {
             throw new IllegalStateException("Double close()");
         }
@@ -268,6 +416,7 @@ public class Suggestions {
             }
         }
         Arrays.fill(mCorpusResults, null);
+        Arrays.fill(mProvisional, false);
     }
 
     public boolean isClosed() {
@@ -369,4 +518,16 @@ public class Suggestions {
         }
     }
 
+    /**
+     * Observes incomplete incremental corpus results. These only change on the UI thread.
+     */
+    private class IncrementalResultObserver extends DataSetObserver {
+        @Override
+        public void onChanged() {
+            if (!isClosed()) {
+                notifyDataSetChanged();
+            }
+        }
+    }
+
 }
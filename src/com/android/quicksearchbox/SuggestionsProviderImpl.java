@@ -17,14 +17,21 @@
 package com.android.quicksearchbox;
 
 import com.android.quicksearchbox.util.BatchingNamedTaskExecutor;
+import com.android.quicksearchbox.util.CancellationSignal;
 import com.android.quicksearchbox.util.Consumer;
+import com.android.quicksearchbox.util.NamedTask;
 import com.android.quicksearchbox.util.NamedTaskExecutor;
 import com.android.quicksearchbox.util.NoOpConsumer;
 
+import android.database.DataSetObserver;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -48,8 +55,18 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
 
     private final Logger mLogger;
 
+    private final CorpusResultCache mResultCache;
+
+    private final CorpusLatencies mCorpusLatencies;
+
     private BatchingNamedTaskExecutor mBatchingExecutor;
 
+    /** Canceled when the queries for the current query string are no longer needed. */
+    private CancellationSignal mCancellationSignal;
+
+    // The receiver of the results of the current query, if they are displayed
+    private SuggestionCursorReceiver mReceiver;
+
     public SuggestionsProviderImpl(Config config,
             NamedTaskExecutor queryExecutor,
             Handler publishThread,
@@ -59,20 +76,36 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
         mPublishThread = publishThread;
         mLogger = logger;
         mShouldQueryStrategy = new ShouldQueryStrategy(mConfig);
+        int maxCachedResults = mConfig.getMaxCachedResultsPerCorpus();
+        mResultCache = maxCachedResults > 0
+                ? new CorpusResultCache(maxCachedResults, mConfig.getCorpusResultCacheTtlMillis())
+                : null;
+        mCorpusLatencies = new CorpusLatencies();
     }
 
     public void close() {
         cancelPendingTasks();
+        if (mResultCache != null) {
+            mResultCache.clear();
+        }
     }
 
     /**
-     * Cancels all pending query tasks.
+     * Cancels all pending query tasks, and stops the running ones.
      */
     private void cancelPendingTasks() {
         if (mBatchingExecutor != null) {
             mBatchingExecutor.cancelPendingTasks();
             mBatchingExecutor = null;
         }
+        if (mCancellationSignal != null) {
+            mCancellationSignal.cancel();
+            mCancellationSignal = null;
+        }
+        if (mReceiver != null) {
+            mReceiver.cancelDeadlines();
+            mReceiver = null;
+        }
     }
 
     /**
@@ -107,8 +140,11 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
 
     public Suggestions getSuggestions(String query, List<Corpus> corporaToQuery) {
         if (DBG) Log.d(TAG, "getSuggestions(" + query + ")");
+        // Queries for the previous query string are stale now
+        cancelPendingTasks();
         corporaToQuery = filterCorpora(query, corporaToQuery);
-        final Suggestions suggestions = new Suggestions(query, corporaToQuery);
+        final Suggestions suggestions = new Suggestions(query, corporaToQuery, mPublishThread,
+                mConfig.getSuggestionsNotifyIntervalMillis());
         Log.i(TAG, "chars:" + query.length() + ",corpora:" + corporaToQuery);
 
         // Fast path for the zero sources case
@@ -116,33 +152,123 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
             return suggestions;
         }
 
-        int initialBatchSize = countDefaultCorpora(corporaToQuery);
+        boolean displayResults = shouldDisplayResults(query);
+
+        // Publish any cached results before queueing queries for the remaining corpora
+        List<Corpus> corporaToStart = corporaToQuery;
+        if (displayResults) {
+            ArrayList<CorpusResult> cachedResults = getCachedResults(query, corporaToQuery);
+            if (cachedResults.size() > 0) {
+                corporaToStart = new ArrayList<Corpus>(corporaToQuery);
+                for (CorpusResult cachedResult : cachedResults) {
+                    corporaToStart.remove(cachedResult.getCorpus());
+                }
+                suggestions.addCorpusResults(cachedResults);
+                if (corporaToStart.size() == 0) {
+                    mBatchingExecutor = null;
+                    return suggestions;
+                }
+            }
+        }
+
+        if (displayResults) {
+            // Show narrowed results from a shorter query until the real results arrive
+            ArrayList<CorpusResult> provisionalResults =
+                    getProvisionalResults(query, corporaToStart);
+            if (provisionalResults.size() > 0) {
+                suggestions.addProvisionalCorpusResults(provisionalResults);
+            }
+        }
+
+        int initialBatchSize = countDefaultCorpora(corporaToStart);
         if (initialBatchSize == 0) {
             initialBatchSize = mConfig.getNumPromotedSources();
         }
 
-        mBatchingExecutor = new BatchingNamedTaskExecutor(mQueryExecutor);
+        mBatchingExecutor = new BatchingNamedTaskExecutor(mQueryExecutor,
+                new CorpusTaskComparator(corporaToStart, mCorpusLatencies,
+                        mConfig.getLatencyRankPenaltyMillis()));
 
         long publishResultDelayMillis = mConfig.getPublishResultDelayMillis();
 
-        Consumer<CorpusResult> receiver;
-        if (shouldDisplayResults(query)) {
-            receiver = new SuggestionCursorReceiver(
-                    mBatchingExecutor, suggestions, initialBatchSize,
-                    publishResultDelayMillis);
+        int maxResultsPerSource = mConfig.getMaxResultsPerSource();
+        // Tasks that are still queued behind a hung query after this are not started
+        long deadline = SystemClock.uptimeMillis() + mConfig.getSourceTimeoutMillis();
+        mCancellationSignal = new CancellationSignal();
+        if (displayResults) {
+            SuggestionCursorReceiver receiver = new SuggestionCursorReceiver(
+                    mBatchingExecutor, suggestions, publishResultDelayMillis);
+            mReceiver = receiver;
+            List<SuggestionCursorProvider<CorpusResult>> providers =
+                    getCachingProviders(corporaToStart);
+            QueryTask.startQueries(query, maxResultsPerSource, providers, mBatchingExecutor,
+                    mPublishThread, receiver, corporaToQuery.size() == 1, deadline,
+                    mCancellationSignal);
+            receiver.executeBatch(initialBatchSize);
         } else {
-            receiver = new NoOpConsumer<CorpusResult>();
             suggestions.done();
+            Consumer<CorpusResult> receiver = new NoOpConsumer<CorpusResult>();
+            QueryTask.startQueries(query, maxResultsPerSource, corporaToStart, mBatchingExecutor,
+                    mPublishThread, receiver, corporaToQuery.size() == 1, deadline,
+                    mCancellationSignal);
+            mBatchingExecutor.executeNextBatch(initialBatchSize);
         }
 
-        int maxResultsPerSource = mConfig.getMaxResultsPerSource();
-        QueryTask.startQueries(query, maxResultsPerSource, corporaToQuery, mBatchingExecutor,
-                mPublishThread, receiver, corporaToQuery.size() == 1);
-        mBatchingExecutor.executeNextBatch(initialBatchSize);
-
         return suggestions;
     }
 
+    /**
+     * Wraps the corpora that return their results at once so that the results are
+     * cached on the query thread, instead of being copied on the publish thread.
+     */
+    private List<SuggestionCursorProvider<CorpusResult>> getCachingProviders(
+            List<Corpus> corpora) {
+        ArrayList<SuggestionCursorProvider<CorpusResult>> providers =
+                new ArrayList<SuggestionCursorProvider<CorpusResult>>(corpora.size());
+        for (Corpus corpus : corpora) {
+            if (mResultCache == null || corpus instanceof AsyncSuggestionCursorProvider) {
+                providers.add(corpus);
+            } else {
+                providers.add(new CachingCorpusProvider(corpus));
+            }
+        }
+        return providers;
+    }
+
+    /**
+     * Gets the cached results for the given query, in the order of {@code corpora}.
+     */
+    private ArrayList<CorpusResult> getCachedResults(String query, List<Corpus> corpora) {
+        ArrayList<CorpusResult> cachedResults = new ArrayList<CorpusResult>();
+        if (mResultCache == null) return cachedResults;
+        for (Corpus corpus : corpora) {
+            CorpusResult cachedResult = mResultCache.get(corpus, query);
+            if (cachedResult != null) {
+                if (DBG) Log.d(TAG, "Using cached result for " + corpus);
+                cachedResults.add(cachedResult);
+            }
+        }
+        return cachedResults;
+    }
+
+    /**
+     * Gets provisional results for the given query, built by filtering the cached
+     * results for a prefix of the query.
+     */
+    private ArrayList<CorpusResult> getProvisionalResults(String query, List<Corpus> corpora) {
+        ArrayList<CorpusResult> provisionalResults = new ArrayList<CorpusResult>();
+        if (mResultCache == null || query.length() < 2) return provisionalResults;
+        SuggestionFilter filter = new TokenPrefixFilter(query);
+        for (Corpus corpus : corpora) {
+            CorpusResult provisionalResult = mResultCache.getForPrefix(corpus, query, filter);
+            if (provisionalResult != null) {
+                if (DBG) Log.d(TAG, "Using provisional result for " + corpus);
+                provisionalResults.add(provisionalResult);
+            }
+        }
+        return provisionalResults;
+    }
+
     private int countDefaultCorpora(List<Corpus> corpora) {
         int count = 0;
         for (Corpus corpus : corpora) {
@@ -153,6 +279,24 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
         return count;
     }
 
+    /**
+     * Checks whether a corpus is known to be slow to return results.
+     */
+    private boolean isSlowCorpus(String corpusName) {
+        int p90 = mCorpusLatencies.getLatencyPercentile(corpusName, 90);
+        return p90 > mConfig.getSlowCorpusLatencyMillis();
+    }
+
+    /**
+     * Gets how long a query to a corpus may take before the corpus is considered late.
+     */
+    private long getLatencyBudget(String corpusName) {
+        long timeout = mConfig.getSourceTimeoutMillis();
+        int p95 = mCorpusLatencies.getLatencyPercentile(corpusName, 95);
+        if (p95 < 0) return timeout;
+        return Math.min(timeout, Math.max(p95, mConfig.getMinCorpusLatencyBudgetMillis()));
+    }
+
     private boolean shouldDisplayResults(String query) {
         if (query.length() == 0 && !mConfig.showSuggestionsForZeroQuery()) {
             // Note that even though we don't display such results, it's
@@ -176,29 +320,106 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
             }
         };
 
-        private int mCountAtWhichToExecuteNextBatch;
+        /**
+         * Names of the corpora that have been queried, but have not returned yet and are
+         * still within their latency budget.
+         */
+        private final HashSet<String> mOutstandingCorpora = new HashSet<String>();
+
+        /**
+         * Names of the corpora that have been queried, but have not returned within their
+         * latency budget. Late corpora do not hold back the next batch, but their results
+         * are still published when they arrive.
+         */
+        private final HashSet<String> mLateCorpora = new HashSet<String>();
 
         public SuggestionCursorReceiver(BatchingNamedTaskExecutor executor,
-                Suggestions suggestions, int initialBatchSize,
-                long publishResultDelayMillis) {
+                Suggestions suggestions, long publishResultDelayMillis) {
             mExecutor = executor;
             mSuggestions = suggestions;
-            mCountAtWhichToExecuteNextBatch = initialBatchSize;
             mResultPublishDelayMillis = publishResultDelayMillis;
             mPendingResults = new ArrayList<CorpusResult>();
         }
 
+        /**
+         * Starts the next batch of queries. Corpora that are known to be slow are started
+         * in addition to {@code batchSize} other corpora, up to twice the batch size.
+         */
+        public void executeBatch(int batchSize) {
+            int slots = batchSize;
+            int extraSlots = batchSize;
+            ArrayList<String> startedCorpora = new ArrayList<String>(batchSize);
+            while (slots > 0) {
+                NamedTask task = mExecutor.executeNext();
+                if (task == null) break;
+                String corpusName = task.getName();
+                mOutstandingCorpora.add(corpusName);
+                startedCorpora.add(corpusName);
+                if (extraSlots > 0 && isSlowCorpus(corpusName)) {
+                    if (DBG) Log.d(TAG, "Started slow corpus " + corpusName + " in extra slot");
+                    extraSlots--;
+                } else {
+                    slots--;
+                }
+            }
+            // Scheduled after starting the whole batch, since a deadline may start
+            // another batch
+            for (String corpusName : startedCorpora) {
+                scheduleDeadline(corpusName);
+            }
+        }
+
+        private void scheduleDeadline(final String corpusName) {
+            // Posted with this receiver as the token, for cancelDeadlines()
+            mPublishThread.postAtTime(new Runnable() {
+                public void run() {
+                    onDeadline(corpusName);
+                }
+            }, this, SystemClock.uptimeMillis() + getLatencyBudget(corpusName));
+        }
+
+        /**
+         * Removes the deadlines that have not passed yet, so that they don't keep this
+         * receiver and its suggestions alive once the query is canceled.
+         */
+        public void cancelDeadlines() {
+            mPublishThread.removeCallbacksAndMessages(this);
+        }
+
+        /**
+         * Called when a corpus query has used up its latency budget. This is also how a
+         * query that was dropped or canceled before it started is accounted for, since
+         * the consumer never hears from it.
+         */
+        private void onDeadline(String corpusName) {
+            if (mSuggestions.isClosed() || !mOutstandingCorpora.remove(corpusName)) {
+                // Already returned
+                return;
+            }
+            if (DBG) Log.d(TAG, "Corpus " + corpusName + " is late");
+            mLateCorpora.add(corpusName);
+            // Don't let the UI wait for it any longer
+            mSuggestions.setCorpusTimedOut(corpusName);
+            executeNextBatchIfNeeded();
+        }
+
         public boolean consume(CorpusResult cursor) {
             if (DBG) {
                 Log.d(TAG, "SuggestionCursorReceiver.consume(" + cursor + ") corpus=" +
                         cursor.getCorpus() + " count = " + cursor.getCount());
             }
-            updateShouldQueryStrategy(cursor);
+            if (cursor instanceof IncrementalCorpusResult
+                    && !((IncrementalCorpusResult) cursor).isComplete()) {
+                // Show the suggestions that have arrived so far, and finish when the
+                // rest arrive
+                waitForCompletion((IncrementalCorpusResult) cursor);
+            } else {
+                onCorpusResultComplete(cursor);
+            }
             mPendingResults.add(cursor);
             if (mResultPublishDelayMillis > 0
                     && !mSuggestions.isClosed()
-                    && mSuggestions.getResultCount() + mPendingResults.size()
-                            < mCountAtWhichToExecuteNextBatch) {
+                    && countFastOutstandingCorpora() > 0) {
                 // This is not the last result of the batch, delay publishing
                 if (DBG) Log.d(TAG, "Delaying result by " + mResultPublishDelayMillis + " ms");
                 mPublishThread.removeCallbacks(mResultPublishTask);
@@ -212,10 +433,47 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
             if (!mSuggestions.isClosed()) {
                 executeNextBatchIfNeeded();
             }
-            if (cursor != null && mLogger != null) {
+            return true;
+        }
+
+        private void waitForCompletion(final IncrementalCorpusResult result) {
+            result.registerDataSetObserver(new DataSetObserver() {
+                @Override
+                public void onChanged() {
+                    if (!result.isComplete()) return;
+                    result.unregisterDataSetObserver(this);
+                    if (mSuggestions.isClosed()) return;
+                    onCorpusResultComplete(result);
+                    if (!mPendingResults.isEmpty() && countFastOutstandingCorpora() == 0) {
+                        // The delayed results were only waiting for this one
+                        mPublishThread.removeCallbacks(mResultPublishTask);
+                        publishPendingResults();
+                    }
+                    executeNextBatchIfNeeded();
+                }
+            });
+        }
+
+        /**
+         * Records that a corpus has returned all its results.
+         */
+        private void onCorpusResultComplete(CorpusResult cursor) {
+            String corpusName = cursor.getCorpus().getName();
+            mOutstandingCorpora.remove(corpusName);
+            mLateCorpora.remove(corpusName);
+            mCorpusLatencies.addLatency(corpusName, cursor.getLatency());
+            updateShouldQueryStrategy(cursor);
+            // Other results have been cached on the query thread
+            if (mResultCache != null && cursor instanceof IncrementalCorpusResult) {
+                List<Suggestion> copies =
+                        ((IncrementalCorpusResult) cursor).getSuggestionCopies();
+                if (copies != null) {
+                    mResultCache.put(cursor.getCorpus(), cursor.getUserQuery(), copies);
+                }
+            }
+            if (mLogger != null) {
                 mLogger.logLatency(cursor);
             }
-            return true;
         }
 
         private void publishPendingResults() {
@@ -223,13 +481,98 @@ public class SuggestionsProviderImpl implements SuggestionsProvider {
             mPendingResults.clear();
         }
 
+        /**
+         * Counts the outstanding queries to corpora that are not known to be slow.
+         */
+        private int countFastOutstandingCorpora() {
+            int count = 0;
+            for (String corpusName : mOutstandingCorpora) {
+                if (!isSlowCorpus(corpusName)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
         private void executeNextBatchIfNeeded() {
-            if (mSuggestions.getResultCount() == mCountAtWhichToExecuteNextBatch) {
-                // We've just finished one batch, ask for more
-                int nextBatchSize = mConfig.getNumPromotedSources();
-                mCountAtWhichToExecuteNextBatch += nextBatchSize;
-                mExecutor.executeNextBatch(nextBatchSize);
+            if (countFastOutstandingCorpora() == 0) {
+                // We've just finished one batch, or only slow or late corpora remain,
+                // ask for more
+                executeBatch(mConfig.getNumPromotedSources());
             }
         }
     }
+
+    /**
+     * Gets suggestions from a corpus and caches them before they are published.
+     */
+    private class CachingCorpusProvider implements SuggestionCursorProvider<CorpusResult> {
+        private final Corpus mCorpus;
+
+        public CachingCorpusProvider(Corpus corpus) {
+            mCorpus = corpus;
+        }
+
+        public String getName() {
+            return mCorpus.getName();
+        }
+
+        public CorpusResult getSuggestions(String query, int queryLimit, boolean onlyOne) {
+            return getSuggestions(query, queryLimit, onlyOne, null);
+        }
+
+        public CorpusResult getSuggestions(String query, int queryLimit, boolean onlyOne,
+                CancellationSignal cancellationSignal) {
+            CorpusResult result = mCorpus.getSuggestions(query, queryLimit, onlyOne,
+                    cancellationSignal);
+            if (result != null && !(result instanceof IncrementalCorpusResult)
+                    && !CancellationSignal.isCanceled(cancellationSignal)) {
+                mResultCache.put(result);
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return mCorpus.toString();
+        }
+    }
+
+    /**
+     * Orders query tasks by the rank of their corpora. Default corpora always come first.
+     * Within each group, a corpus is moved down one position for every
+     * {@link Config#getLatencyRankPenaltyMillis} of average query latency, so that the
+     * corpora most likely to fill the promoted slots quickly are queried first.
+     */
+    private static class CorpusTaskComparator implements Comparator<NamedTask> {
+        /** Corpus name -> sort key, lower comes first. */
+        private final HashMap<String, Long> mSortKeys;
+
+        public CorpusTaskComparator(List<Corpus> rankedCorpora, CorpusLatencies latencies,
+                int latencyPenaltyMillis) {
+            mSortKeys = new HashMap<String, Long>(rankedCorpora.size());
+            for (int rank = 0; rank < rankedCorpora.size(); rank++) {
+                Corpus corpus = rankedCorpora.get(rank);
+                String name = corpus.getName();
+                int latency = latencies.getAverageLatency(name);
+                int score = rank;
+                if (latency > 0 && latencyPenaltyMillis > 0) {
+                    score += latency / latencyPenaltyMillis;
+                }
+                long group = corpus.isCorpusDefaultEnabled() ? 0L : 1L;
+                mSortKeys.put(name, (group << 32) | score);
+            }
+        }
+
+        public int compare(NamedTask task1, NamedTask task2) {
+            long key1 = getSortKey(task1);
+            long key2 = getSortKey(task2);
+            return key1 < key2 ? -1 : (key1 == key2 ? 0 : 1);
+        }
+
+        private long getSortKey(NamedTask task) {
+            Long key = mSortKeys.get(task.getName());
+            return key == null ? Long.MAX_VALUE : key;
+        }
+    }
 }
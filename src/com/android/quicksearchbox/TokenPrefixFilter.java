@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.quicksearchbox;
+
+import java.util.ArrayList;
+
+/**
+ * {@link SuggestionFilter} that accepts suggestions where every token of the query
+ * is a prefix of some word in text1 or text2. Matching is case insensitive.
+ */
+public class TokenPrefixFilter implements SuggestionFilter {
+
+    private final String[] mQueryTokens;
+
+    public TokenPrefixFilter(String query) {
+        mQueryTokens = tokenize(query.toLowerCase());
+    }
+
+    public boolean accept(Suggestion s) {
+        String text1 = lowerCase(s.getSuggestionText1());
+        String text2 = lowerCase(s.getSuggestionText2());
+        for (String token : mQueryTokens) {
+            if (!hasWordWithPrefix(text1, token) && !hasWordWithPrefix(text2, token)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String lowerCase(String str) {
+        return str == null ? null : str.toLowerCase();
+    }
+
+    /**
+     * Checks whether any word in {@code text} starts with {@code prefix}.
+     */
+    private static boolean hasWordWithPrefix(String text, String prefix) {
+        if (text == null) return false;
+        int pos = text.indexOf(prefix);
+        while (pos >= 0) {
+            if (pos == 0 || Character.isWhitespace(text.charAt(pos - 1))) {
+                return true;
+            }
+            pos = text.indexOf(prefix, pos + 1);
+        }
+        return false;
+    }
+
+    private static String[] tokenize(String query) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        int len = query.length();
+        int start = 0;
+        while (start < len) {
+            while (start < len && Character.isWhitespace(query.charAt(start))) {
+                start++;
+            }
+            int end = start;
+            while (end < len && !Character.isWhitespace(query.charAt(end))) {
+                end++;
+            }
+            if (end > start) {
+                tokens.add(query.substring(start, end));
+            }
+            start = end;
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+}
@@ -21,6 +21,7 @@ import com.android.quicksearchbox.CursorBackedSourceResult;
 import com.android.quicksearchbox.R;
 import com.android.quicksearchbox.SourceResult;
 import com.android.quicksearchbox.SuggestionCursor;
+import com.android.quicksearchbox.util.CancellationSignal;
 import com.android.quicksearchbox.util.NamedTaskExecutor;
 
 import android.content.ComponentName;
@@ -55,6 +56,14 @@ public abstract class AbstractGoogleSource extends AbstractInternalSource implem
      */
     public abstract SourceResult queryInternal(String query);
 
+    /**
+     * Called by QSB to get web suggestions for a query, stopping early if the query is
+     * canceled. The default implementation ignores the cancellation signal.
+     */
+    public SourceResult queryInternal(String query, CancellationSignal cancellationSignal) {
+        return queryInternal(query);
+    }
+
     /**
      * Called by external apps to get web suggestions for a query.
      */
@@ -89,8 +98,9 @@ public abstract class AbstractGoogleSource extends AbstractInternalSource implem
         return R.mipmap.google_icon;
     }
 
-    public SourceResult getSuggestions(String query, int queryLimit, boolean onlySource) {
-        return emptyIfNull(queryInternal(query), query);
+    public SourceResult getSuggestions(String query, int queryLimit, boolean onlySource,
+            CancellationSignal cancellationSignal) {
+        return emptyIfNull(queryInternal(query, cancellationSignal), query);
     }
 
     public SourceResult getSuggestionsExternal(String query) {
@@ -36,4 +36,17 @@ public interface GoogleSource extends Source {
      */
     SourceResult queryExternal(String query);
 
+    /**
+     * Called by QSB when it is likely to query for web suggestions soon, so that
+     * the source can set up its network connection in the background.
+     * Must be called on the main thread.
+     */
+    void warmUp();
+
+    /**
+     * Deletes any suggestions kept for later queries. These include the queries they
+     * were fetched for, so they are deleted along with the search history.
+     */
+    void clearCache();
+
 }
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.google;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A bounded cache of Google suggest responses, keyed by request URL.
+ *
+ * The most recently used responses are kept in memory. Every response is also written
+ * to a file in a cache directory, so that it outlives the process. Entries are not
+ * expired by the cache, callers decide how old a response they accept.
+ *
+ * Files are only accessed on the disk executor. When it first runs, the most recently
+ * written responses are loaded into memory.
+ *
+ * This class is thread safe.
+ */
+class GoogleSuggestCache {
+
+    private static final boolean DBG = false;
+    private static final String TAG = "QSB.GoogleSuggestCache";
+
+    private static final int FILE_VERSION = 1;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mDir;
+    private final int mMaxMemoryEntries;
+    private final int mMaxDiskEntries;
+    private final Executor mDiskExecutor;
+
+    private final LruMap mEntries;
+
+    // Incremented by each clear(), so that responses read from disk before it are not
+    // kept in memory. Guarded by this.
+    private int mGeneration = 0;
+    // The number of clear() calls whose files have not been deleted yet. Files are not
+    // read while there are any. Guarded by this.
+    private int mPendingClears = 0;
+    // The names of the cache files, least recently written first, or null until the
+    // disk executor has listed them. Only changed on the disk executor. Guarded by this.
+    private LinkedHashSet<String> mFileNames;
+    // URLs that have a read from disk queued. Guarded by this.
+    private final HashSet<String> mPendingReads = new HashSet<String>();
+
+    /**
+     * @param dir The directory to keep the cache files in. Created when first needed.
+     * @param maxMemoryEntries The maximum number of responses to keep in memory.
+     * @param maxDiskEntries The maximum number of responses to keep on disk.
+     * @param diskExecutor Executor for reading and writing cache files. Must run tasks
+     *        one at a time, in order.
+     */
+    public GoogleSuggestCache(File dir, int maxMemoryEntries, int maxDiskEntries,
+            Executor diskExecutor) {
+        mDir = dir;
+        mMaxMemoryEntries = maxMemoryEntries;
+        mMaxDiskEntries = maxDiskEntries;
+        mDiskExecutor = diskExecutor;
+        mEntries = new LruMap(maxMemoryEntries);
+    }
+
+    /**
+     * Gets the cached response for a URL from memory. Does not block on disk access:
+     * if the response is only on disk, it is read on the disk executor, and returned by
+     * later calls.
+     *
+     * @return The cached response, or {@code null} if there is none in memory.
+     */
+    public Entry get(final String url) {
+        final int generation;
+        synchronized (this) {
+            Entry entry = mEntries.get(url);
+            if (entry != null) {
+                if (DBG) Log.d(TAG, "Memory hit: " + url);
+                return entry;
+            }
+            if (mPendingClears > 0) return null;
+            if (mFileNames != null && !mFileNames.contains(getFileName(url))) return null;
+            if (!mPendingReads.add(url)) return null;
+            generation = mGeneration;
+        }
+        mDiskExecutor.execute(new Runnable() {
+            public void run() {
+                loadFileNames();
+                boolean read;
+                synchronized (GoogleSuggestCache.this) {
+                    read = mFileNames.contains(getFileName(url)) && !mEntries.containsKey(url);
+                }
+                CacheFile file = read ? readFile(getFile(url)) : null;
+                synchronized (GoogleSuggestCache.this) {
+                    mPendingReads.remove(url);
+                }
+                // The file may be for another URL with the same hash code
+                if (file != null && url.equals(file.mUrl)) {
+                    if (DBG) Log.d(TAG, "Disk hit: " + url);
+                    putRead(url, file.mEntry, generation);
+                }
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Stores the response for a URL. The file is written on the disk executor.
+     */
+    public void put(final String url, final Entry entry) {
+        synchronized (this) {
+            mEntries.put(url, entry);
+        }
+        mDiskExecutor.execute(new Runnable() {
+            public void run() {
+                loadFileNames();
+                if (writeEntry(url, entry)) {
+                    trimDisk(getFileName(url));
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes all responses. They are gone from memory at once, and their files are
+     * deleted on the disk executor, after any writes that are already queued.
+     */
+    public void clear() {
+        synchronized (this) {
+            mEntries.clear();
+            mGeneration++;
+            mPendingClears++;
+        }
+        mDiskExecutor.execute(new Runnable() {
+            public void run() {
+                deleteFiles();
+                synchronized (GoogleSuggestCache.this) {
+                    mFileNames = new LinkedHashSet<String>();
+                    mPendingClears--;
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps a response read from disk in memory, unless the cache was cleared since
+     * the read was started, or a newer response was put meanwhile.
+     */
+    private synchronized void putRead(String url, Entry entry, int generation) {
+        if (generation != mGeneration) return;
+        Entry current = mEntries.get(url);
+        if (current != null && current.getTime() >= entry.getTime()) return;
+        mEntries.put(url, entry);
+    }
+
+    /**
+     * Lists the cache files, if not done yet, and loads the most recently written
+     * ones into memory. Must be called on the disk executor.
+     */
+    private void loadFileNames() {
+        final int generation;
+        synchronized (this) {
+            if (mFileNames != null) return;
+            generation = mGeneration;
+        }
+        File[] files = mDir.listFiles();
+        if (files == null) files = new File[0];
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        LinkedHashSet<String> names = new LinkedHashSet<String>();
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                // Left by a write that did not finish
+                file.delete();
+            } else {
+                names.add(file.getName());
+            }
+        }
+        if (DBG) Log.d(TAG, "Found " + names.size() + " files");
+        synchronized (this) {
+            mFileNames = names;
+        }
+        // Oldest first, so that the most recently written are the most recently used.
+        // Stops when memory is full, rather than evict responses that are in use.
+        int first = Math.max(0, files.length - mMaxMemoryEntries);
+        for (int i = first; i < files.length; i++) {
+            if (!names.contains(files[i].getName())) continue;
+            synchronized (this) {
+                if (mEntries.size() >= mMaxMemoryEntries) break;
+            }
+            CacheFile file = readFile(files[i]);
+            if (file != null) {
+                putRead(file.mUrl, file.mEntry, generation);
+            }
+        }
+    }
+
+    private void deleteFiles() {
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+        if (DBG) Log.d(TAG, "Deleting " + files.length + " files");
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private static String getFileName(String url) {
+        return Integer.toHexString(url.hashCode());
+    }
+
+    private File getFile(String url) {
+        return new File(mDir, getFileName(url));
+    }
+
+    /**
+     * @return The contents of a cache file, or {@code null} if it could not be read.
+     */
+    private CacheFile readFile(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) return null;
+            String url = in.readUTF();
+            long time = in.readLong();
+            int count = in.readInt();
+            String[] suggestions = new String[count];
+            String[] popularity = new String[count];
+            for (int i = 0; i < count; i++) {
+                suggestions[i] = readString(in);
+                popularity[i] = readString(in);
+            }
+            return new CacheFile(url, new Entry(time, count, suggestions, popularity));
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file + ": " + e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return {@code true} if the file was written.
+     */
+    private boolean writeEntry(String url, Entry entry) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + mDir);
+            return false;
+        }
+        File file = getFile(url);
+        File tmp = new File(mDir, file.getName() + TMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(url);
+            out.writeLong(entry.getTime());
+            int count = entry.getCount();
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                writeString(out, entry.getSuggestions()[i]);
+                writeString(out, entry.getPopularity()[i]);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Failed to rename " + tmp + " to " + file);
+                tmp.delete();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file + ": " + e);
+            tmp.delete();
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Records that a file was written, and deletes the least recently written files
+     * if there are too many. Must be called on the disk executor.
+     */
+    private void trimDisk(String writtenName) {
+        ArrayList<String> excess = new ArrayList<String>();
+        synchronized (this) {
+            mFileNames.remove(writtenName);
+            mFileNames.add(writtenName);
+            Iterator<String> it = mFileNames.iterator();
+            while (mFileNames.size() > mMaxDiskEntries) {
+                excess.add(it.next());
+                it.remove();
+            }
+        }
+        if (DBG && !excess.isEmpty()) Log.d(TAG, "Deleting " + excess.size() + " files");
+        for (String name : excess) {
+            new File(mDir, name).delete();
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * A parsed suggest response.
+     */
+    public static class Entry {
+        private final long mTime;
+        private final int mCount;
+        private final String[] mSuggestions;
+        private final String[] mPopularity;
+
+        /**
+         * @param time When the response was received, in {@link System#currentTimeMillis()}
+         *        time base.
+         * @param count The number of suggestions.
+         * @param suggestions The suggestions, at least {@code count} long.
+         * @param popularity The popularity of each suggestion, at least {@code count} long.
+         */
+        public Entry(long time, int count, String[] suggestions, String[] popularity) {
+            mTime = time;
+            mCount = count;
+            mSuggestions = suggestions;
+            mPopularity = popularity;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public String[] getSuggestions() {
+            return mSuggestions;
+        }
+
+        public String[] getPopularity() {
+            return mPopularity;
+        }
+    }
+
+    private static class CacheFile {
+        public final String mUrl;
+        public final Entry mEntry;
+
+        public CacheFile(String url, Entry entry) {
+            mUrl = url;
+            mEntry = entry;
+        }
+    }
+
+    private static class LruMap extends LinkedHashMap<String, Entry> {
+        private final int mMaxSize;
+
+        public LruMap(int maxSize) {
+            super(maxSize + 1, 1.0f, true);
+            mMaxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > mMaxSize;
+        }
+    }
+}
@@ -21,31 +21,32 @@ import com.android.quicksearchbox.R;
 import com.android.quicksearchbox.Source;
 import com.android.quicksearchbox.SourceResult;
 import com.android.quicksearchbox.SuggestionCursor;
+import com.android.quicksearchbox.util.CancellationSignal;
+import com.android.quicksearchbox.util.HttpHelper;
 import com.android.quicksearchbox.util.NamedTaskExecutor;
+import com.google.common.annotations.VisibleForTesting;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONArray;
 import org.json.JSONException;
 
 import android.content.ComponentName;
 import android.content.Context;
 import android.net.ConnectivityManager;
-import android.net.http.AndroidHttpClient;
 import android.net.NetworkInfo;
-import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 /**
  * Use network-based Google Suggests to provide search suggestions.
@@ -55,20 +56,56 @@ public class GoogleSuggestClient extends AbstractGoogleSource {
     private static final boolean DBG = false;
     private static final String LOG_TAG = "GoogleSearch";
 
-    private static final String USER_AGENT = "Android/" + Build.VERSION.RELEASE;
+    private static final String CACHE_DIR = "suggest";
+
     private String mSuggestUri;
 
-    // TODO: this should be defined somewhere
-    private static final String HTTP_TIMEOUT = "http.conn-manager.timeout";
+    // Shared with the rest of QSB, so that all requests to Google use the same
+    // keep-alive connections.
+    private final HttpHelper mHttpHelper;
+
+    private final Config mConfig;
+
+    // Used for warm-up, revalidation of stale responses and cache writes.
+    private final Executor mBackgroundExecutor;
+
+    private final GoogleSuggestCache mCache;
 
-    private final HttpClient mHttpClient;
+    // URLs that are being fetched to revalidate a cached response.
+    private final HashSet<String> mRevalidating = new HashSet<String>();
+
+    // Requests that are being made, by URL. Later callers for the same URL wait for
+    // these instead of making their own.
+    private final HashMap<String, InFlightRequest> mInFlight =
+            new HashMap<String, InFlightRequest>();
+
+    // The most recent query, and when it started. Guarded by mQueryLock, which is
+    // notified whenever they change.
+    private final Object mQueryLock = new Object();
+    private String mLatestQuery;
+    private long mLatestQueryTime;
+
+    // Moving average of recent request latencies, or -1 if none has completed yet.
+    private volatile long mLatencyMillis = -1;
 
     public GoogleSuggestClient(Context context, Handler uiThread,
-            NamedTaskExecutor iconLoader, Config config) {
+            NamedTaskExecutor iconLoader, Config config, HttpHelper httpHelper,
+            Executor backgroundExecutor) {
+        this(context, uiThread, iconLoader, config, httpHelper, backgroundExecutor,
+                new GoogleSuggestCache(new File(context.getCacheDir(), CACHE_DIR),
+                        config.getWebSuggestCacheMemoryEntries(),
+                        config.getWebSuggestCacheDiskEntries(), backgroundExecutor));
+    }
+
+    @VisibleForTesting
+    GoogleSuggestClient(Context context, Handler uiThread, NamedTaskExecutor iconLoader,
+            Config config, HttpHelper httpHelper, Executor backgroundExecutor,
+            GoogleSuggestCache cache) {
         super(context, uiThread, iconLoader);
-        mHttpClient = AndroidHttpClient.newInstance(USER_AGENT, context);
-        HttpParams params = mHttpClient.getParams();
-        params.setLongParameter(HTTP_TIMEOUT, config.getHttpConnectTimeout());
+        mHttpHelper = httpHelper;
+        mConfig = config;
+        mBackgroundExecutor = backgroundExecutor;
+        mCache = cache;
 
         // NOTE:  Do not look up the resource here;  Localization changes may not have completed
         // yet (e.g. we may still be reading the SIM card).
@@ -82,70 +119,368 @@ public class GoogleSuggestClient extends AbstractGoogleSource {
 
     @Override
     public SourceResult queryInternal(String query) {
-        return query(query);
+        return query(query, null);
+    }
+
+    @Override
+    public SourceResult queryInternal(String query, CancellationSignal cancellationSignal) {
+        return query(query, cancellationSignal);
     }
 
     @Override
     public SourceResult queryExternal(String query) {
-        return query(query);
+        return query(query, null);
     }
 
     /**
      * Queries for a given search term and returns a cursor containing
      * suggestions ordered by best match.
+     *
+     * A cached response is returned without a request while it is fresh. Once it is
+     * stale, it is still returned, and a new response is fetched in the background. When
+     * there is no cached response for the query and the network is slow or absent,
+     * the suggestions cached for a prefix of the query are returned if any of them
+     * still match.
+     *
+     * @param cancellationSignal If canceled, the HTTP request is aborted. May be null.
      */
-    private SourceResult query(String query) {
-        if (TextUtils.isEmpty(query)) {
-            return null;
-        }
-        if (!isNetworkConnected()) {
-            Log.i(LOG_TAG, "Not connected to network.");
+    private SourceResult query(String query, CancellationSignal cancellationSignal) {
+        if (TextUtils.isEmpty(query) || CancellationSignal.isCanceled(cancellationSignal)) {
             return null;
         }
+        long queryTime = SystemClock.uptimeMillis();
+        long previousQueryTime = startQuery(query, queryTime);
         try {
-            query = URLEncoder.encode(query, "UTF-8");
-            if (mSuggestUri == null) {
-                Locale l = Locale.getDefault();
-                String language = GoogleSearch.getLanguage(l);
-                mSuggestUri = getContext().getResources().getString(R.string.google_suggest_base,
-                                                                    language);
-            }
-
-            String suggestUri = mSuggestUri + query;
-            if (DBG) Log.d(LOG_TAG, "Sending request: " + suggestUri);
-            HttpGet method = new HttpGet(suggestUri);
-            HttpResponse response = mHttpClient.execute(method);
-            if (response.getStatusLine().getStatusCode() == 200) {
-
-                /* Goto http://www.google.com/complete/search?json=true&q=foo
-                 * to see what the data format looks like. It's basically a json
-                 * array containing 4 other arrays. We only care about the middle
-                 * 2 which contain the suggestions and their popularity.
-                 */
-                JSONArray results = new JSONArray(EntityUtils.toString(response.getEntity()));
-                JSONArray suggestions = results.getJSONArray(1);
-                JSONArray popularity = results.getJSONArray(2);
-                if (DBG) Log.d(LOG_TAG, "Got " + suggestions.length() + " results");
-                return new GoogleSuggestCursor(this, query, suggestions, popularity);
-            } else {
-                if (DBG) Log.d(LOG_TAG, "Request failed " + response.getStatusLine());
+            String encodedQuery = URLEncoder.encode(query, "UTF-8");
+            String suggestUri = getSuggestBaseUri() + encodedQuery;
+            long now = System.currentTimeMillis();
+            GoogleSuggestCache.Entry cached = mCache.get(suggestUri);
+            long age = getAge(cached, now);
+            if (age < mConfig.getWebSuggestCacheFreshMillis()) {
+                if (DBG) Log.d(LOG_TAG, "Fresh cache hit: " + suggestUri);
+                return createCursor(encodedQuery, cached);
+            }
+            boolean connected = isNetworkConnected();
+            if (age < mConfig.getWebSuggestCacheMaxStaleMillis()) {
+                if (DBG) Log.d(LOG_TAG, "Stale cache hit: " + suggestUri);
+                if (connected) revalidate(suggestUri);
+                return createCursor(encodedQuery, cached);
+            }
+            if (!connected || isNetworkSlow()) {
+                SourceResult prefixResult = queryPrefixes(query, encodedQuery, now);
+                if (prefixResult != null) {
+                    if (connected) revalidate(suggestUri);
+                    return prefixResult;
+                }
+            }
+            if (!connected) {
+                Log.i(LOG_TAG, "Not connected to network.");
+                return null;
+            }
+            if (isSuperseded(query, queryTime, previousQueryTime, cancellationSignal)) {
+                if (DBG) Log.d(LOG_TAG, "Dropping superseded query: " + query);
+                return null;
             }
+            GoogleSuggestCache.Entry entry = fetch(suggestUri, cancellationSignal);
+            if (CancellationSignal.isCanceled(cancellationSignal)) {
+                if (DBG) Log.d(LOG_TAG, "Request canceled");
+                return null;
+            }
+            return createCursor(encodedQuery, entry);
         } catch (UnsupportedEncodingException e) {
             Log.w(LOG_TAG, "Error", e);
+        } catch (HttpHelper.HttpException e) {
+            if (DBG) Log.d(LOG_TAG, "Request failed " + e.getMessage());
         } catch (IOException e) {
-            Log.w(LOG_TAG, "Error", e);
+            if (CancellationSignal.isCanceled(cancellationSignal)) {
+                if (DBG) Log.d(LOG_TAG, "Request aborted");
+            } else {
+                Log.w(LOG_TAG, "Error", e);
+            }
         } catch (JSONException e) {
             Log.w(LOG_TAG, "Error", e);
         }
         return null;
     }
 
+    /**
+     * Records the start of a query.
+     *
+     * @return The start time of the previous query.
+     */
+    private long startQuery(String query, long queryTime) {
+        synchronized (mQueryLock) {
+            long previousQueryTime = mLatestQueryTime;
+            mLatestQuery = query;
+            mLatestQueryTime = queryTime;
+            mQueryLock.notifyAll();
+            return previousQueryTime;
+        }
+    }
+
+    /**
+     * Checks whether a query has been superseded by a longer query that extends it.
+     *
+     * If the query started within the debounce window of the previous one, as when
+     * the user is typing, this first waits for the window to pass, so that the next
+     * keystroke can supersede it. The wait ends early if any other query arrives, or
+     * if the query is canceled, which also counts as superseded. The calling query
+     * thread is held for the wait, so each keystroke may keep one of the pooled query
+     * threads busy for up to the debounce window, unless it is canceled.
+     */
+    private boolean isSuperseded(String query, long queryTime, long previousQueryTime,
+            CancellationSignal cancellationSignal) {
+        long debounceMillis = mConfig.getWebSuggestDebounceMillis();
+        if (queryTime - previousQueryTime >= debounceMillis) {
+            // Not typing
+            return false;
+        }
+        long deadline = queryTime + debounceMillis;
+        CancellationSignal.OnCancelListener wakeUp = null;
+        if (cancellationSignal != null) {
+            wakeUp = new CancellationSignal.OnCancelListener() {
+                public void onCancel() {
+                    synchronized (mQueryLock) {
+                        mQueryLock.notifyAll();
+                    }
+                }
+            };
+            cancellationSignal.addOnCancelListener(wakeUp);
+        }
+        try {
+            synchronized (mQueryLock) {
+                while (!extendsQuery(mLatestQuery, query)) {
+                    if (CancellationSignal.isCanceled(cancellationSignal)) {
+                        return true;
+                    }
+                    long waitMillis = deadline - SystemClock.uptimeMillis();
+                    if (waitMillis <= 0 || !query.equals(mLatestQuery)) {
+                        return false;
+                    }
+                    mQueryLock.wait(waitMillis);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        } finally {
+            if (wakeUp != null) {
+                cancellationSignal.removeOnCancelListener(wakeUp);
+            }
+        }
+    }
+
+    private static boolean extendsQuery(String newQuery, String query) {
+        return newQuery.length() > query.length() && newQuery.startsWith(query);
+    }
+
+    /**
+     * Requests suggestions and stores the response in the cache. If a request for
+     * the same URL is already being made, waits for its response instead.
+     *
+     * @param cancellationSignal Aborts the request made by this caller. If the request
+     *        this caller waits for is aborted by its own caller, this caller makes
+     *        another one. May be null.
+     */
+    private GoogleSuggestCache.Entry fetch(String suggestUri,
+            CancellationSignal cancellationSignal) throws IOException, JSONException {
+        while (true) {
+            InFlightRequest request;
+            boolean joined;
+            synchronized (mInFlight) {
+                request = mInFlight.get(suggestUri);
+                joined = request != null;
+                if (!joined) {
+                    request = new InFlightRequest();
+                    mInFlight.put(suggestUri, request);
+                }
+            }
+            if (joined) {
+                if (DBG) Log.d(LOG_TAG, "Joining in-flight request: " + suggestUri);
+                GoogleSuggestCache.Entry entry = request.getResponse();
+                if (entry != null) {
+                    return entry;
+                }
+                if (CancellationSignal.isCanceled(cancellationSignal)) {
+                    throw new InterruptedIOException("Request canceled");
+                }
+                if (DBG) Log.d(LOG_TAG, "Joined request was aborted: " + suggestUri);
+                continue;
+            }
+            GoogleSuggestCache.Entry entry = null;
+            Exception error = null;
+            try {
+                entry = sendRequest(suggestUri, cancellationSignal);
+                return entry;
+            } catch (IOException e) {
+                error = e;
+                throw e;
+            } catch (JSONException e) {
+                error = e;
+                throw e;
+            } finally {
+                synchronized (mInFlight) {
+                    mInFlight.remove(suggestUri);
+                }
+                boolean aborted = entry == null
+                        && CancellationSignal.isCanceled(cancellationSignal);
+                request.finish(entry, error, aborted);
+            }
+        }
+    }
+
+    private GoogleSuggestCache.Entry sendRequest(String suggestUri,
+            CancellationSignal cancellationSignal) throws IOException, JSONException {
+        if (DBG) Log.d(LOG_TAG, "Sending request: " + suggestUri);
+        long start = SystemClock.uptimeMillis();
+        GoogleSuggestParser parser;
+        try {
+            HttpHelper.GetRequest request = new HttpHelper.GetRequest(suggestUri);
+            request.setCancellationSignal(cancellationSignal);
+            HttpHelper.Response response = mHttpHelper.openGet(request);
+            try {
+                parser = new GoogleSuggestParser(
+                        new InputStreamReader(response.getContent(), response.getCharset()),
+                        mConfig.getMaxResultsPerSource());
+                parser.parse();
+            } finally {
+                response.close();
+            }
+        } finally {
+            updateLatency(SystemClock.uptimeMillis() - start);
+        }
+        if (DBG) Log.d(LOG_TAG, "Got " + parser.getCount() + " results");
+        GoogleSuggestCache.Entry entry = new GoogleSuggestCache.Entry(
+                System.currentTimeMillis(), parser.getCount(),
+                parser.getSuggestions(), parser.getPopularity());
+        mCache.put(suggestUri, entry);
+        return entry;
+    }
+
+    /**
+     * Fetches a new response for a cached URL in the background.
+     */
+    private void revalidate(final String suggestUri) {
+        synchronized (mRevalidating) {
+            if (!mRevalidating.add(suggestUri)) return;
+        }
+        mBackgroundExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    fetch(suggestUri, null);
+                } catch (IOException e) {
+                    if (DBG) Log.d(LOG_TAG, "Revalidation failed: " + e);
+                } catch (JSONException e) {
+                    Log.w(LOG_TAG, "Error", e);
+                } finally {
+                    synchronized (mRevalidating) {
+                        mRevalidating.remove(suggestUri);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds a result for a query from the cached response for its longest prefix,
+     * keeping only the suggestions that start with the query.
+     *
+     * @return The result, or {@code null} if there is no usable cached response for any
+     *         prefix, or none of its suggestions match.
+     */
+    private SourceResult queryPrefixes(String query, String encodedQuery, long now)
+            throws UnsupportedEncodingException {
+        String lowerQuery = query.toLowerCase();
+        for (int len = query.length() - 1; len > 0; len--) {
+            String prefixUri = getSuggestBaseUri()
+                    + URLEncoder.encode(query.substring(0, len), "UTF-8");
+            GoogleSuggestCache.Entry entry = mCache.get(prefixUri);
+            if (getAge(entry, now) >= mConfig.getWebSuggestCacheMaxStaleMillis()) continue;
+            int count = entry.getCount();
+            String[] suggestions = new String[count];
+            String[] popularity = new String[count];
+            int matches = 0;
+            for (int i = 0; i < count; i++) {
+                String suggestion = entry.getSuggestions()[i];
+                if (suggestion != null && suggestion.toLowerCase().startsWith(lowerQuery)) {
+                    suggestions[matches] = suggestion;
+                    popularity[matches] = entry.getPopularity()[i];
+                    matches++;
+                }
+            }
+            if (DBG) Log.d(LOG_TAG, "Prefix cache hit: " + prefixUri + ", " + matches + " match");
+            if (matches == 0) return null;
+            return new GoogleSuggestCursor(this, encodedQuery, matches, suggestions, popularity);
+        }
+        return null;
+    }
+
+    private SourceResult createCursor(String encodedQuery, GoogleSuggestCache.Entry entry) {
+        return new GoogleSuggestCursor(this, encodedQuery, entry.getCount(),
+                entry.getSuggestions(), entry.getPopularity());
+    }
+
+    /**
+     * Gets the age of a cached response, or {@link Long#MAX_VALUE} if there is none.
+     */
+    private static long getAge(GoogleSuggestCache.Entry entry, long now) {
+        if (entry == null) return Long.MAX_VALUE;
+        long age = now - entry.getTime();
+        // The clock has been set back, don't trust the entry.
+        return age < 0 ? Long.MAX_VALUE : age;
+    }
+
+    private void updateLatency(long latencyMillis) {
+        long average = mLatencyMillis;
+        mLatencyMillis = average < 0 ? latencyMillis : (3 * average + latencyMillis) / 4;
+    }
+
+    private boolean isNetworkSlow() {
+        return mLatencyMillis >= mConfig.getSlowWebSuggestLatencyMillis();
+    }
+
+    @VisibleForTesting
+    String getSuggestBaseUri() {
+        if (mSuggestUri == null) {
+            Locale l = Locale.getDefault();
+            String language = GoogleSearch.getLanguage(l);
+            mSuggestUri = getContext().getResources().getString(R.string.google_suggest_base,
+                                                                language);
+        }
+        return mSuggestUri;
+    }
+
+    @Override
+    public void warmUp() {
+        if (!isNetworkConnected()) {
+            return;
+        }
+        final String suggestUri = getSuggestBaseUri();
+        mBackgroundExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    mHttpHelper.warmUp(suggestUri);
+                } catch (IOException e) {
+                    // The first query will connect again.
+                    if (DBG) Log.d(LOG_TAG, "Warm-up failed: " + e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void clearCache() {
+        mCache.clear();
+    }
+
     @Override
     public SuggestionCursor refreshShortcut(String shortcutId, String oldExtraData) {
         return null;
     }
 
-    private boolean isNetworkConnected() {
+    @VisibleForTesting
+    boolean isNetworkConnected() {
         NetworkInfo networkInfo = getActiveNetworkInfo();
         return networkInfo != null && networkInfo.isConnected();
     }
@@ -159,46 +494,88 @@ public class GoogleSuggestClient extends AbstractGoogleSource {
         return connectivity.getActiveNetworkInfo();
     }
 
+    /**
+     * A request that other callers for the same URL can wait for.
+     */
+    private static class InFlightRequest {
+        private boolean mDone;
+        private boolean mAborted;
+        private GoogleSuggestCache.Entry mEntry;
+        private Exception mError;
+
+        public synchronized void finish(GoogleSuggestCache.Entry entry, Exception error,
+                boolean aborted) {
+            mDone = true;
+            mAborted = aborted;
+            mEntry = entry;
+            mError = error;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the request to finish, and returns its response or throws its error.
+         *
+         * @return The response, or {@code null} if the request was aborted because its
+         *         caller was canceled.
+         */
+        public synchronized GoogleSuggestCache.Entry getResponse()
+                throws IOException, JSONException {
+            try {
+                while (!mDone) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (mAborted) {
+                return null;
+            } else if (mError instanceof IOException) {
+                throw (IOException) mError;
+            } else if (mError instanceof JSONException) {
+                throw (JSONException) mError;
+            } else if (mEntry == null) {
+                throw new IOException("Request failed");
+            }
+            return mEntry;
+        }
+    }
+
     private static class GoogleSuggestCursor extends AbstractGoogleSourceResult {
 
+        private final int mCount;
+
         /* Contains the actual suggestions */
-        private final JSONArray mSuggestions;
+        private final String[] mSuggestions;
 
         /* This contains the popularity of each suggestion
          * i.e. 165,000 results. It's not related to sorting.
          */
-        private final JSONArray mPopularity;
+        private final String[] mPopularity;
 
-        public GoogleSuggestCursor(Source source, String userQuery,
-                JSONArray suggestions, JSONArray popularity) {
+        public GoogleSuggestCursor(Source source, String userQuery, int count,
+                String[] suggestions, String[] popularity) {
             super(source, userQuery);
+            mCount = count;
             mSuggestions = suggestions;
             mPopularity = popularity;
         }
 
         @Override
         public int getCount() {
-            return mSuggestions.length();
+            return mCount;
         }
 
         @Override
         public String getSuggestionQuery() {
-            try {
-                return mSuggestions.getString(getPosition());
-            } catch (JSONException e) {
-                Log.w(LOG_TAG, "Error parsing response: " + e);
-                return null;
-            }
+            int pos = getPosition();
+            return pos < mCount ? mSuggestions[pos] : null;
         }
 
         @Override
         public String getSuggestionText2() {
-            try {
-                return mPopularity.getString(getPosition());
-            } catch (JSONException e) {
-                Log.w(LOG_TAG, "Error parsing response: " + e);
-                return null;
-            }
+            int pos = getPosition();
+            return pos < mCount ? mPopularity[pos] : null;
         }
     }
 }
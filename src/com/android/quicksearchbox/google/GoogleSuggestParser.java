@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.google;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the suggestions out of a Google suggest response without building a JSON tree.
+ *
+ * Goto http://www.google.com/complete/search?json=true&q=foo
+ * to see what the data format looks like. It's basically a json
+ * array containing 4 other arrays. We only care about the middle
+ * 2 which contain the suggestions and their popularity. Everything
+ * else is skipped, and parsing stops once the popularity of the last
+ * suggestion kept has been read.
+ */
+class GoogleSuggestParser {
+
+    private static final int BUFFER_SIZE = 1024;
+
+    private final Reader mReader;
+    private final int mMaxResults;
+
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+    private final StringBuilder mString = new StringBuilder();
+
+    private String[] mSuggestions;
+    private String[] mPopularity;
+    private int mCount;
+
+    /**
+     * Creates a parser for a single response.
+     *
+     * @param reader The response body.
+     * @param maxResults The maximum number of suggestions to keep.
+     */
+    public GoogleSuggestParser(Reader reader, int maxResults) {
+        mReader = reader;
+        mMaxResults = maxResults;
+    }
+
+    /**
+     * Parses the response. Must be called once, before any of the getters.
+     *
+     * @throws JSONException If the response is not in the expected format.
+     */
+    public void parse() throws IOException, JSONException {
+        mSuggestions = new String[mMaxResults];
+        mPopularity = new String[mMaxResults];
+        mCount = 0;
+        expect('[');
+        // The query
+        skipValue();
+        expect(',');
+        if (nextNonWhitespace() != '[') {
+            throw syntaxError("Expected suggestions array");
+        }
+        mCount = readStrings(mSuggestions);
+        int c = nextNonWhitespace();
+        if (c == ',' && nextNonWhitespace() == '[') {
+            readStrings(mPopularity);
+        }
+    }
+
+    /**
+     * Gets the number of suggestions read, at most the maximum given to the constructor.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Gets the suggestions read. Only the first {@link #getCount()} entries are set.
+     */
+    public String[] getSuggestions() {
+        return mSuggestions;
+    }
+
+    /**
+     * Gets the popularity of each suggestion, e.g. "165,000 results". Entries are
+     * {@code null} where the response has no popularity for a suggestion.
+     */
+    public String[] getPopularity() {
+        return mPopularity;
+    }
+
+    /**
+     * Reads the elements of an array, whose opening bracket has been consumed,
+     * into {@code values}. Once {@code values} is full, the rest of the array is skipped.
+     *
+     * @return The number of elements read.
+     */
+    private int readStrings(String[] values) throws IOException, JSONException {
+        int count = 0;
+        int c = nextNonWhitespace();
+        if (c == ']') {
+            return 0;
+        }
+        pushBack();
+        while (true) {
+            if (count < values.length) {
+                values[count++] = readValue();
+            } else {
+                skipValue();
+            }
+            c = nextNonWhitespace();
+            if (c == ']') {
+                return count;
+            } else if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * Reads a value as a string. Strings are unescaped, other scalars are returned
+     * as they appear in the response, and nulls, arrays and objects become {@code null}.
+     */
+    private String readValue() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '"':
+                return readString();
+            case '[':
+            case '{':
+                skipNested();
+                return null;
+            default:
+                pushBack();
+                String literal = readLiteral();
+                return "null".equals(literal) ? null : literal;
+        }
+    }
+
+    private void skipValue() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '"':
+                skipString();
+                break;
+            case '[':
+            case '{':
+                skipNested();
+                break;
+            default:
+                pushBack();
+                readLiteral();
+        }
+    }
+
+    private String readString() throws IOException, JSONException {
+        mString.setLength(0);
+        while (true) {
+            int c = next();
+            if (c == '"') {
+                return mString.toString();
+            } else if (c == '\\') {
+                mString.append(readEscape());
+            } else if (c == -1) {
+                throw syntaxError("Unterminated string");
+            } else {
+                mString.append((char) c);
+            }
+        }
+    }
+
+    private void skipString() throws IOException, JSONException {
+        while (true) {
+            int c = next();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                next();
+            } else if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException, JSONException {
+        int c = next();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(next(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            case -1:
+                throw syntaxError("Unterminated escape");
+            default:
+                // '"', '\\', '/', and anything else escaped needlessly.
+                return (char) c;
+        }
+    }
+
+    private String readLiteral() throws IOException, JSONException {
+        mString.setLength(0);
+        while (true) {
+            int c = next();
+            if (c == -1 || c == ',' || c == ']' || c == '}' || isWhitespace(c)) {
+                pushBack();
+                break;
+            }
+            mString.append((char) c);
+        }
+        if (mString.length() == 0) {
+            throw syntaxError("Expected a value");
+        }
+        return mString.toString();
+    }
+
+    /**
+     * Skips an array or object whose opening bracket has been consumed.
+     */
+    private void skipNested() throws IOException, JSONException {
+        int depth = 1;
+        while (depth > 0) {
+            int c = next();
+            if (c == '"') {
+                skipString();
+            } else if (c == '[' || c == '{') {
+                depth++;
+            } else if (c == ']' || c == '}') {
+                depth--;
+            } else if (c == -1) {
+                throw syntaxError("Unterminated array or object");
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException, JSONException {
+        if (nextNonWhitespace() != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = next();
+        } while (isWhitespace(c));
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private int next() throws IOException {
+        if (mPos == mLimit) {
+            mLimit = mReader.read(mBuffer, 0, BUFFER_SIZE);
+            mPos = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mBuffer[mPos++];
+    }
+
+    /**
+     * Un-reads the last character returned by {@link #next()}.
+     */
+    private void pushBack() {
+        // Nothing to un-read at the end of the input.
+        if (mLimit > 0) {
+            mPos--;
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message);
+    }
+}
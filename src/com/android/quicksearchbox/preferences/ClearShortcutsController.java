@@ -16,6 +16,7 @@
 package com.android.quicksearchbox.preferences;
 
 import com.android.quicksearchbox.ShortcutRepository;
+import com.android.quicksearchbox.google.GoogleSource;
 import com.android.quicksearchbox.util.Consumer;
 import com.android.quicksearchbox.util.Consumers;
 
@@ -34,13 +35,15 @@ public class ClearShortcutsController implements PreferenceController {
     private static final String TAG = "QSB.ClearShortcutsController";
 
     private final ShortcutRepository mShortcuts;
+    private final GoogleSource mGoogleSource;
     private final Handler mHandler = new Handler();
 
     private OkCancelPreference mClearShortcutsPreference;
 
 
-    public ClearShortcutsController(ShortcutRepository shortcuts) {
+    public ClearShortcutsController(ShortcutRepository shortcuts, GoogleSource googleSource) {
         mShortcuts = shortcuts;
+        mGoogleSource = googleSource;
     }
 
     @Override
@@ -88,6 +91,8 @@ public class ClearShortcutsController implements PreferenceController {
     private void clearShortcuts() {
         Log.i(TAG, "Clearing shortcuts...");
         mShortcuts.clearHistory();
+        // The cached web suggestions are keyed by past queries
+        mGoogleSource.clearCache();
         mClearShortcutsPreference.setEnabled(false);
     }
 }
@@ -18,7 +18,6 @@ package com.android.quicksearchbox.preferences;
 import com.android.quicksearchbox.Corpora;
 import com.android.quicksearchbox.QsbApplication;
 import com.android.quicksearchbox.SearchSettings;
-import com.android.quicksearchbox.ShortcutRepository;
 
 import android.content.Context;
 import android.preference.Preference;
@@ -51,8 +50,9 @@ public class PreferenceControllerFactory implements PreferenceController {
             Corpora corpora = QsbApplication.get(mContext).getCorpora();
             addController(new SearchableItemsController(mSettings, corpora, getContext()), p);
         } else if (ClearShortcutsController.CLEAR_SHORTCUTS_PREF.equals(key)) {
-            ShortcutRepository shortcuts = QsbApplication.get(getContext()).getShortcutRepository();
-            addController(new ClearShortcutsController(shortcuts), p);
+            QsbApplication app = QsbApplication.get(getContext());
+            addController(new ClearShortcutsController(app.getShortcutRepository(),
+                    app.getGoogleSource()), p);
         } else {
             throw new UnknownPreferenceException(p);
         }
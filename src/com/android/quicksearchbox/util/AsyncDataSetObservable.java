@@ -18,16 +18,37 @@ package com.android.quicksearchbox.util;
 
 import android.database.DataSetObservable;
 import android.os.Handler;
+import android.os.SystemClock;
 
 /**
  * A version of {@link DataSetObservable} that performs callbacks on given {@link Handler}.
+ *
+ * Change notifications are coalesced: if {@link #notifyChanged} is called while a change
+ * notification is already pending, the observers are only called once. Optionally, change
+ * notifications are delayed until the next frame boundary, so that all the changes made
+ * within one frame interval result in a single notification.
  */
 public class AsyncDataSetObservable extends DataSetObservable {
 
     private final Handler mHandler;
 
+    private final long mFrameIntervalMillis;
+
+    private final Object mLock = new Object();
+
+    /** Guarded by mLock. */
+    private boolean mChangePending = false;
+    /** The number of calls to {@link #notifyChanged}. Guarded by mLock. */
+    private int mChangeRequestCount = 0;
+    /** The number of change notifications sent to observers. Guarded by mLock. */
+    private int mChangeNotificationCount = 0;
+
     private final Runnable mChangedRunnable = new Runnable() {
         public void run() {
+            synchronized (mLock) {
+                mChangePending = false;
+                mChangeNotificationCount++;
+            }
             AsyncDataSetObservable.super.notifyChanged();
         }
     };
@@ -42,13 +63,42 @@ public class AsyncDataSetObservable extends DataSetObservable {
      * @param handler Handler to run callbacks on.
      */
     public AsyncDataSetObservable(Handler handler) {
+        this(handler, 0);
+    }
+
+    /**
+     * @param handler Handler to run callbacks on. If {@code null}, callbacks are run
+     *        synchronously, and change notifications are not coalesced.
+     * @param frameIntervalMillis If positive, change notifications are delayed until the
+     *        next multiple of this interval on the {@link SystemClock#uptimeMillis} clock.
+     */
+    public AsyncDataSetObservable(Handler handler, long frameIntervalMillis) {
         mHandler = handler;
+        mFrameIntervalMillis = frameIntervalMillis;
     }
 
     @Override
     public void notifyChanged() {
         if (mHandler == null) {
+            synchronized (mLock) {
+                mChangeRequestCount++;
+                mChangeNotificationCount++;
+            }
             super.notifyChanged();
+            return;
+        }
+        synchronized (mLock) {
+            mChangeRequestCount++;
+            if (mChangePending) {
+                // Merged with the pending notification
+                return;
+            }
+            mChangePending = true;
+        }
+        if (mFrameIntervalMillis > 0) {
+            long now = SystemClock.uptimeMillis();
+            long nextFrame = (now / mFrameIntervalMillis + 1) * mFrameIntervalMillis;
+            mHandler.postAtTime(mChangedRunnable, nextFrame);
         } else {
             mHandler.post(mChangedRunnable);
         }
@@ -63,4 +113,32 @@ public class AsyncDataSetObservable extends DataSetObservable {
         }
     }
 
+    /**
+     * Gets the number of times {@link #notifyChanged} has been called.
+     */
+    public int getChangeRequestCount() {
+        synchronized (mLock) {
+            return mChangeRequestCount;
+        }
+    }
+
+    /**
+     * Gets the number of change notifications that have been sent to the observers.
+     */
+    public int getChangeNotificationCount() {
+        synchronized (mLock) {
+            return mChangeNotificationCount;
+        }
+    }
+
+    /**
+     * Gets the number of change requests that were merged into another notification,
+     * and did not cause a notification of their own.
+     */
+    public int getMergedChangeCount() {
+        synchronized (mLock) {
+            return mChangeRequestCount - mChangeNotificationCount - (mChangePending ? 1 : 0);
+        }
+    }
+
 }
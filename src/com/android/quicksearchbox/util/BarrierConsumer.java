@@ -17,6 +17,7 @@
 package com.android.quicksearchbox.util;
 
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -52,11 +53,32 @@ public class BarrierConsumer<A> implements Consumer<A> {
      * @return A list of values, never {@code null}.
      */
     public ArrayList<A> getValues() {
+        return getValues(0);
+    }
+
+    /**
+     * Blocks until the expected number of results is available, until the timeout expires,
+     * or until the thread is interrupted. Values that are consumed after this method
+     * has returned are rejected. This method should not be called multiple times.
+     *
+     * @param timeoutMillis The maximum time to wait, in milliseconds. If {@code 0},
+     *        waits forever.
+     * @return A list of the values consumed so far, never {@code null}.
+     */
+    public ArrayList<A> getValues(long timeoutMillis) {
         mLock.lock();
         try {
             try {
+                long nanosLeft = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
                 while (!isFull()) {
-                    mNotFull.await();
+                    if (timeoutMillis <= 0) {
+                        mNotFull.await();
+                    } else if (nanosLeft > 0) {
+                        nanosLeft = mNotFull.awaitNanos(nanosLeft);
+                    } else {
+                        // Timed out, return the values that we've gotten so far
+                        break;
+                    }
                 }
             } catch (InterruptedException ex) {
                 // Return the values that we've gotten so far
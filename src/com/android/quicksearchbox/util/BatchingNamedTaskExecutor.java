@@ -19,37 +19,98 @@ package com.android.quicksearchbox.util;
 
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * Executes NamedTasks in batches of a given size.  Tasks are queued until
  * executeNextBatch is called.
+ *
+ * If a comparator is given, queued tasks are dispatched in the order given by the
+ * comparator. Tasks that compare equal are dispatched in insertion order.
  */
 public class BatchingNamedTaskExecutor implements NamedTaskExecutor {
 
     private static final boolean DBG = false;
     private static final String TAG = "QSB.BatchingNamedTaskExecutor";
 
+    private static final int INITIAL_CAPACITY = 16;
+
     private final NamedTaskExecutor mExecutor;
 
-    /** Queue of tasks waiting to be dispatched to mExecutor **/
-    private final ArrayList<NamedTask> mQueuedTasks = new ArrayList<NamedTask>();
+    private final Comparator<? super NamedTask> mComparator;
+
+    private final Object mLock = new Object();
 
     /**
-     * Creates a new BatchingSourceTaskExecutor.
+     * Queue of tasks waiting to be dispatched to mExecutor. The queued tasks are
+     * mQueuedTasks[mHead] to mQueuedTasks[mTail - 1], in dispatch order.
+     * Guarded by mLock.
+     */
+    private NamedTask[] mQueuedTasks = new NamedTask[INITIAL_CAPACITY];
+    private int mHead = 0;
+    private int mTail = 0;
+
+    /**
+     * Creates a new BatchingSourceTaskExecutor that dispatches tasks in insertion order.
      *
      * @param executor A SourceTaskExecutor for actually executing the tasks.
      */
     public BatchingNamedTaskExecutor(NamedTaskExecutor executor) {
+        this(executor, null);
+    }
+
+    /**
+     * Creates a new BatchingSourceTaskExecutor.
+     *
+     * @param executor A SourceTaskExecutor for actually executing the tasks.
+     * @param comparator Orders the queued tasks, tasks that compare lower are dispatched
+     *        first. May be {@code null}, in which case tasks are dispatched in
+     *        insertion order.
+     */
+    public BatchingNamedTaskExecutor(NamedTaskExecutor executor,
+            Comparator<? super NamedTask> comparator) {
         mExecutor = executor;
+        mComparator = comparator;
     }
 
     public void execute(NamedTask task) {
-        synchronized (mQueuedTasks) {
+        synchronized (mLock) {
             if (DBG) Log.d(TAG, "Queuing " + task);
-            mQueuedTasks.add(task);
+            if (mTail == mQueuedTasks.length) {
+                makeRoom();
+            }
+            // Insertion sort from the tail, keeping equal tasks in insertion order
+            int pos = mTail;
+            if (mComparator != null) {
+                while (pos > mHead && mComparator.compare(task, mQueuedTasks[pos - 1]) < 0) {
+                    mQueuedTasks[pos] = mQueuedTasks[pos - 1];
+                    pos--;
+                }
+            }
+            mQueuedTasks[pos] = task;
+            mTail++;
+        }
+    }
+
+    /**
+     * Makes room for at least one more task at the tail of the queue. Must be called
+     * with mLock held.
+     */
+    private void makeRoom() {
+        int size = mTail - mHead;
+        if (size * 2 > mQueuedTasks.length) {
+            // More than half full, grow
+            NamedTask[] newTasks = new NamedTask[mQueuedTasks.length * 2];
+            System.arraycopy(mQueuedTasks, mHead, newTasks, 0, size);
+            mQueuedTasks = newTasks;
+        } else {
+            // Compact
+            System.arraycopy(mQueuedTasks, mHead, mQueuedTasks, 0, size);
+            Arrays.fill(mQueuedTasks, size, mTail, null);
         }
+        mHead = 0;
+        mTail = size;
     }
 
     private void dispatch(NamedTask task) {
@@ -57,23 +118,56 @@ public class BatchingNamedTaskExecutor implements NamedTaskExecutor {
         mExecutor.execute(task);
     }
 
+    /**
+     * Removes the first queued task.
+     *
+     * @return The task, or {@code null} if the queue is empty.
+     */
+    private NamedTask poll() {
+        synchronized (mLock) {
+            if (mHead == mTail) return null;
+            NamedTask task = mQueuedTasks[mHead];
+            mQueuedTasks[mHead] = null;
+            mHead++;
+            if (mHead == mTail) {
+                mHead = 0;
+                mTail = 0;
+            }
+            return task;
+        }
+    }
+
     /**
      * Instructs the executor to submit the next batch of results.
      * @param batchSize the maximum number of entries to execute.
      */
     public void executeNextBatch(int batchSize) {
-        NamedTask[] batch = new NamedTask[0];
-        synchronized (mQueuedTasks) {
-            int count = Math.min(mQueuedTasks.size(), batchSize);
-            List<NamedTask> nextTasks = mQueuedTasks.subList(0, count);
-            batch = nextTasks.toArray(batch);
-            nextTasks.clear();
-            if (DBG) Log.d(TAG, "Dispatching batch of " + count);
+        if (DBG) Log.d(TAG, "Dispatching batch of up to " + batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            if (executeNext() == null) break;
         }
+    }
 
-        for (NamedTask task : batch) {
+    /**
+     * Submits the first queued task.
+     *
+     * @return The task that was submitted, or {@code null} if there were no queued tasks.
+     */
+    public NamedTask executeNext() {
+        NamedTask task = poll();
+        if (task != null) {
             dispatch(task);
         }
+        return task;
+    }
+
+    /**
+     * Gets the number of tasks that have not been dispatched yet.
+     */
+    public int getQueuedTaskCount() {
+        synchronized (mLock) {
+            return mTail - mHead;
+        }
     }
 
     /**
@@ -81,8 +175,10 @@ public class BatchingNamedTaskExecutor implements NamedTaskExecutor {
      * should not be re-used after calling this method.
      */
     public void cancelPendingTasks() {
-        synchronized (mQueuedTasks) {
-            mQueuedTasks.clear();
+        synchronized (mLock) {
+            Arrays.fill(mQueuedTasks, null);
+            mHead = 0;
+            mTail = 0;
         }
     }
 
@@ -39,6 +39,11 @@ public abstract class CachedLater<A> implements NowOrLater<A> {
     private boolean mCreating;
     private boolean mValid;
 
+    /** Incremented by {@link #clear}. */
+    private int mGeneration;
+    /** The value of {@link #mGeneration} when the running {@link #create} started. */
+    private int mCreateGeneration;
+
     private List<Consumer<? super A>> mWaitingConsumers;
 
     /**
@@ -49,17 +54,30 @@ public abstract class CachedLater<A> implements NowOrLater<A> {
     protected abstract void create();
 
     /**
-     * Saves a new value to the cache.
+     * Saves a new value to the cache. If the cache has been cleared since
+     * {@link #create} started, the value may be out of date, so it is dropped and
+     * {@link #create} is called again.
      */
     protected void store(A value) {
         if (DBG) Log.d(TAG, "store()");
-        List<Consumer<? super A>> waitingConsumers;
+        boolean stale;
+        List<Consumer<? super A>> waitingConsumers = null;
         synchronized (mLock) {
-            mValue = value;
-            mValid = true;
-            mCreating = false;
-            waitingConsumers = mWaitingConsumers;
-            mWaitingConsumers = null;
+            stale = mCreating && mCreateGeneration != mGeneration;
+            if (stale) {
+                mCreateGeneration = mGeneration;
+            } else {
+                mValue = value;
+                mValid = true;
+                mCreating = false;
+                waitingConsumers = mWaitingConsumers;
+                mWaitingConsumers = null;
+            }
+        }
+        if (stale) {
+            if (DBG) Log.d(TAG, "cleared while creating, calling create() again");
+            create();
+            return;
         }
         if (waitingConsumers != null) {
             for (Consumer<? super A> consumer : waitingConsumers) {
@@ -98,6 +116,7 @@ public abstract class CachedLater<A> implements NowOrLater<A> {
             synchronized (mLock) {
                 if (!mCreating) {
                     mCreating = true;
+                    mCreateGeneration = mGeneration;
                     create = true;
                 }
             }
@@ -118,6 +137,7 @@ public abstract class CachedLater<A> implements NowOrLater<A> {
         synchronized (mLock) {
             mValue = null;
             mValid = false;
+            mGeneration++;
         }
     }
 
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+import java.util.ArrayList;
+
+/**
+ * Signals that the result of an operation is no longer needed. Long-running operations
+ * check {@link #isCanceled} or register a listener to stop early. One signal may be
+ * shared by several concurrent operations, for example all the queries for one user query.
+ *
+ * This class is thread safe.
+ */
+public class CancellationSignal {
+
+    /**
+     * Listener that is called when a signal is canceled.
+     */
+    public interface OnCancelListener {
+        /**
+         * Called on the thread that called {@link CancellationSignal#cancel}.
+         * Must not block.
+         */
+        void onCancel();
+    }
+
+    private final ArrayList<OnCancelListener> mListeners = new ArrayList<OnCancelListener>();
+
+    private boolean mCanceled = false;
+
+    public synchronized boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Cancels the operations that use this signal, and calls the registered listeners.
+     * Does nothing if already canceled.
+     */
+    public void cancel() {
+        ArrayList<OnCancelListener> listeners;
+        synchronized (this) {
+            if (mCanceled) return;
+            mCanceled = true;
+            listeners = new ArrayList<OnCancelListener>(mListeners);
+            mListeners.clear();
+        }
+        for (OnCancelListener listener : listeners) {
+            listener.onCancel();
+        }
+    }
+
+    /**
+     * Adds a listener. If the signal has already been canceled, the listener is called
+     * immediately. Listeners should be removed when the operation completes.
+     */
+    public void addOnCancelListener(OnCancelListener listener) {
+        synchronized (this) {
+            if (!mCanceled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onCancel();
+    }
+
+    public synchronized void removeOnCancelListener(OnCancelListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Checks whether a possibly {@code null} signal has been canceled.
+     */
+    public static boolean isCanceled(CancellationSignal signal) {
+        return signal != null && signal.isCanceled();
+    }
+}
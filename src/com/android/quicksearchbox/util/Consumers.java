@@ -17,6 +17,7 @@
 package com.android.quicksearchbox.util;
 
 import android.os.Handler;
+import android.os.Looper;
 
 /**
  * Consumer utilities.
@@ -48,6 +49,19 @@ public class Consumers {
         }
     }
 
+    /**
+     * Passes a value to a consumer on the thread of a handler. If that is the current
+     * thread, the consumer is called synchronously.
+     */
+    public static <A> void consumeOnHandlerThread(Handler handler,
+            final Consumer<A> consumer, final A value) {
+        if (handler == null || handler.getLooper() == Looper.myLooper()) {
+            consumer.consume(value);
+        } else {
+            consumeAsync(handler, consumer, value);
+        }
+    }
+
     public static <A extends QuietlyCloseable> void consumeCloseableAsync(Handler handler,
             final Consumer<A> consumer, final A value) {
         if (handler == null) {
@@ -71,6 +85,16 @@ public class Consumers {
         };
     }
 
+    public static <A> Consumer<A> createHandlerThreadConsumer(
+            final Handler handler, final Consumer<A> consumer) {
+        return new Consumer<A>() {
+            public boolean consume(A value) {
+                consumeOnHandlerThread(handler, consumer, value);
+                return true;
+            }
+        };
+    }
+
     public static <A extends QuietlyCloseable> Consumer<A> createAsyncCloseableConsumer(
             final Handler handler, final Consumer<A> consumer) {
         return new Consumer<A>() {
@@ -17,6 +17,7 @@
 package com.android.quicksearchbox.util;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -26,8 +27,22 @@ import java.util.Map;
  */
 public interface HttpHelper {
 
+    /**
+     * The charset that responses are assumed to be in, if their Content-Type names none.
+     */
+    public static final String DEFAULT_CHARSET = "UTF-8";
+
     public String get(GetRequest request) throws IOException, HttpException;
 
+    /**
+     * Executes a GET request and returns the response without reading its content,
+     * so that the caller can parse it straight from the stream.
+     *
+     * @return The response. The caller must close it.
+     * @throws HttpException If the response has a status code other than 200.
+     */
+    public Response openGet(GetRequest request) throws IOException, HttpException;
+
     public String get(String url, Map<String,String> requestHeaders)
             throws IOException, HttpException;
 
@@ -36,6 +51,15 @@ public interface HttpHelper {
     public String post(String url, Map<String,String> requestHeaders, String content)
             throws IOException, HttpException;
 
+    /**
+     * Opens a connection to the server of the given URL without fetching any content,
+     * so that a later request to the same server can reuse it. Must not be called
+     * on the main thread.
+     *
+     * @param url A URL on the server to connect to.
+     */
+    public void warmUp(String url) throws IOException, HttpException;
+
     public void setConnectTimeout(int timeoutMillis);
 
     public void setReadTimeout(int timeoutMillis);
@@ -43,6 +67,7 @@ public interface HttpHelper {
     public static class GetRequest {
         private String mUrl;
         private Map<String,String> mHeaders;
+        private CancellationSignal mCancellationSignal;
 
         /**
          * Creates a new request.
@@ -93,6 +118,23 @@ public interface HttpHelper {
             }
             mHeaders.put(name, value);
         }
+
+        /**
+         * Gets the signal that aborts the request when canceled.
+         *
+         * @return The signal, or {@code null} if the request cannot be aborted.
+         */
+        public CancellationSignal getCancellationSignal() {
+            return mCancellationSignal;
+        }
+
+        /**
+         * Sets a signal that aborts the request when canceled. Aborting closes the
+         * connection, so it cannot be reused by later requests.
+         */
+        public void setCancellationSignal(CancellationSignal cancellationSignal) {
+            mCancellationSignal = cancellationSignal;
+        }
     }
 
     public static class PostRequest extends GetRequest {
@@ -115,6 +157,28 @@ public interface HttpHelper {
         }
     }
 
+    /**
+     * The response to a request, whose content is read as bytes.
+     */
+    public static interface Response {
+        /**
+         * Gets the response content, already decompressed if it was sent compressed.
+         */
+        public InputStream getContent();
+
+        /**
+         * Gets the charset named by the Content-Type of the response, or
+         * {@link HttpHelper#DEFAULT_CHARSET}.
+         */
+        public String getCharset();
+
+        /**
+         * Releases the connection. Must be called once the caller is done with the
+         * content, whether or not all of it has been read.
+         */
+        public void close();
+    }
+
     /**
      * A HTTP exception.
      */
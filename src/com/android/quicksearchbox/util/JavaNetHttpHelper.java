@@ -17,19 +17,37 @@
 package com.android.quicksearchbox.util;
 
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Simple HTTP client API.
+ *
+ * Connections are left to the keep-alive pool of {@link HttpURLConnection} after each
+ * successful request, so that requests to the same server reuse the socket instead of
+ * paying for a new TCP (and TLS) handshake. The pool itself is not observable, so the
+ * hit rate reported by {@link #getPoolHitCount()} is an estimate based on when each
+ * server last had a connection returned to it.
+ *
+ * A GET request with a {@link CancellationSignal} is aborted when the signal is
+ * canceled, by disconnecting it from the canceling thread. The aborted connection is
+ * closed rather than returned to the pool.
+ *
+ * Responses are requested gzip-compressed, and decoded in the charset given by
+ * their Content-Type.
  */
 public class JavaNetHttpHelper implements HttpHelper {
     private static final String TAG = "QSB.JavaNetHttpHelper";
@@ -37,13 +55,25 @@ public class JavaNetHttpHelper implements HttpHelper {
 
     private static final int BUFFER_SIZE = 1024 * 4;
     private static final String USER_AGENT_HEADER = "User-Agent";
-    private static final String DEFAULT_CHARSET = "UTF-8";
+    private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    private static final String GZIP_ENCODING = "gzip";
+    private static final String CHARSET_PARAM = "charset=";
+
+    // How long a connection returned to the pool is assumed to stay usable. This is
+    // shorter than both the pool's own idle timeout and that of most servers.
+    private static final long KEEP_ALIVE_MILLIS = 60 * 1000;
 
     private int mConnectTimeout;
     private int mReadTimeout;
     private final String mUserAgent;
     private final HttpHelper.UrlRewriter mRewriter;
 
+    // Maps the scheme and authority of each server to the time at which a connection
+    // to it was last returned to the pool. Also guards the counters below.
+    private final HashMap<String,Long> mIdleConnections = new HashMap<String,Long>();
+    private int mRequestCount;
+    private int mPoolHitCount;
+
     /**
      * Creates a new HTTP helper.
      *
@@ -80,14 +110,44 @@ public class JavaNetHttpHelper implements HttpHelper {
      */
     public String get(String url, Map<String,String> requestHeaders)
             throws IOException, HttpException {
+        return readText(openGet(url, requestHeaders, null));
+    }
+
+    /**
+     * Executes a GET request and returns the response, for reading its content as bytes.
+     *
+     * @param request Request.
+     * @return The response. The caller must close it.
+     * @throws IOException If an IO error occurs.
+     * @throws HttpException If the response has a status code other than 200.
+     */
+    public Response openGet(GetRequest request) throws IOException, HttpException {
+        return openGet(request.getUrl(), request.getHeaders(), request.getCancellationSignal());
+    }
+
+    private Response openGet(String url, Map<String,String> requestHeaders,
+            CancellationSignal cancellationSignal) throws IOException, HttpException {
         HttpURLConnection c = null;
+        AbortListener abortListener = null;
         try {
             c = createConnection(url, requestHeaders);
+            if (cancellationSignal != null) {
+                abortListener = new AbortListener(c);
+                cancellationSignal.addOnCancelListener(abortListener);
+                if (cancellationSignal.isCanceled()) {
+                    throw new InterruptedIOException("Request canceled");
+                }
+            }
             c.setRequestMethod("GET");
             c.connect();
-            return getResponseFrom(c);
+            Response response = getResponseFrom(c, cancellationSignal, abortListener);
+            c = null;
+            return response;
         } finally {
             if (c != null) {
+                if (abortListener != null) {
+                    cancellationSignal.removeOnCancelListener(abortListener);
+                }
                 c.disconnect();
             }
         }
@@ -116,7 +176,36 @@ public class JavaNetHttpHelper implements HttpHelper {
                 writer.write(content);
                 writer.close();
             }
-            return getResponseFrom(c);
+            Response response = getResponseFrom(c, null, null);
+            c = null;
+            return readText(response);
+        } finally {
+            if (c != null) {
+                c.disconnect();
+            }
+        }
+    }
+
+    public void warmUp(String url) throws IOException, HttpException {
+        URL u = new URL(mRewriter.rewrite(url));
+        synchronized (mIdleConnections) {
+            Long idleSince = mIdleConnections.get(getPoolKey(u));
+            if (idleSince != null
+                    && SystemClock.uptimeMillis() - idleSince < KEEP_ALIVE_MILLIS) {
+                if (DBG) Log.d(TAG, "Already connected to " + u.getHost());
+                return;
+            }
+        }
+        HttpURLConnection c = null;
+        try {
+            c = createConnection(url, null);
+            c.setRequestMethod("HEAD");
+            c.connect();
+            if (DBG) Log.d(TAG, "Warmed up " + u.getHost() + ": " + c.getResponseCode());
+            // A HEAD response has no body, so this only hands the connection back.
+            c.getInputStream().close();
+            release(c);
+            c = null;
         } finally {
             if (c != null) {
                 c.disconnect();
@@ -124,10 +213,29 @@ public class JavaNetHttpHelper implements HttpHelper {
         }
     }
 
+    /**
+     * Gets the number of requests made, including warm-ups.
+     */
+    public int getRequestCount() {
+        synchronized (mIdleConnections) {
+            return mRequestCount;
+        }
+    }
+
+    /**
+     * Gets the number of requests that are estimated to have reused a pooled connection.
+     */
+    public int getPoolHitCount() {
+        synchronized (mIdleConnections) {
+            return mPoolHitCount;
+        }
+    }
+
     private HttpURLConnection createConnection(String url, Map<String, String> headers)
             throws IOException, HttpException {
         URL u = new URL(mRewriter.rewrite(url));
         if (DBG) Log.d(TAG, "URL=" + url + " rewritten='" + u + "'");
+        countRequest(u);
         HttpURLConnection c = (HttpURLConnection) u.openConnection();
         if (headers != null) {
             for (Map.Entry<String,String> e : headers.entrySet()) {
@@ -138,6 +246,11 @@ public class JavaNetHttpHelper implements HttpHelper {
             }
         }
         c.addRequestProperty(USER_AGENT_HEADER, mUserAgent);
+        // Setting this also turns off any transparent decompression by the platform,
+        // so that the response is handled the same way on all releases.
+        if (headers == null || !headers.containsKey(ACCEPT_ENCODING_HEADER)) {
+            c.addRequestProperty(ACCEPT_ENCODING_HEADER, GZIP_ENCODING);
+        }
         if (mConnectTimeout != 0) {
             c.setConnectTimeout(mConnectTimeout);
         }
@@ -147,23 +260,97 @@ public class JavaNetHttpHelper implements HttpHelper {
         return c;
     }
 
-    private String getResponseFrom(HttpURLConnection c) throws IOException, HttpException {
+    private Response getResponseFrom(HttpURLConnection c,
+            CancellationSignal cancellationSignal, AbortListener abortListener)
+            throws IOException, HttpException {
         if (c.getResponseCode() != HttpURLConnection.HTTP_OK) {
             throw new HttpException(c.getResponseCode(), c.getResponseMessage());
         }
+        String contentType = c.getContentType();
+        String encoding = c.getContentEncoding();
+        String charset = getCharset(contentType);
         if (DBG) {
-            Log.d(TAG, "Content-Type: " + c.getContentType() + " (assuming " +
-                    DEFAULT_CHARSET + ")");
+            Log.d(TAG, "Content-Type: " + contentType + " (using " + charset + ")"
+                    + ", Content-Encoding: " + encoding);
         }
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(c.getInputStream(), DEFAULT_CHARSET));
-        StringBuilder string = new StringBuilder();
-        char[] chars = new char[BUFFER_SIZE];
-        int bytes;
-        while ((bytes = reader.read(chars)) != -1) {
-            string.append(chars, 0, bytes);
+        InputStream raw = c.getInputStream();
+        InputStream content = GZIP_ENCODING.equalsIgnoreCase(encoding)
+                ? new GZIPInputStream(raw) : raw;
+        return new ConnectionResponse(c, raw, content, charset, cancellationSignal,
+                abortListener);
+    }
+
+    private static String readText(Response response) throws IOException {
+        try {
+            InputStreamReader reader =
+                    new InputStreamReader(response.getContent(), response.getCharset());
+            StringBuilder string = new StringBuilder();
+            char[] chars = new char[BUFFER_SIZE];
+            int count;
+            while ((count = reader.read(chars)) != -1) {
+                string.append(chars, 0, count);
+            }
+            return string.toString();
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Gets the charset named in a Content-Type header value, or
+     * {@link HttpHelper#DEFAULT_CHARSET} if none or an unsupported one is named.
+     */
+    static String getCharset(String contentType) {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (!param.regionMatches(true, 0, CHARSET_PARAM, 0, CHARSET_PARAM.length())) {
+                    continue;
+                }
+                String charset = param.substring(CHARSET_PARAM.length()).trim();
+                if (charset.length() >= 2 && charset.startsWith("\"")
+                        && charset.endsWith("\"")) {
+                    charset = charset.substring(1, charset.length() - 1);
+                }
+                try {
+                    if (Charset.isSupported(charset)) {
+                        return charset;
+                    }
+                } catch (IllegalCharsetNameException e) {
+                    // Fall through to the default
+                }
+                if (DBG) Log.d(TAG, "Unsupported charset: " + charset);
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    private void countRequest(URL url) {
+        String key = getPoolKey(url);
+        long now = SystemClock.uptimeMillis();
+        synchronized (mIdleConnections) {
+            mRequestCount++;
+            Long idleSince = mIdleConnections.remove(key);
+            boolean hit = idleSince != null && now - idleSince < KEEP_ALIVE_MILLIS;
+            if (hit) {
+                mPoolHitCount++;
+            }
+            if (DBG) {
+                Log.d(TAG, "Pool hits: " + mPoolHitCount + "/" + mRequestCount
+                        + " (" + (hit ? "hit" : "miss") + " for " + key + ")");
+            }
+        }
+    }
+
+    private void release(HttpURLConnection c) {
+        String key = getPoolKey(c.getURL());
+        synchronized (mIdleConnections) {
+            mIdleConnections.put(key, SystemClock.uptimeMillis());
         }
-        return string.toString();
+    }
+
+    private static String getPoolKey(URL url) {
+        return url.getProtocol() + "://" + url.getAuthority();
     }
 
     public void setConnectTimeout(int timeoutMillis) {
@@ -174,6 +361,88 @@ public class JavaNetHttpHelper implements HttpHelper {
         mReadTimeout = timeoutMillis;
     }
 
+    /**
+     * Aborts a request by disconnecting it. Called on the thread that cancels the request,
+     * which is never the one blocked reading from the connection.
+     */
+    private static class AbortListener implements CancellationSignal.OnCancelListener {
+        private final HttpURLConnection mConnection;
+
+        public AbortListener(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        public void onCancel() {
+            if (DBG) Log.d(TAG, "Aborting request to " + mConnection.getURL());
+            mConnection.disconnect();
+        }
+    }
+
+    /**
+     * The response on an open connection. Closing it reads the rest of the content,
+     * which returns the connection to the pool, unless the request has been aborted.
+     */
+    private class ConnectionResponse implements Response {
+        private final HttpURLConnection mConnection;
+        private final InputStream mRaw;
+        private final InputStream mContent;
+        private final String mCharset;
+        private final CancellationSignal mCancellationSignal;
+        private final AbortListener mAbortListener;
+        private boolean mClosed;
+
+        public ConnectionResponse(HttpURLConnection connection, InputStream raw,
+                InputStream content, String charset, CancellationSignal cancellationSignal,
+                AbortListener abortListener) {
+            mConnection = connection;
+            mRaw = raw;
+            mContent = content;
+            mCharset = charset;
+            mCancellationSignal = cancellationSignal;
+            mAbortListener = abortListener;
+        }
+
+        public InputStream getContent() {
+            return mContent;
+        }
+
+        public String getCharset() {
+            return mCharset;
+        }
+
+        public void close() {
+            if (mClosed) return;
+            mClosed = true;
+            if (mAbortListener != null) {
+                mCancellationSignal.removeOnCancelListener(mAbortListener);
+                if (mCancellationSignal.isCanceled()) {
+                    // Already disconnected, nothing left to reuse
+                    mConnection.disconnect();
+                    return;
+                }
+            }
+            try {
+                skipAll(mContent);
+                if (mRaw != mContent) {
+                    // Anything after the end of the compressed data
+                    skipAll(mRaw);
+                }
+                mContent.close();
+                release(mConnection);
+            } catch (IOException e) {
+                if (DBG) Log.d(TAG, "Failed to finish reading response: " + e);
+                mConnection.disconnect();
+            }
+        }
+
+        private void skipAll(InputStream in) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        }
+    }
+
     /**
      * A Url rewriter that does nothing, i.e., returns the
      * url that is passed to it.
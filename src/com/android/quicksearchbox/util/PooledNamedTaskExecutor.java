@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executor that runs tasks on a bounded pool of threads shared by all task names.
+ * Tasks with the same name are run one at a time, in the order they were submitted.
+ * Tasks with different names may run concurrently.
+ *
+ * Threads are started as needed, up to the maximum, and exit after being idle for
+ * the keep-alive time. The queue for a name is dropped as soon as it has no pending
+ * or running tasks.
+ */
+public class PooledNamedTaskExecutor implements NamedTaskExecutor {
+
+    private static final boolean DBG = false;
+    private static final String TAG = "QSB.PooledNamedTaskExecutor";
+
+    private final ThreadFactory mThreadFactory;
+    private final int mMaxThreads;
+    private final long mKeepAliveMillis;
+
+    private final Object mLock = new Object();
+
+    /** Task queues for the names that have pending or running tasks. Guarded by mLock. */
+    private final HashMap<String, NameQueue> mQueues = new HashMap<String, NameQueue>();
+
+    /**
+     * Queues that have pending tasks and no running task, in the order in which they
+     * became ready. Guarded by mLock.
+     */
+    private final LinkedList<NameQueue> mReadyQueues = new LinkedList<NameQueue>();
+
+    /** Guarded by mLock. */
+    private final ArrayList<Thread> mWorkers = new ArrayList<Thread>();
+
+    /** The number of workers waiting for a task. Guarded by mLock. */
+    private int mIdleWorkers = 0;
+
+    /** Guarded by mLock. */
+    private boolean mClosed = false;
+
+    /**
+     * @param threadFactory Used to create the worker threads.
+     * @param maxThreads The maximum number of worker threads.
+     * @param keepAliveMillis How long an idle worker thread waits for a new task before
+     *        exiting.
+     */
+    public PooledNamedTaskExecutor(ThreadFactory threadFactory, int maxThreads,
+            long keepAliveMillis) {
+        mThreadFactory = threadFactory;
+        mMaxThreads = maxThreads;
+        mKeepAliveMillis = keepAliveMillis;
+    }
+
+    public void execute(NamedTask task) {
+        synchronized (mLock) {
+            if (mClosed) {
+                throw new IllegalStateException("execute() after close()");
+            }
+            String name = task.getName();
+            NameQueue queue = mQueues.get(name);
+            if (queue == null) {
+                queue = new NameQueue(name);
+                mQueues.put(name, queue);
+            }
+            queue.mTasks.add(task);
+            if (!queue.mRunning && queue.mTasks.size() == 1) {
+                mReadyQueues.add(queue);
+                if (mIdleWorkers > 0) {
+                    mLock.notify();
+                }
+                if (mReadyQueues.size() > mIdleWorkers && mWorkers.size() < mMaxThreads) {
+                    // Not enough idle workers to take all the ready queues
+                    startWorker();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a new worker thread. Must be called with mLock held.
+     */
+    private void startWorker() {
+        Thread worker = mThreadFactory.newThread(new Worker());
+        mWorkers.add(worker);
+        if (DBG) Log.d(TAG, "Starting worker " + mWorkers.size() + ": " + worker.getName());
+        worker.start();
+    }
+
+    public void cancelPendingTasks() {
+        synchronized (mLock) {
+            if (mClosed) {
+                throw new IllegalStateException("cancelPendingTasks() after close()");
+            }
+            mReadyQueues.clear();
+            Iterator<NameQueue> it = mQueues.values().iterator();
+            while (it.hasNext()) {
+                NameQueue queue = it.next();
+                queue.mTasks.clear();
+                if (!queue.mRunning) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mReadyQueues.clear();
+            mQueues.clear();
+            for (Thread worker : mWorkers) {
+                worker.interrupt();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Gets the number of running worker threads.
+     */
+    public int getThreadCount() {
+        synchronized (mLock) {
+            return mWorkers.size();
+        }
+    }
+
+    /**
+     * Gets the number of task names that have pending or running tasks.
+     */
+    public int getActiveNameCount() {
+        synchronized (mLock) {
+            return mQueues.size();
+        }
+    }
+
+    /**
+     * Waits for a queue with pending tasks, and marks it as running.
+     *
+     * @return The queue, or {@code null} if the worker should exit.
+     */
+    private NameQueue takeReadyQueue() {
+        synchronized (mLock) {
+            long idleUntil = SystemClock.uptimeMillis() + mKeepAliveMillis;
+            while (!mClosed && mReadyQueues.isEmpty()) {
+                long waitMillis = idleUntil - SystemClock.uptimeMillis();
+                if (waitMillis <= 0) {
+                    if (DBG) Log.d(TAG, "Idle worker exiting");
+                    mWorkers.remove(Thread.currentThread());
+                    return null;
+                }
+                mIdleWorkers++;
+                try {
+                    mLock.wait(waitMillis);
+                } catch (InterruptedException ex) {
+                    // Check mClosed
+                } finally {
+                    mIdleWorkers--;
+                }
+            }
+            if (mClosed) {
+                mWorkers.remove(Thread.currentThread());
+                return null;
+            }
+            NameQueue queue = mReadyQueues.removeFirst();
+            queue.mRunning = true;
+            return queue;
+        }
+    }
+
+    /**
+     * Called when a task from the given queue has finished.
+     */
+    private void onTaskDone(NameQueue queue) {
+        synchronized (mLock) {
+            queue.mRunning = false;
+            if (mClosed) return;
+            if (queue.mTasks.isEmpty()) {
+                // Reclaim the queue of an idle name
+                if (mQueues.get(queue.mName) == queue) {
+                    mQueues.remove(queue.mName);
+                }
+            } else {
+                // More tasks for the same name, let them wait their turn behind other names
+                mReadyQueues.add(queue);
+            }
+        }
+    }
+
+    /**
+     * Called when a worker is stopped by an error thrown from a task. Starts another
+     * worker if the ready queues need one.
+     */
+    private void onWorkerDied() {
+        synchronized (mLock) {
+            mWorkers.remove(Thread.currentThread());
+            if (!mClosed && mReadyQueues.size() > mIdleWorkers
+                    && mWorkers.size() < mMaxThreads) {
+                startWorker();
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            Thread currentThread = Thread.currentThread();
+            String threadName = currentThread.getName();
+            boolean died = true;
+            try {
+                NameQueue queue;
+                while ((queue = takeReadyQueue()) != null) {
+                    try {
+                        runNextTask(queue, currentThread, threadName);
+                    } finally {
+                        onTaskDone(queue);
+                    }
+                }
+                died = false;
+            } finally {
+                if (died) onWorkerDied();
+            }
+        }
+
+        private void runNextTask(NameQueue queue, Thread currentThread, String threadName) {
+            NamedTask task;
+            synchronized (mLock) {
+                task = queue.mTasks.poll();
+            }
+            if (task == null) return;
+            currentThread.setName(threadName + " " + task.getName());
+            try {
+                if (DBG) Log.d(TAG, "Running task " + task.getName());
+                task.run();
+                if (DBG) Log.d(TAG, "Task " + task.getName() + " complete");
+            } catch (RuntimeException ex) {
+                Log.e(TAG, "Task " + task.getName() + " failed", ex);
+            } finally {
+                currentThread.setName(threadName);
+            }
+        }
+    }
+
+    private static class NameQueue {
+        private final String mName;
+        private final LinkedList<NamedTask> mTasks = new LinkedList<NamedTask>();
+        /** True if a task from this queue is running. */
+        private boolean mRunning = false;
+
+        public NameQueue(String name) {
+            mName = name;
+        }
+    }
+
+}
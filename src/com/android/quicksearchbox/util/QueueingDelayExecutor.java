@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An executor that measures how long tasks wait before they start running
+ * on another executor.
+ *
+ * This class is thread safe.
+ */
+public class QueueingDelayExecutor implements Executor {
+
+    private static final boolean DBG = false;
+    private static final String TAG = "QSB.QueueingDelayExecutor";
+
+    private final String mName;
+    private final Executor mExecutor;
+    private final long mSlowDelayMillis;
+
+    // All fields below are guarded by this
+    private int mTaskCount;
+    private long mTotalDelayMillis;
+    private long mMaxDelayMillis;
+
+    /**
+     * @param name Name used in log messages.
+     * @param executor The executor that runs the tasks.
+     * @param slowDelayMillis Tasks that wait at least this long are logged.
+     */
+    public QueueingDelayExecutor(String name, Executor executor, long slowDelayMillis) {
+        mName = name;
+        mExecutor = executor;
+        mSlowDelayMillis = slowDelayMillis;
+    }
+
+    public void execute(final Runnable command) {
+        final long queuedTime = SystemClock.uptimeMillis();
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                addDelay(SystemClock.uptimeMillis() - queuedTime);
+                command.run();
+            }
+        });
+    }
+
+    private void addDelay(long delay) {
+        synchronized (this) {
+            mTaskCount++;
+            mTotalDelayMillis += delay;
+            mMaxDelayMillis = Math.max(mMaxDelayMillis, delay);
+        }
+        if (DBG || delay >= mSlowDelayMillis) {
+            Log.i(TAG, mName + ": task waited " + delay + " ms, " + this);
+        }
+    }
+
+    /**
+     * Gets the number of tasks that have started running.
+     */
+    public synchronized int getTaskCount() {
+        return mTaskCount;
+    }
+
+    /**
+     * Gets the average time that the tasks waited before they started running.
+     */
+    public synchronized long getAverageDelayMillis() {
+        return mTaskCount == 0 ? 0 : mTotalDelayMillis / mTaskCount;
+    }
+
+    /**
+     * Gets the longest time that a task waited before it started running.
+     */
+    public synchronized long getMaxDelayMillis() {
+        return mMaxDelayMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + "{tasks=" + mTaskCount + ", avgDelay=" + getAverageDelayMillis()
+                + "ms, maxDelay=" + mMaxDelayMillis + "ms}";
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link CorpusLatencies}.
+ */
+@SmallTest
+public class CorpusLatenciesTest extends TestCase {
+
+    private CorpusLatencies mLatencies;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLatencies = new CorpusLatencies();
+    }
+
+    public void testUnknownCorpus() {
+        assertEquals(-1, mLatencies.getAverageLatency("foo"));
+        assertEquals(-1, mLatencies.getLatencyPercentile("foo", 90));
+    }
+
+    public void testAverage() {
+        mLatencies.addLatency("foo", 100);
+        assertEquals(100, mLatencies.getAverageLatency("foo"));
+        mLatencies.addLatency("foo", 500);
+        assertEquals(200, mLatencies.getAverageLatency("foo"));
+        assertEquals(-1, mLatencies.getAverageLatency("bar"));
+    }
+
+    public void testPercentile() {
+        for (int i = 1; i <= 10; i++) {
+            mLatencies.addLatency("foo", i * 100);
+        }
+        assertEquals(900, mLatencies.getLatencyPercentile("foo", 90));
+        assertEquals(500, mLatencies.getLatencyPercentile("foo", 50));
+        assertEquals(1000, mLatencies.getLatencyPercentile("foo", 100));
+    }
+
+    public void testPercentileUsesRecentSamples() {
+        for (int i = 0; i < 100; i++) {
+            mLatencies.addLatency("foo", 5000);
+        }
+        for (int i = 0; i < 100; i++) {
+            mLatencies.addLatency("foo", 10);
+        }
+        assertEquals(10, mLatencies.getLatencyPercentile("foo", 90));
+    }
+}
@@ -64,6 +64,33 @@ public class DefaultCorpusRankerTest extends AndroidTestCase {
                 MockCorpus.WEB_CORPUS, MockCorpus.CORPUS_2, MockCorpus.CORPUS_1);
     }
 
+    public void testRankChangesWithScores() {
+        setCorpusScores(1, 2, null);
+        MoreAsserts.assertContentsInOrder(getRankedCorpora(),
+                MockCorpus.WEB_CORPUS, MockCorpus.CORPUS_2, MockCorpus.CORPUS_1);
+        Map<String,Integer> scores = new HashMap<String,Integer>();
+        scores.put(MockCorpus.CORPUS_1.getName(), 3);
+        scores.put(MockCorpus.CORPUS_2.getName(), 2);
+        // Without clearing the ranker
+        mRepo.setCorpusScores(scores);
+        MoreAsserts.assertContentsInOrder(getRankedCorpora(),
+                MockCorpus.WEB_CORPUS, MockCorpus.CORPUS_1, MockCorpus.CORPUS_2);
+    }
+
+    public void testRanksAgainWhenScoresChange() {
+        setCorpusScores(1, 2, null);
+        getRankedCorpora();
+        int requests = mRepo.getCorpusScoresRequestCount();
+        Map<String,Integer> scores = new HashMap<String,Integer>();
+        scores.put(MockCorpus.CORPUS_1.getName(), 3);
+        mRepo.setCorpusScores(scores);
+        // Ranked before anyone asks
+        assertEquals(requests + 1, mRepo.getCorpusScoresRequestCount());
+        MoreAsserts.assertContentsInOrder(getRankedCorpora(),
+                MockCorpus.WEB_CORPUS, MockCorpus.CORPUS_1, MockCorpus.CORPUS_2);
+        assertEquals(requests + 1, mRepo.getCorpusScoresRequestCount());
+    }
+
     private void setCorpusScores(Integer corpus1, Integer corpus2, Integer webCorpus) {
         Map<String,Integer> scores = new HashMap<String,Integer>();
         if (corpus1 != null) scores.put(MockCorpus.CORPUS_1.getName(), corpus1);
@@ -16,6 +16,8 @@
 
 package com.android.quicksearchbox;
 
+import com.android.quicksearchbox.util.CancellationSignal;
+
 import android.content.Intent;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
@@ -96,6 +98,11 @@ public class MockCorpus implements Corpus {
         return new Result(query, mSource.getSuggestions(query, queryLimit, true));
     }
 
+    public CorpusResult getSuggestions(String query, int queryLimit, boolean onlyCorpus,
+            CancellationSignal cancellationSignal) {
+        return getSuggestions(query, queryLimit, onlyCorpus);
+    }
+
     @Override
     public String toString() {
         return getName();
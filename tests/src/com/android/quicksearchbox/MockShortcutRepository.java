@@ -18,6 +18,9 @@ package com.android.quicksearchbox;
 
 import com.android.quicksearchbox.util.Consumer;
 
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+
 import java.util.Collection;
 import java.util.Map;
 
@@ -27,10 +30,15 @@ import java.util.Map;
  */
 public class MockShortcutRepository implements ShortcutRepository {
 
+    private final DataSetObservable mCorpusScoresObservable = new DataSetObservable();
+
     private Map<String, Integer> mCorpusScores;
 
+    private int mCorpusScoresRequests;
+
     public void setCorpusScores(Map<String, Integer> corpusScores) {
         mCorpusScores = corpusScores;
+        mCorpusScoresObservable.notifyChanged();
     }
 
     public void clearHistory() {
@@ -42,6 +50,9 @@ public class MockShortcutRepository implements ShortcutRepository {
     public void close() {
     }
 
+    public void flush() {
+    }
+
     public void getShortcutsForQuery(String query, Collection<Corpus> corporaToQuery,
             boolean allowWebSearchShortcuts, Consumer<ShortcutCursor> consumer) {
         ShortcutCursor cursor = getShortcutsForQuery(query, corporaToQuery);
@@ -63,9 +74,22 @@ public class MockShortcutRepository implements ShortcutRepository {
     }
 
     public void getCorpusScores(Consumer<Map<String, Integer>> consumer) {
+        mCorpusScoresRequests++;
         consumer.consume(mCorpusScores);
     }
 
+    public int getCorpusScoresRequestCount() {
+        return mCorpusScoresRequests;
+    }
+
+    public void registerCorpusScoresObserver(DataSetObserver observer) {
+        mCorpusScoresObservable.registerObserver(observer);
+    }
+
+    public void unregisterCorpusScoresObserver(DataSetObserver observer) {
+        mCorpusScoresObservable.unregisterObserver(observer);
+    }
+
     public void hasHistory(Consumer<Boolean> consumer) {
         consumer.consume(false);
     }
@@ -17,6 +17,7 @@
 package com.android.quicksearchbox;
 
 import com.android.quicksearchbox.ui.SuggestionViewFactory;
+import com.android.quicksearchbox.util.CancellationSignal;
 import com.android.quicksearchbox.util.Now;
 import com.android.quicksearchbox.util.NowOrLater;
 
@@ -133,6 +134,11 @@ public class MockSource implements Source {
         return true;
     }
 
+    public SourceResult getSuggestions(String query, int queryLimit, boolean onlySource,
+            CancellationSignal cancellationSignal) {
+        return getSuggestions(query, queryLimit, onlySource);
+    }
+
     public SourceResult getSuggestions(String query, int queryLimit, boolean onlySource) {
         if (query.length() == 0) {
             return null;
@@ -16,6 +16,8 @@
 
 package com.android.quicksearchbox;
 
+import com.android.quicksearchbox.util.BarrierConsumer;
+
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.drawable.Drawable;
@@ -25,6 +27,7 @@ import android.test.AndroidTestCase;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.LargeTest;
 
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -60,6 +63,34 @@ public class MultiSourceCorpusTest extends AndroidTestCase {
         SuggestionCursorUtil.assertSameSuggestions(expected, observed);
     }
 
+    public void testGetSuggestionsAsync() {
+        ListSuggestionCursor expected = concatSuggestionCursors("foo",
+                MockSource.SOURCE_1.getSuggestions("foo", 50, false),
+                MockSource.SOURCE_2.getSuggestions("foo", 50, false));
+        BarrierConsumer<CorpusResult> consumer = new BarrierConsumer<CorpusResult>(1);
+        mCorpus.getSuggestions("foo", 50, false, null, null, consumer);
+        CorpusResult observed = consumer.getValues().get(0);
+        SuggestionCursorUtil.assertSameSuggestions(expected, observed);
+    }
+
+    public void testGetSuggestionCopies() {
+        ListSuggestionCursor expected = concatSuggestionCursors("foo",
+                MockSource.SOURCE_1.getSuggestions("foo", 50, false),
+                MockSource.SOURCE_2.getSuggestions("foo", 50, false));
+        BarrierConsumer<CorpusResult> consumer = new BarrierConsumer<CorpusResult>(1);
+        mCorpus.getSuggestions("foo", 50, false, null, null, consumer);
+        CorpusResult observed = consumer.getValues().get(0);
+        List<Suggestion> copies = ((IncrementalCorpusResult) observed).getSuggestionCopies();
+        assertNotNull(copies);
+        // The copies stay valid after the result is closed
+        observed.close();
+        ListSuggestionCursor copied = new ListSuggestionCursor("foo");
+        for (Suggestion copy : copies) {
+            copied.add(copy);
+        }
+        SuggestionCursorUtil.assertSameSuggestions(expected, copied);
+    }
+
     public void testIncludeInAll() {
         assertTrue(mCorpus.includeInAll());
     }
@@ -15,6 +15,7 @@
  */
 package com.android.quicksearchbox;
 
+import com.android.quicksearchbox.util.MockDataSetObserver;
 import com.android.quicksearchbox.util.MockExecutor;
 import com.android.quicksearchbox.util.Util;
 
@@ -96,7 +97,7 @@ public class ShortcutRepositoryTest extends AndroidTestCase {
 
     protected ShortcutRepositoryImplLog createShortcutRepository() {
         return new ShortcutRepositoryImplLog(getContext(), mConfig, mCorpora,
-                mRefresher, new MockHandler(), mLogExecutor,
+                mRefresher, new MockHandler(), mLogExecutor, mLogExecutor,
                 "test-shortcuts-log.db");
     }
 
@@ -290,6 +291,110 @@ public class ShortcutRepositoryTest extends AndroidTestCase {
         assertShortcuts("g for george", "g", george);
     }
 
+    public void testLongQueryMatches() {
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            query.append("bob smith ");
+        }
+        SuggestionData clicked = new SuggestionData(CONTACTS_SOURCE)
+                .setText1("bob smith the third")
+                .setIntentAction("action")
+                .setIntentData("intentdata");
+
+        reportClick(query.toString(), clicked);
+
+        assertShortcuts(query.toString(), clicked);
+        assertShortcuts(query.substring(0, 150), clicked);
+        assertShortcuts("bob s", clicked);
+    }
+
+    public void testIndexMatchesDatabase() {
+        reportClick("app", mApp1, NOW - 3);
+        reportClick("app", mApp2, NOW - 2);
+        reportClick("ap", mApp2, NOW - 1);
+        reportClick("bob", mContact1, NOW - 1);
+        reportClick("", mContact2, NOW);
+        invalidateShortcut(CONTACTS_SOURCE, mContact2.getShortcutId());
+
+        // A new repository has not loaded its index, and so reads from the database
+        ShortcutRepositoryImplLog fromDb = createShortcutRepository();
+        try {
+            for (String query : new String[]{ "", "a", "ap", "app", "b", "bob", "x" }) {
+                SuggestionCursor expected =
+                        fromDb.getShortcutsForQuery(query, mAllowedCorpora, true, NOW);
+                if (expected == null) {
+                    assertNoShortcuts(query);
+                } else {
+                    try {
+                        assertShortcuts("query '" + query + "'", query, mAllowedCorpora,
+                                true, expected);
+                    } finally {
+                        expected.close();
+                    }
+                }
+            }
+        } finally {
+            fromDb.close();
+            mLogExecutor.runNext();
+        }
+    }
+
+    public void testPendingClicksAreVisible() {
+        reportClick("app", mApp1, NOW - 2);
+
+        // Not written to the database yet
+        mRepo.reportClickAtTime(new ListSuggestionCursor("app", mApp2), 0, NOW - 1);
+        mRepo.reportClickAtTime(new ListSuggestionCursor("app", mApp3), 0, NOW);
+        assertShortcuts("pending clicks should be included", "app", mApp3, mApp2, mApp1);
+    }
+
+    public void testPendingClicksWrittenTogether() {
+        reportClick("app", mApp1, NOW - 2);
+        mRepo.reportClickAtTime(new ListSuggestionCursor("app", mApp2), 0, NOW - 1);
+        mRepo.reportClickAtTime(new ListSuggestionCursor("app", mApp3), 0, NOW);
+
+        // The first flush writes both clicks
+        assertTrue(mLogExecutor.runNext());
+        ShortcutRepositoryImplLog fromDb = createShortcutRepository();
+        try {
+            SuggestionCursor cursor = fromDb.getShortcutsForQuery("app", mAllowedCorpora,
+                    true, NOW);
+            try {
+                SuggestionCursorUtil.assertSameSuggestions("both clicks should be written",
+                        new ListSuggestionCursor("app", mApp3, mApp2, mApp1), cursor);
+            } finally {
+                if (cursor != null) cursor.close();
+            }
+        } finally {
+            fromDb.close();
+        }
+        // The second flush has nothing left to write, and then fromDb closes
+        assertTrue(mLogExecutor.runNext());
+        assertTrue(mLogExecutor.runNext());
+        assertFalse(mLogExecutor.runNext());
+    }
+
+    public void testZeroQueryShortcutsIncludeNewClicks() {
+        long now = System.currentTimeMillis();
+        // Ranks the zero query shortcuts when written
+        reportClick("app", mApp1, now - 1);
+
+        // Not written to the database yet
+        mRepo.reportClickAtTime(new ListSuggestionCursor("app", mApp2), 0, now);
+        assertZeroQueryShortcuts("new click should be included", mAllowedCorpora,
+                mApp2, mApp1);
+    }
+
+    public void testZeroQueryShortcutsOnlyFromAllowedCorpora() {
+        long now = System.currentTimeMillis();
+        reportClick("app", mApp1, now);
+        reportClick("joe", mContact1, now - 1);
+        assertZeroQueryShortcuts("all shortcuts should be returned", mAllowedCorpora,
+                mApp1, mContact1);
+        assertZeroQueryShortcuts("only contact shortcuts should be returned",
+                Arrays.asList(CONTACTS_CORPUS), mContact1);
+    }
+
     public void testDifferentPrefixesMatchSameEntity() {
         SuggestionData clicked = new SuggestionData(CONTACTS_SOURCE)
                 .setText1("bob smith the third")
@@ -432,6 +537,22 @@ public class ShortcutRepositoryTest extends AndroidTestCase {
                 "app", mApp1);
     }
 
+    public void testClicksTooOldToCountIgnoredBeforeAgeOut() {
+        reportClick("app", mApp3, NOW);
+        reportClick("app", mApp1, NOW - 2 * HOUR_MILLIS);
+        reportClick("app", mApp2, NOW - 3 * HOUR_MILLIS);
+        // Reported last, so that writing it does not age it out
+        reportClick("app", mApp1, NOW - mConfig.getMaxStatAgeMillis() - DAY_MILLIS);
+
+        assertShortcuts("old click should not count against app1", "app",
+                mApp3, mApp1, mApp2);
+
+        // The lookup queued an age-out, after which the scores agree
+        assertTrue(mLogExecutor.runNext());
+        assertShortcuts("aged out click should not count against app1", "app",
+                mApp3, mApp1, mApp2);
+    }
+
     public void testZeroQueryResults_MoreClicksWins() {
         reportClick("app", mApp1);
         reportClick("app", mApp1);
@@ -647,6 +768,66 @@ public class ShortcutRepositoryTest extends AndroidTestCase {
     }
 
 
+    public void testSourceStatsUpdatedWhenShortcutRemoved() {
+        int minClicks = mConfig.getMinClicksForSourceRanking();
+        for (int i = 0; i < minClicks + 1; i++) {
+            reportClick("app", mApp1);
+        }
+        for (int i = 0; i < minClicks; i++) {
+            reportClick("bob", mContact1);
+        }
+        assertCorpusRanking("expecting apps to rank ahead of contacts (more clicks)",
+                APP_CORPUS, CONTACTS_CORPUS);
+
+        removeFromHistory(new ListSuggestionCursor("app", mApp1), 0);
+        assertCorpusRanking("removed shortcut's clicks shouldn't count.",
+                CONTACTS_CORPUS);
+    }
+
+    public void testSourceStatsUnchangedByReconcile() {
+        int minClicks = mConfig.getMinClicksForSourceRanking();
+        for (int i = 0; i < minClicks; i++) {
+            reportClick("app", mApp1);
+        }
+        for (int i = 0; i < minClicks + 1; i++) {
+            reportClick("bob", mContact1);
+        }
+        Map<String,Integer> before = getCorpusScores();
+        mRepo.reconcileSourceStats();
+        assertEquals(before, getCorpusScores());
+    }
+
+    public void testPendingClicksCountForCorpusScores() {
+        int minClicks = mConfig.getMinClicksForSourceRanking();
+        reportClick("app", mApp1);
+        MockDataSetObserver observer = new MockDataSetObserver();
+        mRepo.registerCorpusScoresObserver(observer);
+
+        // Not written to the database yet
+        for (int i = 0; i < minClicks; i++) {
+            mRepo.reportClickAtTime(new ListSuggestionCursor("bob", mContact1), 0, NOW);
+        }
+        observer.assertChanged();
+
+        // The scores are in memory, so the consumer is called synchronously
+        ConsumerTrap<Map<String,Integer>> trap = new ConsumerTrap<Map<String,Integer>>();
+        mRepo.getCorpusScores(trap);
+        assertEquals(Collections.singletonMap(CONTACTS_CORPUS.getName(), minClicks),
+                trap.getValue());
+    }
+
+    public void testAgeOutClicks() {
+        final long toOld = mConfig.getMaxStatAgeMillis() + 1;
+        int minClicks = mConfig.getMinClicksForSourceRanking();
+        for (int i = 0; i < minClicks; i++) {
+            reportClick("app", mApp1, NOW - toOld);
+        }
+        assertCorpusRanking("expecting clicks to count before age-out", APP_CORPUS);
+
+        assertTrue(mRepo.ageOutClicks(NOW - mConfig.getMaxStatAgeMillis(), 1));
+        assertCorpusRanking("aged out clicks shouldn't count.");
+    }
+
     public void testSourceRanking_filterSourcesWithInsufficientData() {
         int minClicks = mConfig.getMinClicksForSourceRanking();
         // not enough
@@ -715,6 +896,61 @@ public class ShortcutRepositoryTest extends AndroidTestCase {
                 "a", newAllowedCorpora, SuggestionCursorUtil.slice(expected, 1));
     }
 
+    public void testShortcutCountLimited() {
+        int maxShortcuts = mConfig.getMaxShortcutsReturned();
+        for (int i = 0; i < maxShortcuts + 1; i++) {
+            reportClick("app", makeApp("TestApp" + i));
+        }
+        assertShortcutCount("expected only the max number of shortcuts", "app", maxShortcuts);
+    }
+
+    public void testShortcutLimitIsPerSource() {
+        int maxShortcuts = mConfig.getMaxShortcutsReturned();
+        ListSuggestionCursor expected = new ListSuggestionCursor("a");
+        for (int i = 0; i < maxShortcuts + 1; i++) {
+            SuggestionData app = makeApp("TestApp" + i);
+            int numClicks = maxShortcuts + 2 - i;  // use click count to get shortcuts in order
+            for (int j = 0; j < numClicks; j++) {
+                reportClick("a", app, NOW);
+            }
+            if (i < maxShortcuts) {
+                expected.add(app);
+            }
+        }
+        reportClick("a", mContact1, NOW);
+        expected.add(mContact1);
+        assertShortcuts("apps should not crowd out the contact", "a", mAllowedCorpora,
+                expected);
+    }
+
+    public void testSingleCorpusShortcutsNotLimited() {
+        int numShortcuts = mConfig.getMaxShortcutsReturned() + 1;
+        for (int i = 0; i < numShortcuts; i++) {
+            reportClick("app", makeApp("TestApp" + i));
+        }
+        SuggestionCursor cursor = getShortcuts("app", Collections.singletonList(APP_CORPUS));
+        try {
+            assertEquals("expected all shortcuts for the corpus", numShortcuts,
+                    cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testDisallowedWebShortcutsDoNotCountTowardsLimit() {
+        for (int i = 0; i < mConfig.getMaxShortcutsReturned(); i++) {
+            SuggestionData web = new SuggestionData(MockSource.WEB_SOURCE)
+                    .setText1("a" + i)
+                    .setIntentAction(Intent.ACTION_WEB_SEARCH)
+                    .setSuggestionQuery("a" + i);
+            reportClick("a", web, NOW);
+            reportClick("a", web, NOW);
+        }
+        reportClick("a", mApp1, NOW - 1);
+        assertShortcuts("app should be included when web shortcuts are not allowed", "a",
+                mAllowedCorpora, false, mApp1);
+    }
+
     public void testIrrelevantAppUpgrade() {
         reportClick("a", mApp1);
         reportClick("add", mApp1);
@@ -877,6 +1113,18 @@ public class ShortcutRepositoryTest extends AndroidTestCase {
         }
     }
 
+    void assertZeroQueryShortcuts(String message, Collection<Corpus> allowedCorpora,
+            SuggestionData... expected) {
+        SuggestionCursor cursor = mRepo.getShortcutsForQuery("", allowedCorpora, true,
+                System.currentTimeMillis());
+        try {
+            SuggestionCursorUtil.assertSameSuggestions(message,
+                    new ListSuggestionCursor("", expected), cursor);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
     void assertShortcutCount(String message, String query, int expectedCount) {
         SuggestionCursor cursor = getShortcuts(query, mAllowedCorpora);
         try {
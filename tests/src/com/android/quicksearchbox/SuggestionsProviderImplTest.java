@@ -99,6 +99,94 @@ public class SuggestionsProviderImplTest extends AndroidTestCase {
         }
     }
 
+    public void testCachedResultsPublishedWithoutQuery() {
+        Suggestions first = mProvider.getSuggestions("foo",
+                Arrays.asList(MockCorpus.CORPUS_1, MockCorpus.CORPUS_2));
+        try {
+            assertTrue(mTaskExecutor.runNext());
+            assertTrue(mTaskExecutor.runNext());
+            mTaskExecutor.assertDone();
+        } finally {
+            first.release();
+        }
+
+        Suggestions second = mProvider.getSuggestions("foo",
+                Arrays.asList(MockCorpus.CORPUS_1, MockCorpus.CORPUS_2));
+        try {
+            assertEquals(2, second.getResultCount());
+            assertTrue(second.isDone());
+            mTaskExecutor.assertDone();
+            assertEquals(MockCorpus.CORPUS_1.getSuggestions("foo", 3, true).getCount(),
+                    second.getCorpusResult(MockCorpus.CORPUS_1).getCount());
+        } finally {
+            second.release();
+        }
+    }
+
+    public void testCachedResultsOnlyForSameQuery() {
+        Suggestions first = mProvider.getSuggestions("foo",
+                Collections.singletonList(MockCorpus.CORPUS_1));
+        try {
+            assertTrue(mTaskExecutor.runNext());
+        } finally {
+            first.release();
+        }
+
+        Suggestions second = mProvider.getSuggestions("foob",
+                Collections.singletonList(MockCorpus.CORPUS_1));
+        try {
+            assertEquals(0, second.getResultCount());
+            mTaskExecutor.assertPendingTaskCount(1);
+            assertTrue(mTaskExecutor.runNext());
+            assertEquals(1, second.getResultCount());
+        } finally {
+            second.release();
+        }
+    }
+
+    public void testProvisionalResultFromPrefix() {
+        Suggestions first = mProvider.getSuggestions("foo",
+                Collections.singletonList(MockCorpus.CORPUS_1));
+        try {
+            assertTrue(mTaskExecutor.runNext());
+        } finally {
+            first.release();
+        }
+
+        // Only "foo_1" from the results for "foo" matches "foo_1"
+        Suggestions second = mProvider.getSuggestions("foo_1",
+                Collections.singletonList(MockCorpus.CORPUS_1));
+        try {
+            assertEquals(0, second.getResultCount());
+            assertTrue(second.isProvisional(MockCorpus.CORPUS_1));
+            assertEquals(1, second.getCorpusResult(MockCorpus.CORPUS_1).getCount());
+            assertTrue(mTaskExecutor.runNext());
+            assertEquals(1, second.getResultCount());
+            assertFalse(second.isProvisional(MockCorpus.CORPUS_1));
+        } finally {
+            second.release();
+        }
+    }
+
+    public void testNewQueryCancelsPreviousQuery() {
+        Suggestions first = mProvider.getSuggestions("foo",
+                Collections.singletonList(MockCorpus.CORPUS_1));
+        Suggestions second = mProvider.getSuggestions("bar",
+                Collections.singletonList(MockCorpus.CORPUS_1));
+        try {
+            // The task for "foo" was already handed to the executor, but is canceled
+            mTaskExecutor.assertPendingTaskCount(2);
+            assertTrue(mTaskExecutor.runNext());
+            assertEquals(0, first.getResultCount());
+            assertTrue(mTaskExecutor.runNext());
+            assertEquals(1, second.getResultCount());
+            mTaskExecutor.assertDone();
+        } finally {
+            first.release();
+            second.release();
+        }
+    }
+
     private SuggestionCursor promote(Suggestions suggestions) {
         return suggestions.getPromoted(new ConcatPromoter(), 10);
     }
@@ -93,4 +93,107 @@ public class SuggestionsTest extends AndroidTestCase {
         mObserver.assertNotInvalidated();
     }
 
+    public void testProvisionalResultReplaced() {
+        Corpus corpus = MockCorpus.CORPUS_1;
+        CorpusResult provisional = new TestCorpusResult(corpus, "foo");
+        mSuggestions.addProvisionalCorpusResults(
+                Collections.<CorpusResult>singletonList(provisional));
+        mObserver.assertChanged();
+        assertTrue(mSuggestions.isProvisional(corpus));
+        assertEquals(0, mSuggestions.getResultCount());
+        assertSame(provisional, mSuggestions.getCorpusResult(corpus));
+
+        CorpusResult real = corpus.getSuggestions("foo", 50, true);
+        mSuggestions.addCorpusResults(Collections.singletonList(real));
+        assertFalse(mSuggestions.isProvisional(corpus));
+        assertEquals(1, mSuggestions.getResultCount());
+        assertSame(real, mSuggestions.getCorpusResult(corpus));
+    }
+
+    public void testProvisionalResultDroppedAfterRealResult() {
+        Corpus corpus = MockCorpus.CORPUS_1;
+        CorpusResult real = corpus.getSuggestions("foo", 50, true);
+        mSuggestions.addCorpusResults(Collections.singletonList(real));
+        mSuggestions.addProvisionalCorpusResults(
+                Collections.<CorpusResult>singletonList(new TestCorpusResult(corpus, "foo")));
+        assertFalse(mSuggestions.isProvisional(corpus));
+        assertSame(real, mSuggestions.getCorpusResult(corpus));
+    }
+
+    public void testIncrementalResultCountedWhenComplete() {
+        Corpus corpus = MockCorpus.CORPUS_1;
+        TestIncrementalResult incremental = new TestIncrementalResult(corpus, "foo");
+        mSuggestions.addCorpusResults(Collections.<CorpusResult>singletonList(incremental));
+        mObserver.assertChanged();
+        assertSame(incremental, mSuggestions.getCorpusResult(corpus));
+        assertEquals(0, mSuggestions.getResultCount());
+
+        MockDataSetObserver updateObserver = new MockDataSetObserver();
+        mSuggestions.registerDataSetObserver(updateObserver);
+        incremental.update(false);
+        updateObserver.assertChanged();
+        assertEquals(0, mSuggestions.getResultCount());
+
+        incremental.update(true);
+        assertEquals(1, mSuggestions.getResultCount());
+    }
+
+    public void testTimedOutCorpusCountsAsDone() {
+        mSuggestions.addCorpusResults(Collections.singletonList(
+                MockCorpus.CORPUS_1.getSuggestions("foo", 50, true)));
+        assertFalse(mSuggestions.isDone());
+
+        MockDataSetObserver doneObserver = new MockDataSetObserver();
+        mSuggestions.registerDataSetObserver(doneObserver);
+        mSuggestions.setCorpusTimedOut(MockCorpus.WEB_CORPUS.getName());
+        doneObserver.assertChanged();
+        assertTrue(mSuggestions.isDone());
+        assertEquals(1, mSuggestions.getResultCount());
+
+        // A late result is still added
+        mSuggestions.addCorpusResults(Collections.singletonList(
+                MockCorpus.WEB_CORPUS.getSuggestions("foo", 50, true)));
+        assertEquals(2, mSuggestions.getResultCount());
+        assertTrue(mSuggestions.isDone());
+    }
+
+    private static class TestIncrementalResult extends TestCorpusResult
+            implements IncrementalCorpusResult {
+        private boolean mComplete = false;
+
+        public TestIncrementalResult(Corpus corpus, String userQuery) {
+            super(corpus, userQuery);
+        }
+
+        public void update(boolean complete) {
+            mComplete = complete;
+            notifyDataSetChanged();
+        }
+
+        public boolean isComplete() {
+            return mComplete;
+        }
+
+        public List<Suggestion> getSuggestionCopies() {
+            return null;
+        }
+    }
+
+    private static class TestCorpusResult extends ListSuggestionCursor implements CorpusResult {
+        private final Corpus mCorpus;
+
+        public TestCorpusResult(Corpus corpus, String userQuery) {
+            super(userQuery);
+            mCorpus = corpus;
+        }
+
+        public Corpus getCorpus() {
+            return mCorpus;
+        }
+
+        public int getLatency() {
+            return 0;
+        }
+    }
+
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.google;
+
+import com.android.quicksearchbox.util.MockExecutor;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.File;
+
+/**
+ * Tests for {@link GoogleSuggestCache}.
+ */
+@MediumTest
+public class GoogleSuggestCacheTest extends AndroidTestCase {
+
+    private static final String URL_A = "http://www.google.com/complete/search?q=a";
+    private static final String URL_B = "http://www.google.com/complete/search?q=b";
+    private static final String URL_C = "http://www.google.com/complete/search?q=c";
+
+    private File mDir;
+    private MockExecutor mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "suggest-test");
+        deleteDir();
+        mExecutor = new MockExecutor();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDir();
+        super.tearDown();
+    }
+
+    private void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private GoogleSuggestCache createCache(int maxMemoryEntries, int maxDiskEntries) {
+        return new GoogleSuggestCache(mDir, maxMemoryEntries, maxDiskEntries, mExecutor);
+    }
+
+    /**
+     * Gets a response that may only be on disk, letting the cache read it.
+     */
+    private GoogleSuggestCache.Entry getFromDisk(GoogleSuggestCache cache, String url) {
+        GoogleSuggestCache.Entry entry = cache.get(url);
+        if (entry != null) return entry;
+        while (mExecutor.runNext());
+        return cache.get(url);
+    }
+
+    private static GoogleSuggestCache.Entry makeEntry(long time, String... suggestions) {
+        String[] popularity = new String[suggestions.length];
+        for (int i = 0; i < suggestions.length; i++) {
+            popularity[i] = suggestions[i] + " results";
+        }
+        return new GoogleSuggestCache.Entry(time, suggestions.length, suggestions, popularity);
+    }
+
+    private static void assertEntry(GoogleSuggestCache.Entry expected,
+            GoogleSuggestCache.Entry actual) {
+        assertNotNull("no entry", actual);
+        assertEquals("time", expected.getTime(), actual.getTime());
+        assertEquals("count", expected.getCount(), actual.getCount());
+        for (int i = 0; i < expected.getCount(); i++) {
+            assertEquals("suggestion " + i,
+                    expected.getSuggestions()[i], actual.getSuggestions()[i]);
+            assertEquals("popularity " + i,
+                    expected.getPopularity()[i], actual.getPopularity()[i]);
+        }
+    }
+
+    public void testGetFromMemory() {
+        GoogleSuggestCache cache = createCache(10, 10);
+        assertNull(cache.get(URL_A));
+        GoogleSuggestCache.Entry entry = makeEntry(1000L, "a1", "a2");
+        cache.put(URL_A, entry);
+        assertSame(entry, cache.get(URL_A));
+        assertNull(cache.get(URL_B));
+    }
+
+    public void testGetFromDisk() {
+        GoogleSuggestCache.Entry entry = makeEntry(1000L, "a1", null, "a\u00e93");
+        createCache(10, 10).put(URL_A, entry);
+        mExecutor.runNext();
+        // A new cache has nothing in memory, and doesn't read the disk on the calling thread
+        GoogleSuggestCache cache = createCache(10, 10);
+        assertNull(cache.get(URL_A));
+        assertEquals(1, mExecutor.countPendingTasks());
+        mExecutor.runNext();
+        assertEntry(entry, cache.get(URL_A));
+        // Files that are known not to exist are not looked for
+        assertNull(cache.get(URL_B));
+        assertEquals(0, mExecutor.countPendingTasks());
+    }
+
+    public void testRecentFilesLoaded() {
+        GoogleSuggestCache oldCache = createCache(10, 10);
+        GoogleSuggestCache.Entry b = makeEntry(1000L, "b1");
+        oldCache.put(URL_A, makeEntry(1000L, "a1"));
+        oldCache.put(URL_B, b);
+        while (mExecutor.runNext());
+        // lastModified() may only have one second resolution
+        new File(mDir, Integer.toHexString(URL_A.hashCode())).setLastModified(0);
+        // Only room in memory for the most recently written
+        GoogleSuggestCache cache = createCache(1, 10);
+        assertNull(cache.get(URL_C));
+        mExecutor.runNext();
+        assertEntry(b, cache.get(URL_B));
+        assertEquals(0, mExecutor.countPendingTasks());
+    }
+
+    public void testNotWrittenBeforeExecutorRuns() {
+        createCache(10, 10).put(URL_A, makeEntry(1000L, "a1"));
+        assertNull(createCache(10, 10).get(URL_A));
+    }
+
+    public void testMemoryEviction() {
+        GoogleSuggestCache cache = createCache(2, 10);
+        GoogleSuggestCache.Entry a = makeEntry(1000L, "a1");
+        cache.put(URL_A, a);
+        cache.put(URL_B, makeEntry(1000L, "b1"));
+        cache.put(URL_C, makeEntry(1000L, "c1"));
+        // Evicted from memory before it was written
+        assertNull(cache.get(URL_A));
+        while (mExecutor.runNext());
+        // Now read back from disk
+        assertEntry(a, getFromDisk(cache, URL_A));
+    }
+
+    public void testDiskTrimming() throws Exception {
+        GoogleSuggestCache cache = createCache(10, 2);
+        cache.put(URL_A, makeEntry(1000L, "a1"));
+        mExecutor.runNext();
+        // lastModified() may only have one second resolution
+        new File(mDir, Integer.toHexString(URL_A.hashCode())).setLastModified(0);
+        cache.put(URL_B, makeEntry(1000L, "b1"));
+        cache.put(URL_C, makeEntry(1000L, "c1"));
+        while (mExecutor.runNext());
+        assertEquals(2, mDir.listFiles().length);
+        GoogleSuggestCache newCache = createCache(10, 2);
+        assertNull(getFromDisk(newCache, URL_A));
+        assertNotNull(getFromDisk(newCache, URL_B));
+        assertNotNull(getFromDisk(newCache, URL_C));
+    }
+
+    public void testDiskTrimmingCountsExistingFiles() throws Exception {
+        GoogleSuggestCache oldCache = createCache(10, 2);
+        oldCache.put(URL_A, makeEntry(1000L, "a1"));
+        oldCache.put(URL_B, makeEntry(1000L, "b1"));
+        while (mExecutor.runNext());
+        // lastModified() may only have one second resolution
+        new File(mDir, Integer.toHexString(URL_A.hashCode())).setLastModified(0);
+        GoogleSuggestCache cache = createCache(10, 2);
+        cache.put(URL_C, makeEntry(1000L, "c1"));
+        while (mExecutor.runNext());
+        assertEquals(2, mDir.listFiles().length);
+        GoogleSuggestCache newCache = createCache(10, 2);
+        assertNull(getFromDisk(newCache, URL_A));
+        assertNotNull(getFromDisk(newCache, URL_B));
+        assertNotNull(getFromDisk(newCache, URL_C));
+    }
+
+    public void testClear() {
+        GoogleSuggestCache cache = createCache(10, 10);
+        cache.put(URL_A, makeEntry(1000L, "a1"));
+        mExecutor.runNext();
+        cache.put(URL_B, makeEntry(1000L, "b1"));
+        cache.clear();
+        assertNull(cache.get(URL_A));
+        assertNull(cache.get(URL_B));
+        // The queued write runs before the files are deleted
+        while (mExecutor.runNext());
+        assertEquals(0, mDir.listFiles().length);
+        assertNull(getFromDisk(createCache(10, 10), URL_A));
+        assertNull(getFromDisk(createCache(10, 10), URL_B));
+    }
+
+    public void testReplace() {
+        GoogleSuggestCache cache = createCache(10, 10);
+        cache.put(URL_A, makeEntry(1000L, "old"));
+        GoogleSuggestCache.Entry newEntry = makeEntry(2000L, "new");
+        cache.put(URL_A, newEntry);
+        while (mExecutor.runNext());
+        assertSame(newEntry, cache.get(URL_A));
+        assertEntry(newEntry, getFromDisk(createCache(10, 10), URL_A));
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.google;
+
+import com.android.quicksearchbox.Config;
+import com.android.quicksearchbox.SourceResult;
+import com.android.quicksearchbox.util.CancellationSignal;
+import com.android.quicksearchbox.util.HttpHelper;
+import com.android.quicksearchbox.util.MockExecutor;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests for {@link GoogleSuggestClient}.
+ */
+@MediumTest
+public class GoogleSuggestClientTest extends AndroidTestCase {
+
+    private File mDir;
+    private Config mConfig;
+    private MockExecutor mBackgroundExecutor;
+    private MockExecutor mDiskExecutor;
+    private GoogleSuggestCache mCache;
+    private MockHttpHelper mHttpHelper;
+    private boolean mConnected;
+    private long mDebounceMillis;
+    private GoogleSuggestClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "suggest-client-test");
+        deleteDir();
+        mConfig = new Config(getContext()) {
+            @Override
+            public long getWebSuggestDebounceMillis() {
+                return mDebounceMillis;
+            }
+        };
+        mBackgroundExecutor = new MockExecutor();
+        mDiskExecutor = new MockExecutor();
+        mCache = new GoogleSuggestCache(mDir, 10, 10, mDiskExecutor);
+        mHttpHelper = new MockHttpHelper();
+        mConnected = true;
+        mDebounceMillis = 0;
+        mClient = new GoogleSuggestClient(getContext(), null, null, mConfig, mHttpHelper,
+                mBackgroundExecutor, mCache) {
+            @Override
+            boolean isNetworkConnected() {
+                return mConnected;
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDir();
+        super.tearDown();
+    }
+
+    private void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private String getUrl(String query) {
+        return mClient.getSuggestBaseUri() + query;
+    }
+
+    private void putCached(String query, long age, String... suggestions) {
+        String[] popularity = new String[suggestions.length];
+        mCache.put(getUrl(query), new GoogleSuggestCache.Entry(
+                System.currentTimeMillis() - age, suggestions.length, suggestions, popularity));
+    }
+
+    private QueryThread startQuery(String query) {
+        return startQuery(query, null);
+    }
+
+    private QueryThread startQuery(String query, CancellationSignal cancellationSignal) {
+        QueryThread thread = new QueryThread(query, cancellationSignal);
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForState(Thread thread, Thread.State state)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != state) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(thread.getName() + " is " + thread.getState() + ", expected " + state);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void waitForRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mHttpHelper.getRequestCount() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(mHttpHelper.getRequestCount() + " requests, expected " + count);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertSuggestions(SourceResult result, String... expected) {
+        assertNotNull("no result", result);
+        assertEquals("count", expected.length, result.getCount());
+        for (int i = 0; i < expected.length; i++) {
+            result.moveTo(i);
+            assertEquals("suggestion " + i, expected[i], result.getSuggestionQuery());
+        }
+    }
+
+    public void testFreshCacheHitMakesNoRequest() {
+        putCached("foo", 0, "foo bar", "foo baz");
+        assertSuggestions(mClient.queryInternal("foo"), "foo bar", "foo baz");
+        assertEquals(0, mHttpHelper.getRequestCount());
+        assertEquals(0, mBackgroundExecutor.countPendingTasks());
+    }
+
+    public void testStaleCacheHitRevalidatesOnce() {
+        putCached("foo", mConfig.getWebSuggestCacheFreshMillis() + 1000, "foo old");
+        mHttpHelper.setResponse(getUrl("foo"), "[\"foo\",[\"foo new\"],[\"\"]]");
+        assertSuggestions(mClient.queryInternal("foo"), "foo old");
+        assertSuggestions(mClient.queryInternal("foo"), "foo old");
+        assertEquals(0, mHttpHelper.getRequestCount());
+        // Only one revalidation, run in the background
+        assertEquals(1, mBackgroundExecutor.countPendingTasks());
+        mBackgroundExecutor.runNext();
+        assertEquals(1, mHttpHelper.getRequestCount());
+        assertSuggestions(mClient.queryInternal("foo"), "foo new");
+        assertEquals(1, mHttpHelper.getRequestCount());
+        assertEquals(0, mBackgroundExecutor.countPendingTasks());
+    }
+
+    public void testPrefixCacheHitFilteredWhenNotConnected() {
+        mConnected = false;
+        putCached("f", 0, "foo", "bar", "Fob", null);
+        assertSuggestions(mClient.queryInternal("fo"), "foo", "Fob");
+        assertNull(mClient.queryInternal("fox"));
+        assertEquals(0, mHttpHelper.getRequestCount());
+        assertEquals(0, mBackgroundExecutor.countPendingTasks());
+    }
+
+    public void testConcurrentQueriesMakeOneRequest() throws Exception {
+        mHttpHelper.setResponse(getUrl("foo"), "[\"foo\",[\"foo bar\"],[\"\"]]");
+        mHttpHelper.setBlocked(true);
+        QueryThread owner = startQuery("foo");
+        waitForRequests(1);
+        QueryThread joiner = startQuery("foo");
+        // Waiting for the owner's response
+        waitForState(joiner, Thread.State.WAITING);
+        mHttpHelper.setBlocked(false);
+        assertSuggestions(owner.getResult(), "foo bar");
+        assertSuggestions(joiner.getResult(), "foo bar");
+        assertEquals(1, mHttpHelper.getRequestCount());
+    }
+
+    public void testJoinedQueryGetsError() throws Exception {
+        // No response for the URL, so the request fails
+        mHttpHelper.setBlocked(true);
+        QueryThread owner = startQuery("foo");
+        waitForRequests(1);
+        QueryThread joiner = startQuery("foo");
+        waitForState(joiner, Thread.State.WAITING);
+        mHttpHelper.setBlocked(false);
+        assertNull(owner.getResult());
+        assertNull(joiner.getResult());
+        // The joiner did not make a request of its own
+        assertEquals(1, mHttpHelper.getRequestCount());
+    }
+
+    public void testExtendedQueryDropped() throws Exception {
+        mDebounceMillis = 60000;
+        putCached("fo", 0, "fo");
+        mHttpHelper.setResponse(getUrl("f"), "[\"f\",[\"f\"],[\"\"]]");
+        assertSuggestions(mClient.queryInternal("fo"), "fo");
+        // Arrives within the debounce window, so it waits
+        QueryThread thread = startQuery("f");
+        waitForState(thread, Thread.State.TIMED_WAITING);
+        assertSuggestions(mClient.queryInternal("fo"), "fo");
+        assertNull(thread.getResult());
+        assertEquals(0, mHttpHelper.getRequestCount());
+    }
+
+    public void testOtherQueryEndsDebounce() throws Exception {
+        mDebounceMillis = 60000;
+        putCached("fo", 0, "fo");
+        putCached("g", 0, "g");
+        mHttpHelper.setResponse(getUrl("f"), "[\"f\",[\"f\"],[\"\"]]");
+        assertSuggestions(mClient.queryInternal("fo"), "fo");
+        QueryThread thread = startQuery("f");
+        waitForState(thread, Thread.State.TIMED_WAITING);
+        // Does not extend the waiting query, so its request is made at once
+        assertSuggestions(mClient.queryInternal("g"), "g");
+        assertSuggestions(thread.getResult(), "f");
+        assertEquals(1, mHttpHelper.getRequestCount());
+    }
+
+    public void testCancelEndsDebounce() throws Exception {
+        mDebounceMillis = 60000;
+        putCached("fo", 0, "fo");
+        mHttpHelper.setResponse(getUrl("f"), "[\"f\",[\"f\"],[\"\"]]");
+        assertSuggestions(mClient.queryInternal("fo"), "fo");
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        QueryThread thread = startQuery("f", cancellationSignal);
+        waitForState(thread, Thread.State.TIMED_WAITING);
+        cancellationSignal.cancel();
+        assertNull(thread.getResult());
+        assertEquals(0, mHttpHelper.getRequestCount());
+    }
+
+    private class QueryThread extends Thread {
+        private final String mQuery;
+        private final CancellationSignal mCancellationSignal;
+        private SourceResult mResult;
+
+        public QueryThread(String query, CancellationSignal cancellationSignal) {
+            super("QueryThread-" + query);
+            mQuery = query;
+            mCancellationSignal = cancellationSignal;
+        }
+
+        @Override
+        public void run() {
+            mResult = mClient.queryInternal(mQuery, mCancellationSignal);
+        }
+
+        /**
+         * Waits for the query to finish, for much less than the debounce window
+         * used by the tests.
+         */
+        public SourceResult getResult() throws InterruptedException {
+            join(5000);
+            assertFalse(getName() + " did not finish", isAlive());
+            return mResult;
+        }
+    }
+
+    /**
+     * An {@link HttpHelper} that returns canned responses to GET requests and counts them.
+     * While blocked, requests wait before responding.
+     */
+    private static class MockHttpHelper implements HttpHelper {
+
+        private final Map<String, String> mResponses = new HashMap<String, String>();
+        private final ArrayList<String> mRequests = new ArrayList<String>();
+        private boolean mBlocked;
+
+        public synchronized void setResponse(String url, String content) {
+            mResponses.put(url, content);
+        }
+
+        public synchronized void setBlocked(boolean blocked) {
+            mBlocked = blocked;
+            notifyAll();
+        }
+
+        public synchronized int getRequestCount() {
+            return mRequests.size();
+        }
+
+        public Response openGet(GetRequest request) throws IOException {
+            String content;
+            synchronized (this) {
+                mRequests.add(request.getUrl());
+                try {
+                    while (mBlocked) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                content = mResponses.get(request.getUrl());
+            }
+            if (content == null) {
+                throw new HttpException(404, "Not Found");
+            }
+            return new MockResponse(content);
+        }
+
+        public String get(GetRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String get(String url, Map<String, String> requestHeaders) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String post(PostRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String post(String url, Map<String, String> requestHeaders, String content) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void warmUp(String url) {
+        }
+
+        public void setConnectTimeout(int timeoutMillis) {
+        }
+
+        public void setReadTimeout(int timeoutMillis) {
+        }
+    }
+
+    private static class MockResponse implements HttpHelper.Response {
+        private final InputStream mContent;
+
+        public MockResponse(String content) {
+            try {
+                mContent = new ByteArrayInputStream(content.getBytes(HttpHelper.DEFAULT_CHARSET));
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        public InputStream getContent() {
+            return mContent;
+        }
+
+        public String getCharset() {
+            return HttpHelper.DEFAULT_CHARSET;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.google;
+
+import org.json.JSONException;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.StringReader;
+
+/**
+ * Tests for {@link GoogleSuggestParser}.
+ */
+@SmallTest
+public class GoogleSuggestParserTest extends AndroidTestCase {
+
+    private GoogleSuggestParser parse(String response, int maxResults) throws Exception {
+        GoogleSuggestParser parser =
+                new GoogleSuggestParser(new StringReader(response), maxResults);
+        parser.parse();
+        return parser;
+    }
+
+    private void assertParsed(GoogleSuggestParser parser, String[] suggestions,
+            String[] popularity) {
+        assertEquals("count", suggestions.length, parser.getCount());
+        for (int i = 0; i < suggestions.length; i++) {
+            assertEquals("suggestion " + i, suggestions[i], parser.getSuggestions()[i]);
+            assertEquals("popularity " + i, popularity[i], parser.getPopularity()[i]);
+        }
+    }
+
+    private void assertSyntaxError(String response) throws Exception {
+        try {
+            parse(response, 10);
+            fail("Expected JSONException for " + response);
+        } catch (JSONException e) {
+            // expected
+        }
+    }
+
+    public void testSuggestionsAndPopularity() throws Exception {
+        GoogleSuggestParser parser = parse(
+                "[\"foo\",[\"foo fighters\",\"food\"],[\"1,000 results\",\"2 results\"],[]]", 10);
+        assertParsed(parser,
+                new String[]{ "foo fighters", "food" },
+                new String[]{ "1,000 results", "2 results" });
+    }
+
+    public void testStopsAtMaxResults() throws Exception {
+        GoogleSuggestParser parser = parse(
+                "[\"a\",[\"a1\",\"a2\",\"a3\"],[\"p1\",\"p2\",\"p3\"]]", 2);
+        assertParsed(parser,
+                new String[]{ "a1", "a2" },
+                new String[]{ "p1", "p2" });
+    }
+
+    public void testEmptySuggestions() throws Exception {
+        GoogleSuggestParser parser = parse("[\"a\", [ ], [ ]]", 10);
+        assertEquals(0, parser.getCount());
+    }
+
+    public void testMissingPopularity() throws Exception {
+        GoogleSuggestParser parser = parse("[\"a\",[\"a1\",\"a2\"]]", 10);
+        assertParsed(parser,
+                new String[]{ "a1", "a2" },
+                new String[]{ null, null });
+    }
+
+    public void testEscapesAndWhitespace() throws Exception {
+        GoogleSuggestParser parser = parse(
+                " [ \"q\\\"\" ,\n[ \"caf\\u00e9\" , \"a\\\\b\\/c\\n\" ] ,\r\n[ \"\" , null ] ] ",
+                10);
+        assertParsed(parser,
+                new String[]{ "caf\u00e9", "a\\b/c\n" },
+                new String[]{ "", null });
+    }
+
+    public void testNonStringValues() throws Exception {
+        GoogleSuggestParser parser = parse(
+                "[{\"q\":[1,\"]\"]},[\"a1\",42,[\"x\"],true],[1.5,{},null,\"p\"]]", 10);
+        assertParsed(parser,
+                new String[]{ "a1", "42", null, "true" },
+                new String[]{ "1.5", null, null, "p" });
+    }
+
+    public void testLongResponse() throws Exception {
+        StringBuilder response = new StringBuilder("[\"q\",[");
+        for (int i = 0; i < 500; i++) {
+            if (i > 0) response.append(',');
+            response.append("\"suggestion number ").append(i).append('"');
+        }
+        response.append("],[]]");
+        GoogleSuggestParser parser = parse(response.toString(), 500);
+        assertEquals(500, parser.getCount());
+        assertEquals("suggestion number 499", parser.getSuggestions()[499]);
+    }
+
+    public void testSyntaxErrors() throws Exception {
+        assertSyntaxError("");
+        assertSyntaxError("{}");
+        assertSyntaxError("[\"q\"]");
+        assertSyntaxError("[\"q\",\"a\"]");
+        assertSyntaxError("[\"q\",[\"a1\"");
+        assertSyntaxError("[\"q\",[\"a1]]");
+        assertSyntaxError("[\"q\",[\"a1\" \"a2\"]]");
+        assertSyntaxError("[\"q\",[\"\\u00g0\"]]");
+    }
+}
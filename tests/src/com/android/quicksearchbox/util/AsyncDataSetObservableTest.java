@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link AsyncDataSetObservable}.
+ */
+@SmallTest
+public class AsyncDataSetObservableTest extends TestCase {
+
+    private QueueingHandler mHandler;
+    private MockDataSetObserver mObserver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandler = new QueueingHandler();
+        mObserver = new MockDataSetObserver();
+    }
+
+    public void testSynchronousWithoutHandler() {
+        AsyncDataSetObservable observable = new AsyncDataSetObservable(null);
+        observable.registerObserver(mObserver);
+        observable.notifyChanged();
+        mObserver.assertChanged();
+        assertEquals(1, observable.getChangeNotificationCount());
+        assertEquals(0, observable.getMergedChangeCount());
+    }
+
+    public void testChangesMerged() {
+        AsyncDataSetObservable observable = new AsyncDataSetObservable(mHandler);
+        observable.registerObserver(mObserver);
+        observable.notifyChanged();
+        observable.notifyChanged();
+        observable.notifyChanged();
+        mObserver.assertNotChanged();
+        assertEquals(1, mHandler.getQueuedCount());
+
+        mHandler.runAll();
+        mObserver.assertChanged();
+        assertEquals(3, observable.getChangeRequestCount());
+        assertEquals(1, observable.getChangeNotificationCount());
+        assertEquals(2, observable.getMergedChangeCount());
+
+        // A change after the notification causes a new notification
+        observable.notifyChanged();
+        assertEquals(1, mHandler.getQueuedCount());
+        mHandler.runAll();
+        assertEquals(2, observable.getChangeNotificationCount());
+    }
+
+    public void testChangesAlignedToFrame() {
+        AsyncDataSetObservable observable = new AsyncDataSetObservable(mHandler, 16);
+        observable.notifyChanged();
+        long when = mHandler.getLastUptimeMillis();
+        assertEquals(0, when % 16);
+        assertTrue(when > SystemClock.uptimeMillis() - 16);
+    }
+
+    /**
+     * Handler that queues messages until {@link #runAll} is called.
+     */
+    private static class QueueingHandler extends Handler {
+        private final ArrayList<Message> mMessages = new ArrayList<Message>();
+        private long mLastUptimeMillis;
+
+        public QueueingHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            mMessages.add(Message.obtain(msg));
+            mLastUptimeMillis = uptimeMillis;
+            return true;
+        }
+
+        public int getQueuedCount() {
+            return mMessages.size();
+        }
+
+        public long getLastUptimeMillis() {
+            return mLastUptimeMillis;
+        }
+
+        public void runAll() {
+            ArrayList<Message> messages = new ArrayList<Message>(mMessages);
+            mMessages.clear();
+            for (Message msg : messages) {
+                dispatchMessage(msg);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link BarrierConsumer}.
+ */
+@SmallTest
+public class BarrierConsumerTest extends TestCase {
+
+    public void testGetValuesWhenFull() {
+        BarrierConsumer<String> consumer = new BarrierConsumer<String>(2);
+        assertTrue(consumer.consume("a"));
+        assertTrue(consumer.consume("b"));
+        assertFalse(consumer.consume("c"));
+        MoreAsserts.assertContentsInOrder(consumer.getValues(), "a", "b");
+    }
+
+    public void testGetValuesTimesOut() {
+        BarrierConsumer<String> consumer = new BarrierConsumer<String>(2);
+        assertTrue(consumer.consume("a"));
+        MoreAsserts.assertContentsInOrder(consumer.getValues(10), "a");
+        // Late values are rejected
+        assertFalse(consumer.consume("b"));
+    }
+}
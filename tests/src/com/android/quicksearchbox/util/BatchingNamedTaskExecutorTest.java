@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+import static com.android.quicksearchbox.util.MockTask.assertRanNever;
+import static com.android.quicksearchbox.util.MockTask.assertRanOnce;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Comparator;
+
+/**
+ * Tests for {@link BatchingNamedTaskExecutor}.
+ */
+@SmallTest
+public class BatchingNamedTaskExecutorTest extends TestCase {
+
+    private MockNamedTaskExecutor mTaskExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTaskExecutor = new MockNamedTaskExecutor();
+    }
+
+    public void testExecuteInInsertionOrder() {
+        BatchingNamedTaskExecutor executor = new BatchingNamedTaskExecutor(mTaskExecutor);
+        MockTask a1 = addTask(executor, "a", 1);
+        MockTask b1 = addTask(executor, "b", 1);
+        MockTask c1 = addTask(executor, "c", 1);
+
+        executor.executeNextBatch(2);
+        assertEquals(1, executor.getQueuedTaskCount());
+        mTaskExecutor.assertPendingTaskCount(2);
+        assertTrue(mTaskExecutor.runNext());
+        assertRanOnce("first batch", a1);
+        assertRanNever("first batch", b1, c1);
+        assertTrue(mTaskExecutor.runNext());
+        assertRanOnce("first batch", a1, b1);
+        assertRanNever("first batch", c1);
+
+        executor.executeNextBatch(2);
+        assertEquals(0, executor.getQueuedTaskCount());
+        assertTrue(mTaskExecutor.runNext());
+        assertRanOnce("second batch", a1, b1, c1);
+        mTaskExecutor.assertDone();
+    }
+
+    public void testExecuteInComparatorOrder() {
+        BatchingNamedTaskExecutor executor = new BatchingNamedTaskExecutor(mTaskExecutor,
+                new NameComparator());
+        MockTask c1 = addTask(executor, "c", 1);
+        MockTask a1 = addTask(executor, "a", 1);
+        MockTask b1 = addTask(executor, "b", 1);
+        MockTask a2 = addTask(executor, "a", 2);
+
+        executor.executeNextBatch(2);
+        assertTrue(mTaskExecutor.runNext());
+        assertTrue(mTaskExecutor.runNext());
+        mTaskExecutor.assertDone();
+        assertRanOnce("first batch", a1, a2);
+        assertRanNever("first batch", b1, c1);
+
+        executor.executeNextBatch(1);
+        assertTrue(mTaskExecutor.runNext());
+        assertRanOnce("second batch", b1);
+        assertRanNever("second batch", c1);
+    }
+
+    public void testManyTasks() {
+        BatchingNamedTaskExecutor executor = new BatchingNamedTaskExecutor(mTaskExecutor,
+                new NameComparator());
+        MockTask[] tasks = new MockTask[100];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = addTask(executor, "t" + (1000 - i), i);
+            if (i % 10 == 9) {
+                executor.executeNextBatch(5);
+            }
+        }
+        assertEquals(50, executor.getQueuedTaskCount());
+        executor.executeNextBatch(tasks.length);
+        assertEquals(0, executor.getQueuedTaskCount());
+        while (mTaskExecutor.runNext()) {
+        }
+        assertRanOnce("all", tasks);
+    }
+
+    public void testCancelPendingTasks() {
+        BatchingNamedTaskExecutor executor = new BatchingNamedTaskExecutor(mTaskExecutor);
+        MockTask a1 = addTask(executor, "a", 1);
+        MockTask b1 = addTask(executor, "b", 1);
+
+        executor.executeNextBatch(1);
+        executor.cancelPendingTasks();
+        executor.executeNextBatch(1);
+        assertTrue(mTaskExecutor.runNext());
+        mTaskExecutor.assertDone();
+        assertRanOnce("after cancel", a1);
+        assertRanNever("after cancel", b1);
+    }
+
+    private MockTask addTask(NamedTaskExecutor executor, String name, int id) {
+        MockTask task = new MockTask(name, id);
+        executor.execute(task);
+        return task;
+    }
+
+    private static class NameComparator implements Comparator<NamedTask> {
+        public int compare(NamedTask task1, NamedTask task2) {
+            return task1.getName().compareTo(task2.getName());
+        }
+    }
+}
@@ -89,6 +89,19 @@ public class CachedLaterTest extends TestCase {
         assertNull(mTrap2.getValue());
     }
 
+    public void testClearWhileCreating() {
+        mHarness.getLater(mTrap);  // trigger create()
+        mHarness.clear();
+        mHarness.finishCreate("old");
+        // Created again, since the value may be from before the clear
+        assertNull(mTrap.getValue());
+        assertFalse(mHarness.haveNow());
+        assertTrue(mHarness.isCreatePending());
+        mHarness.finishCreate("new");
+        assertEquals("new", mTrap.getValue());
+        assertTrue(mHarness.haveNow());
+    }
+
     private static class Harness extends CachedLater<String> {
 
         private boolean mCreatePending = false;
@@ -99,11 +112,16 @@ public class CachedLaterTest extends TestCase {
 
         public void finishCreate(String str) {
             if (mCreatePending) {
-                store(str);
+                // store() may call create() again
                 mCreatePending = false;
+                store(str);
             }
         }
 
+        public boolean isCreatePending() {
+            return mCreatePending;
+        }
+
     }
 
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link CancellationSignal}.
+ */
+@SmallTest
+public class CancellationSignalTest extends TestCase {
+
+    public void testCancelCallsListenersOnce() {
+        CancellationSignal signal = new CancellationSignal();
+        CountingListener listener = new CountingListener();
+        signal.addOnCancelListener(listener);
+        assertFalse(signal.isCanceled());
+        assertEquals(0, listener.mCount);
+        signal.cancel();
+        assertTrue(signal.isCanceled());
+        assertEquals(1, listener.mCount);
+        signal.cancel();
+        assertEquals(1, listener.mCount);
+    }
+
+    public void testAddListenerAfterCancel() {
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+        CountingListener listener = new CountingListener();
+        signal.addOnCancelListener(listener);
+        assertEquals(1, listener.mCount);
+    }
+
+    public void testRemovedListenerNotCalled() {
+        CancellationSignal signal = new CancellationSignal();
+        CountingListener listener = new CountingListener();
+        signal.addOnCancelListener(listener);
+        signal.removeOnCancelListener(listener);
+        signal.cancel();
+        assertEquals(0, listener.mCount);
+    }
+
+    public void testNullSignalNotCanceled() {
+        assertFalse(CancellationSignal.isCanceled(null));
+    }
+
+    private static class CountingListener implements CancellationSignal.OnCancelListener {
+        private int mCount = 0;
+        public void onCancel() {
+            mCount++;
+        }
+    }
+}
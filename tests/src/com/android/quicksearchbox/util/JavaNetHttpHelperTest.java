@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * Tests for {@link JavaNetHttpHelper}.
+ */
+@SmallTest
+public class JavaNetHttpHelperTest extends AndroidTestCase {
+
+    private JavaNetHttpHelper mHelper;
+    private LocalServer mServer;
+    private LocalServer mOtherServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHelper = new JavaNetHttpHelper(new JavaNetHttpHelper.PassThroughRewriter(), "Test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) mServer.close();
+        if (mOtherServer != null) mOtherServer.close();
+        super.tearDown();
+    }
+
+    public void testCharsetFromContentType() {
+        assertEquals("ISO-8859-1",
+                JavaNetHttpHelper.getCharset("text/javascript; charset=ISO-8859-1"));
+        assertEquals("UTF-8", JavaNetHttpHelper.getCharset("text/html;charset=UTF-8"));
+        assertEquals("Shift_JIS",
+                JavaNetHttpHelper.getCharset("text/plain; format=flowed; CHARSET=\"Shift_JIS\""));
+    }
+
+    public void testDefaultCharset() {
+        assertEquals(HttpHelper.DEFAULT_CHARSET, JavaNetHttpHelper.getCharset(null));
+        assertEquals(HttpHelper.DEFAULT_CHARSET, JavaNetHttpHelper.getCharset("text/plain"));
+        assertEquals(HttpHelper.DEFAULT_CHARSET,
+                JavaNetHttpHelper.getCharset("text/plain; charset="));
+        assertEquals(HttpHelper.DEFAULT_CHARSET,
+                JavaNetHttpHelper.getCharset("text/plain; charset=no-such-charset"));
+        assertEquals(HttpHelper.DEFAULT_CHARSET,
+                JavaNetHttpHelper.getCharset("text/plain; charset=\"bad name\""));
+    }
+
+    @MediumTest
+    public void testGetReusesConnection() throws Exception {
+        mServer = new LocalServer("foo");
+        assertEquals("foo", mHelper.get(mServer.getUrl("/a"), null));
+        assertEquals("foo", mHelper.get(mServer.getUrl("/b"), null));
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+        assertEquals(2, mHelper.getRequestCount());
+        assertEquals(1, mHelper.getPoolHitCount());
+    }
+
+    @MediumTest
+    public void testGetAfterWarmUpReusesConnection() throws Exception {
+        mServer = new LocalServer("foo");
+        mHelper.warmUp(mServer.getUrl("/"));
+        assertEquals("foo", mHelper.get(mServer.getUrl("/a"), null));
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+        assertEquals(1, mHelper.getPoolHitCount());
+    }
+
+    @MediumTest
+    public void testWarmUpSkippedWhenConnected() throws Exception {
+        mServer = new LocalServer("foo");
+        assertEquals("foo", mHelper.get(mServer.getUrl("/a"), null));
+        mHelper.warmUp(mServer.getUrl("/"));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, mHelper.getRequestCount());
+    }
+
+    @MediumTest
+    public void testOtherServerIsPoolMiss() throws Exception {
+        mServer = new LocalServer("foo");
+        mOtherServer = new LocalServer("bar");
+        assertEquals("foo", mHelper.get(mServer.getUrl("/a"), null));
+        assertEquals("bar", mHelper.get(mOtherServer.getUrl("/a"), null));
+        assertEquals(1, mServer.getConnectionCount());
+        assertEquals(1, mOtherServer.getConnectionCount());
+        assertEquals(2, mHelper.getRequestCount());
+        assertEquals(0, mHelper.getPoolHitCount());
+    }
+
+    @MediumTest
+    public void testCanceledRequestNotReused() throws Exception {
+        mServer = new LocalServer("foo");
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        HttpHelper.GetRequest request = new HttpHelper.GetRequest(mServer.getUrl("/a"));
+        request.setCancellationSignal(cancellationSignal);
+        HttpHelper.Response response = mHelper.openGet(request);
+        cancellationSignal.cancel();
+        response.close();
+        assertEquals("foo", mHelper.get(mServer.getUrl("/b"), null));
+        assertEquals(2, mServer.getConnectionCount());
+        assertEquals(0, mHelper.getPoolHitCount());
+    }
+
+    /**
+     * A keep-alive HTTP server on the loopback interface that answers every request
+     * with the same text, and counts connections and requests.
+     */
+    private static class LocalServer implements Runnable {
+        private final String mContent;
+        private final ServerSocket mServerSocket;
+        private final ArrayList<Socket> mSockets = new ArrayList<Socket>();
+        private int mRequestCount;
+
+        public LocalServer(String content) throws IOException {
+            mContent = content;
+            mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+            new Thread(this, "LocalServer").start();
+        }
+
+        public String getUrl(String path) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+        }
+
+        public synchronized int getConnectionCount() {
+            return mSockets.size();
+        }
+
+        public synchronized int getRequestCount() {
+            return mRequestCount;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServerSocket.accept();
+                    synchronized (this) {
+                        mSockets.add(socket);
+                    }
+                    new Thread(new Runnable() {
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "LocalServer-connection").start();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                OutputStream out = socket.getOutputStream();
+                String requestLine;
+                while ((requestLine = in.readLine()) != null) {
+                    String line;
+                    do {
+                        line = in.readLine();
+                    } while (line != null && line.length() > 0);
+                    synchronized (this) {
+                        mRequestCount++;
+                    }
+                    byte[] content = mContent.getBytes("UTF-8");
+                    String headers = "HTTP/1.1 200 OK\r\n"
+                            + "Content-Type: text/plain; charset=UTF-8\r\n"
+                            + "Content-Length: " + content.length + "\r\n\r\n";
+                    out.write(headers.getBytes("US-ASCII"));
+                    if (!requestLine.startsWith("HEAD ")) {
+                        out.write(content);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Closed by the client, or by close()
+            }
+        }
+
+        public void close() throws IOException {
+            mServerSocket.close();
+            synchronized (this) {
+                for (Socket socket : mSockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link PooledNamedTaskExecutor}.
+ */
+@MediumTest
+public class PooledNamedTaskExecutorTest extends TestCase {
+
+    private static final int MAX_THREADS = 2;
+    private static final long KEEP_ALIVE_MILLIS = 100;
+
+    private PooledNamedTaskExecutor mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mExecutor = new PooledNamedTaskExecutor(Executors.defaultThreadFactory(),
+                MAX_THREADS, KEEP_ALIVE_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.close();
+        super.tearDown();
+    }
+
+    public void testExecute() throws Exception {
+        MockTask a1 = addTask("a", 1);
+        MockTask a2 = addTask("a", 2);
+        MockTask b1 = addTask("b", 1);
+
+        a1.waitForCompletion();
+        a2.waitForCompletion();
+        b1.waitForCompletion();
+    }
+
+    public void testSameNameRunsSerially() throws Exception {
+        BlockingTask a1 = new BlockingTask("a");
+        mExecutor.execute(a1);
+        MockTask a2 = addTask("a", 2);
+        MockTask b1 = addTask("b", 1);
+
+        // b1 runs while a1 is blocked, but a2 has to wait for a1
+        b1.waitForCompletion();
+        a2.assertRanNever("while a1 is running");
+        a1.unblock();
+        a2.waitForCompletion();
+    }
+
+    public void testThreadCountBounded() throws Exception {
+        BlockingTask[] tasks = new BlockingTask[MAX_THREADS * 3];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new BlockingTask("task" + i);
+            mExecutor.execute(tasks[i]);
+        }
+        assertEquals(MAX_THREADS, mExecutor.getThreadCount());
+        for (BlockingTask task : tasks) {
+            task.unblock();
+        }
+        for (BlockingTask task : tasks) {
+            task.waitForCompletion();
+        }
+    }
+
+    public void testIdleThreadsExit() throws Exception {
+        MockTask a1 = addTask("a", 1);
+        a1.waitForCompletion();
+        Thread.sleep(KEEP_ALIVE_MILLIS * 5);
+        assertEquals(0, mExecutor.getThreadCount());
+        assertEquals(0, mExecutor.getActiveNameCount());
+
+        // New tasks start a new thread
+        MockTask a2 = addTask("a", 2);
+        a2.waitForCompletion();
+    }
+
+    public void testErrorInTask() throws Exception {
+        mExecutor.close();
+        // A single thread, which has to be replaced for the next task to run
+        mExecutor = new PooledNamedTaskExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                // The error is expected, don't let it crash the test
+                thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    public void uncaughtException(Thread t, Throwable e) {
+                    }
+                });
+                return thread;
+            }
+        }, 1, KEEP_ALIVE_MILLIS);
+        mExecutor.execute(new ErrorTask("a"));
+        MockTask a2 = addTask("a", 2);
+        a2.waitForCompletion();
+        assertEquals(1, mExecutor.getThreadCount());
+    }
+
+    private MockTask addTask(String name, int id) {
+        MockTask task = new MockTask(name, id);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    private static class ErrorTask implements NamedTask {
+        private final String mName;
+
+        public ErrorTask(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public void run() {
+            throw new AssertionError("Expected error in task " + mName);
+        }
+    }
+
+    private static class BlockingTask implements NamedTask {
+        private final String mName;
+        private final CountDownLatch mUnblocked = new CountDownLatch(1);
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        public BlockingTask(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public void run() {
+            try {
+                mUnblocked.await();
+            } catch (InterruptedException ex) {
+                // Let the test fail on waitForCompletion()
+                return;
+            }
+            mDone.countDown();
+        }
+
+        public void unblock() {
+            mUnblocked.countDown();
+        }
+
+        public void waitForCompletion() throws InterruptedException {
+            assertTrue("Task " + mName + " did not complete",
+                    mDone.await(1000, TimeUnit.MILLISECONDS));
+        }
+    }
+}
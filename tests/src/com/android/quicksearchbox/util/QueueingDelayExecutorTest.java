@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.quicksearchbox.util;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link QueueingDelayExecutor}.
+ */
+@SmallTest
+public class QueueingDelayExecutorTest extends AndroidTestCase {
+
+    private MockExecutor mDelegate;
+    private QueueingDelayExecutor mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDelegate = new MockExecutor();
+        mExecutor = new QueueingDelayExecutor("test", mDelegate, Long.MAX_VALUE);
+    }
+
+    public void testRunsTasks() {
+        final boolean[] ran = { false };
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                ran[0] = true;
+            }
+        });
+        assertFalse("task ran before the delegate ran it", ran[0]);
+        assertTrue(mDelegate.runNext());
+        assertTrue("task did not run", ran[0]);
+    }
+
+    public void testCountsOnlyStartedTasks() {
+        mExecutor.execute(new NoOpRunnable());
+        mExecutor.execute(new NoOpRunnable());
+        assertEquals(0, mExecutor.getTaskCount());
+        mDelegate.runNext();
+        assertEquals(1, mExecutor.getTaskCount());
+        mDelegate.runNext();
+        assertEquals(2, mExecutor.getTaskCount());
+    }
+
+    public void testMeasuresDelay() {
+        mExecutor.execute(new NoOpRunnable());
+        SystemClock.sleep(20);
+        mDelegate.runNext();
+        assertTrue("max delay too short: " + mExecutor, mExecutor.getMaxDelayMillis() >= 20);
+        assertTrue("average delay too short: " + mExecutor,
+                mExecutor.getAverageDelayMillis() >= 20);
+    }
+
+    private static class NoOpRunnable implements Runnable {
+        public void run() {
+        }
+    }
+}